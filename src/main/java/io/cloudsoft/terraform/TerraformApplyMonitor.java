@@ -0,0 +1,128 @@
+package io.cloudsoft.terraform;
+
+import io.cloudsoft.terraform.entity.ManagedResource;
+import io.cloudsoft.terraform.parser.ApplyLogParser;
+import io.cloudsoft.terraform.parser.ApplyProgress;
+import org.apache.brooklyn.api.mgmt.Task;
+import org.apache.brooklyn.core.mgmt.BrooklynTaskTags;
+import org.apache.brooklyn.util.exceptions.Exceptions;
+import org.apache.brooklyn.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Follows an apply or destroy run with <code>-json</code>, given its stdout as it is written: publishes its progress as
+ * {@link TerraformConfiguration#APPLY_PROGRESS}, {@link TerraformConfiguration#APPLY_RESOURCES_IN_PROGRESS} and
+ * {@link TerraformConfiguration#APPLY_ETA} on the configuration, and {@link ManagedResource#APPLY_STATUS} on the resource entities it changes,
+ * and accumulates what it did, see {@link #getSummary()}.
+ * <p>
+ * Each line is parsed once, when it is complete, and only the line being written is kept, so the cost does not grow with the output already read;
+ * the on-machine drivers keep only a bounded tail of it on the task.
+ * Where the driver cannot pass the output as it is written, see {@link TerraformDriver#taskForTerraformSubCommand(String, String, OutputStream)},
+ * it is read from the task once it completes; in <code>kube</code> mode the container task holds the whole output. Resources created by the apply have no entity until the model is updated afterwards.
+ */
+class TerraformApplyMonitor extends OutputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerraformApplyMonitor.class);
+
+    private final TerraformConfigurationImpl entity;
+    private final ApplyLogParser.Summary summary = new ApplyLogParser.Summary();
+    private final ApplyProgress progress;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean written = false;
+
+    TerraformApplyMonitor(TerraformConfigurationImpl entity) {
+        this.entity = entity;
+        this.progress = new ApplyProgress(this::onResourceStatus, summary);
+        entity.sensors().set(TerraformConfiguration.APPLY_PROGRESS, "0/?");
+        entity.sensors().set(TerraformConfiguration.APPLY_RESOURCES_IN_PROGRESS, Collections.emptyList());
+        entity.sensors().remove(TerraformConfiguration.APPLY_ETA);
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        written = true;
+        if (b=='\n') {
+            acceptLine();
+        } else {
+            line.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        written = true;
+        int lineStart = off;
+        for (int i=off; i<off+len; i++) {
+            if (b[i]=='\n') {
+                line.write(b, lineStart, i-lineStart);
+                acceptLine();
+                lineStart = i+1;
+            }
+        }
+        line.write(b, lineStart, off+len-lineStart);
+    }
+
+    private void acceptLine() {
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        line.reset();
+        try {
+            if (progress.acceptLine(text)) publish();
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.debug("Unable to read progress of apply at "+entity+" (ignoring): "+e);
+        }
+    }
+
+    /**
+     * reads any final line not terminated by a newline, or if nothing was written to this stream, the output the task recorded;
+     * then publishes the final progress
+     */
+    synchronized void finish(Task<?> task) {
+        try {
+            if (written) {
+                progress.accept(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                line.reset();
+            } else {
+                BrooklynTaskTags.WrappedStream stdout = BrooklynTaskTags.stream(task, BrooklynTaskTags.STREAM_STDOUT);
+                if (stdout!=null && stdout.streamContents!=null) progress.accept(stdout.streamContents.get());
+            }
+            progress.end();
+            publish();
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.debug("Unable to read progress of "+task+" at "+entity+" (ignoring): "+e);
+        }
+        entity.sensors().set(TerraformConfiguration.APPLY_RESOURCES_IN_PROGRESS, Collections.emptyList());
+        entity.sensors().remove(TerraformConfiguration.APPLY_ETA);
+    }
+
+    /** @return what the apply did, as {@link ApplyLogParser#parse(String)} gives for its whole output */
+    Map<String, Object> getSummary() {
+        return summary.getResult();
+    }
+
+    /** @return whether terraform refused to apply a saved plan as stale, see {@link ApplyLogParser.Summary#isStaleSavedPlan()} */
+    boolean isStaleSavedPlan() {
+        return summary.isStaleSavedPlan();
+    }
+
+    private void publish() {
+        Integer total = progress.getTotal();
+        entity.sensors().set(TerraformConfiguration.APPLY_PROGRESS, progress.getDone() + "/" + (total==null ? "?" : total));
+        entity.sensors().set(TerraformConfiguration.APPLY_RESOURCES_IN_PROGRESS, progress.getInProgress());
+        Long eta = progress.getEtaMillis(System.currentTimeMillis());
+        if (eta!=null) entity.sensors().set(TerraformConfiguration.APPLY_ETA, Duration.millis(eta));
+    }
+
+    private void onResourceStatus(String address, String status) {
+        entity.resourceIndex().getManagedResource(address).ifPresent(c -> c.sensors().set(ManagedResource.APPLY_STATUS, status));
+    }
+
+}
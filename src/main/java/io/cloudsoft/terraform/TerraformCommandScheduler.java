@@ -0,0 +1,268 @@
+package io.cloudsoft.terraform;
+
+import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.api.mgmt.ManagementContext;
+import org.apache.brooklyn.api.mgmt.Task;
+import org.apache.brooklyn.config.ConfigKey;
+import org.apache.brooklyn.core.config.ConfigKeys;
+import org.apache.brooklyn.core.entity.EntityInternal;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.core.task.Tasks;
+import org.apache.brooklyn.util.exceptions.Exceptions;
+import org.apache.brooklyn.util.time.Duration;
+import org.apache.brooklyn.util.time.Time;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Limits how many terraform commands run at once across all {@link TerraformConfiguration} entities in a management context,
+ * so that a restart or a large rollout does not launch hundreds of plans (processes or kubernetes jobs) at the same time.
+ * <p>
+ * Every command run by {@link TerraformDriver#runQueued(org.apache.brooklyn.api.mgmt.TaskAdaptable)} takes a permit here.
+ * The global limit is {@link TerraformCommons#SCHEDULER_MAX_CONCURRENT}, and each execution mode can be further limited
+ * with <code>tf.scheduler.max_concurrent.&lt;mode&gt;</code> (eg <code>tf.scheduler.max_concurrent.kube</code>);
+ * these are read from <code>brooklyn.properties</code>.
+ * When commands are waiting, permits are granted fairly across applications, weighted by {@link TerraformCommons#SCHEDULER_WEIGHT},
+ * using start-time fair queueing: each application has a virtual clock which advances by <code>1/weight</code> for each command it runs,
+ * and the waiting command whose application has the earliest clock goes next.
+ * <p>
+ * Permits are reentrant: a task which holds one, or whose submitting task holds one, does not need another.
+ */
+public class TerraformCommandScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerraformCommandScheduler.class);
+
+    private static final Map<ManagementContext, TerraformCommandScheduler> SCHEDULERS = new WeakHashMap<>();
+
+    private static final ThreadLocal<Boolean> BACKGROUND = new ThreadLocal<>();
+
+    public static TerraformCommandScheduler get(Entity entity) {
+        ManagementContext mgmt = ((EntityInternal) entity).getManagementContext();
+        synchronized (SCHEDULERS) {
+            return SCHEDULERS.computeIfAbsent(mgmt, m -> new TerraformCommandScheduler());
+        }
+    }
+
+    /** Runs the given job marking any terraform commands it runs on this thread as background (eg polling) rather than user-initiated. */
+    public static <T> T runAsBackground(Callable<T> job) {
+        Boolean previous = BACKGROUND.get();
+        BACKGROUND.set(true);
+        try {
+            return job.call();
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            if (previous==null) BACKGROUND.remove();
+            else BACKGROUND.set(previous);
+        }
+    }
+
+    public static boolean isBackground() {
+        return Boolean.TRUE.equals(BACKGROUND.get());
+    }
+
+    private static class Waiter {
+        final String application;
+        final String mode;
+        final double weight;
+        final long sequence;
+        boolean granted = false;
+
+        Waiter(String application, String mode, double weight, long sequence) {
+            this.application = application;
+            this.mode = mode;
+            this.weight = weight;
+            this.sequence = sequence;
+        }
+    }
+
+    private final List<Waiter> waiting = new ArrayList<>();
+    private final Map<String, Integer> runningByMode = MutableMap.of();
+    private final Map<String, Double> virtualTimeByApplication = MutableMap.of();
+    private final Map<Thread, Integer> holders = MutableMap.of();
+    private int running = 0;
+    private long sequence = 0;
+    private double virtualTime = 0;
+
+    /**
+     * Delays the start of a background refresh by a random amount up to {@link TerraformCommons#SCHEDULER_JITTER_MAX},
+     * so that entities which were started (or rebinded) together do not all poll together.
+     */
+    public void jitterBackgroundStart(Entity entity) {
+        Duration max = getManagementConfig(entity, TerraformCommons.SCHEDULER_JITTER_MAX);
+        if (max==null || max.toMilliseconds()<=0) return;
+        Duration jitter = Duration.millis(ThreadLocalRandom.current().nextLong(max.toMilliseconds()));
+        try {
+            Tasks.withBlockingDetails("Waiting "+jitter+" before refresh (jitter to spread load)", () -> {
+                Time.sleep(jitter);
+                return null;
+            });
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    public <T> T runWithPermit(Entity entity, Callable<T> job) {
+        if (isHeldByCurrentTaskOrAncestor()) {
+            try {
+                return job.call();
+            } catch (Exception e) {
+                throw Exceptions.propagate(e);
+            }
+        }
+
+        String mode = entity.config().get(TerraformCommons.TF_EXECUTION_MODE);
+        Double weight = entity.config().get(TerraformCommons.SCHEDULER_WEIGHT);
+        long start = System.currentTimeMillis();
+        acquire(entity, new Waiter(entity.getApplicationId(), mode,
+                weight==null || weight<=0 ? 1 : weight, nextSequence()));
+        Duration waited = Duration.millis(System.currentTimeMillis() - start);
+        publishSensors(entity, waited);
+
+        Thread thread = Thread.currentThread();
+        synchronized (this) {
+            holders.merge(thread, 1, Integer::sum);
+        }
+        try {
+            return job.call();
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            release(entity, thread, mode);
+            publishLoadSensors(entity);
+        }
+    }
+
+    private synchronized long nextSequence() {
+        return sequence++;
+    }
+
+    private void acquire(Entity entity, Waiter waiter) {
+        synchronized (this) {
+            waiting.add(waiter);
+            dispatch(entity);
+            if (waiter.granted) return;
+        }
+        try {
+            Tasks.withBlockingDetails("Waiting for a terraform command slot ("+getQueueDepth()+" queued, "+getRunning()+" running)", () -> {
+                synchronized (this) {
+                    while (!waiter.granted) wait();
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            synchronized (this) {
+                if (waiter.granted) {
+                    // granted as we were interrupted; give it back
+                    running--;
+                    runningByMode.merge(waiter.mode, -1, Integer::sum);
+                    dispatch(entity);
+                } else {
+                    waiting.remove(waiter);
+                }
+            }
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private synchronized void release(Entity entity, Thread thread, String mode) {
+        holders.computeIfPresent(thread, (t, count) -> count<=1 ? null : count-1);
+        running--;
+        runningByMode.merge(mode, -1, Integer::sum);
+        dispatch(entity);
+        notifyAll();
+    }
+
+    /** grants as many waiters as the limits allow, in weighted fair order; caller must hold the monitor */
+    private void dispatch(Entity entity) {
+        while (!waiting.isEmpty()) {
+            Integer globalLimit = getLimit(entity, null);
+            if (globalLimit!=null && running >= globalLimit) return;
+
+            Waiter next = null;
+            double nextStart = 0;
+            for (Waiter w : waiting) {
+                Integer modeLimit = getLimit(entity, w.mode);
+                if (modeLimit!=null && runningByMode.getOrDefault(w.mode, 0) >= modeLimit) continue;
+                double start = Math.max(virtualTime, virtualTimeByApplication.getOrDefault(w.application, 0d));
+                if (next==null || start < nextStart || (start==nextStart && w.sequence < next.sequence)) {
+                    next = w;
+                    nextStart = start;
+                }
+            }
+            if (next==null) return;
+
+            waiting.remove(next);
+            next.granted = true;
+            running++;
+            runningByMode.merge(next.mode, 1, Integer::sum);
+            virtualTime = nextStart;
+            virtualTimeByApplication.put(next.application, nextStart + 1/next.weight);
+            notifyAll();
+        }
+        // nothing waiting; forget application clocks so they don't grow without bound
+        virtualTimeByApplication.clear();
+        virtualTime = 0;
+    }
+
+    private Integer getLimit(Entity entity, String mode) {
+        ConfigKey<Integer> key = mode==null ? TerraformCommons.SCHEDULER_MAX_CONCURRENT
+                : ConfigKeys.newIntegerConfigKey(TerraformCommons.SCHEDULER_MAX_CONCURRENT.getName()+"."+mode);
+        Integer result = getManagementConfig(entity, key);
+        if (mode==null && result==null) result = TerraformCommons.SCHEDULER_MAX_CONCURRENT.getDefaultValue();
+        return result==null || result<=0 ? null : result;
+    }
+
+    private <T> T getManagementConfig(Entity entity, ConfigKey<T> key) {
+        ManagementContext mgmt = ((EntityInternal) entity).getManagementContext();
+        T result = mgmt.getConfig().getConfig(key);
+        return result!=null ? result : key.getDefaultValue();
+    }
+
+    private boolean isHeldByCurrentTaskOrAncestor() {
+        synchronized (this) {
+            if (holders.isEmpty()) return false;
+            if (holders.containsKey(Thread.currentThread())) return true;
+            Task<?> task = Tasks.current();
+            while (task!=null) {
+                Thread t = task.getThread();
+                if (t!=null && holders.containsKey(t)) return true;
+                task = task.getSubmittedByTask();
+            }
+            return false;
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return waiting.size();
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    private void publishSensors(Entity entity, Duration waited) {
+        if (waited.toMilliseconds() > 1000) {
+            LOG.debug("Terraform command at "+entity+" waited "+waited+" for a slot");
+        }
+        publishLoadSensors(entity);
+        if (!Objects.equals(entity.sensors().get(TerraformConfiguration.SCHEDULER_WAIT_LAST), waited)) {
+            ((EntityInternal) entity).sensors().set(TerraformConfiguration.SCHEDULER_WAIT_LAST, waited);
+        }
+    }
+
+    /** publishes the current queue depth and running count; called when a command of the entity starts and when it ends */
+    private void publishLoadSensors(Entity entity) {
+        ((EntityInternal) entity).sensors().set(TerraformConfiguration.SCHEDULER_QUEUE_DEPTH, getQueueDepth());
+        ((EntityInternal) entity).sensors().set(TerraformConfiguration.SCHEDULER_RUNNING, getRunning());
+    }
+
+}
@@ -29,6 +29,40 @@ public interface TerraformCommons {
             //.constraint(Constraints.lessThan(Duration.seconds(15))) // if shorter than 15s difficulties of executing 'apply' appear
             .build();
 
+    ConfigKey<Duration> POLLING_PERIOD_MAX = ConfigKeys.builder(Duration.class)
+            .name("tf.polling.period.max")
+            .description("Longest period to back off to while the configuration stays in sync. " +
+                    "Polling returns to 'tf.polling.period' as soon as drift or an error is found, or an effector is invoked. " +
+                    "Set the same as 'tf.polling.period' to always poll at that rate. Default 5m.")
+            .defaultValue(Duration.minutes(5))
+            .build();
+
+    ConfigKey<Double> POLLING_BACKOFF_MULTIPLIER = ConfigKeys.builder(Double.class)
+            .name("tf.polling.backoff.multiplier")
+            .description("Factor by which the polling period grows after each refresh which finds the configuration in sync. Default 2.")
+            .defaultValue(2d)
+            .build();
+
+    ConfigKey<Integer> SCHEDULER_MAX_CONCURRENT = ConfigKeys.builder(Integer.class)
+            .name("tf.scheduler.max_concurrent")
+            .description("Maximum number of terraform commands to run at once across all configurations in this server, read from brooklyn.properties. " +
+                    "Each execution mode can be limited further by appending the mode, eg 'tf.scheduler.max_concurrent.kube'. Default 50; 0 for no limit.")
+            .defaultValue(50)
+            .build();
+
+    ConfigKey<Duration> SCHEDULER_JITTER_MAX = ConfigKeys.builder(Duration.class)
+            .name("tf.scheduler.jitter.max")
+            .description("Maximum random delay added before each background refresh, read from brooklyn.properties, " +
+                    "so configurations started together do not all refresh together. Default 5s.")
+            .defaultValue(Duration.seconds(5))
+            .build();
+
+    ConfigKey<Double> SCHEDULER_WEIGHT = ConfigKeys.builder(Double.class)
+            .name("tf.scheduler.weight")
+            .description("Relative share of terraform command slots given to this application when commands are queued. Default 1.")
+            .defaultValue(1d)
+            .build();
+
     @SetFromFlag("tfConfigurationContents")
     ConfigKey<String> CONFIGURATION_CONTENTS = ConfigKeys.builder(String.class)
             .name("tf.configuration.contents")
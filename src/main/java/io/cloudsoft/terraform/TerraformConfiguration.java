@@ -4,6 +4,7 @@ import java.time.Instant;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.google.common.reflect.TypeToken;
 import org.apache.brooklyn.api.catalog.Catalog;
@@ -20,6 +21,7 @@ import org.apache.brooklyn.core.sensor.Sensors;
 import org.apache.brooklyn.core.workflow.steps.CustomWorkflowStep;
 import org.apache.brooklyn.entity.software.base.SoftwareProcess;
 import org.apache.brooklyn.util.core.flags.SetFromFlag;
+import org.apache.brooklyn.util.time.Duration;
 
 import javax.annotation.Nullable;
 
@@ -38,6 +40,12 @@ public interface TerraformConfiguration extends SoftwareProcess, TerraformCommon
         ERROR // configuration was edited manually and it is incorrect
     }
 
+    enum ResourcesMode {
+        ENTITIES, // an entity for each resource
+        TABLE, // resources kept in a table on this entity, queried with 'queryResources'; entities only for selected types
+        NONE // resources not modelled
+    }
+
     // Update reference.json in the root when changing this value
     @SetFromFlag("version")
     ConfigKey<String> SUGGESTED_VERSION = ConfigKeys
@@ -68,17 +76,63 @@ public interface TerraformConfiguration extends SoftwareProcess, TerraformCommon
             .defaultValue(true)
             .build();
 
+    ConfigKey<Duration> PLAN_REFRESH_INTERVAL = ConfigKeys.builder(Duration.class)
+            .name("tf.plan.refresh.interval")
+            .description("While the configuration is in sync and its files, variables and local state are unchanged, background refreshes reuse the last plan " +
+                    "instead of running terraform, but a full plan (which detects changes made in the cloud) is run at least this often. " +
+                    "Set to 0 to always run a full plan. Default 10m.")
+            .defaultValue(Duration.minutes(10))
+            .build();
+
+    ConfigKey<Integer> STATE_PARSE_PARALLEL_THRESHOLD = ConfigKeys.builder(Integer.class)
+            .name("tf.state.parse.parallel.threshold")
+            .description("Number of resources, across all modules, above which the terraform state is parsed in parallel. " +
+                    "Set to 0 to always parse sequentially. Default 1000.")
+            .defaultValue(1000)
+            .build();
+
     ConfigKey<Boolean> TERRAFORM_RESOURCE_ENTITIES_ENABLED = ConfigKeys.builder(Boolean.class)
             .name("tf.resource_entities_enabled")
             .description("Create and update entities corresponding to Terraform resources and data")
             .defaultValue(true)
             .build();
 
+    ConfigKey<ResourcesMode> RESOURCES_MODE = ConfigKeys.builder(ResourcesMode.class)
+            .name("tf.resources.mode")
+            .description("How to model Terraform resources: ENTITIES creates an entity for each resource, " +
+                    "TABLE keeps them in a compact table queried with the 'queryResources' effector (creating entities only for 'tf.resources.table.entity_types'), " +
+                    "and NONE does not model them. If not set, ENTITIES unless 'tf.resource_entities_enabled' is false.")
+            .build();
+
+    ConfigKey<List<String>> RESOURCES_TABLE_ENTITY_TYPES = ConfigKeys.builder(new TypeToken<List<String>>() {}, "tf.resources.table.entity_types")
+            .description("In TABLE mode, the resource types for which entities are still created, as wildcard patterns, eg '*_instance'")
+            .build();
+
+    ConfigKey<Boolean> RESOURCES_GROUPING = ConfigKeys.newBooleanConfigKey("tf.resources.grouping",
+            "Whether to place resource entities in a group for each module, and the instances of a resource with 'count' or 'for_each' " +
+            "in a group for that resource, rather than all as children of the configuration; " +
+            "resources in the root module without 'count' or 'for_each' remain children of the configuration", false);
+
     ConfigKey<Collection<String>> TERRAFORM_RESOURCES_IGNORED_FOR_DRIFT = ConfigKeys.builder(new TypeToken<Collection<String>>() {})
             .name("tf.resources_ignored_for_drift")
             .description("Optionally ignore specified resource addresses when considering drift, supplied as a list or set of resource addresses")
             .build();
 
+    ConfigKey<Integer> PHANTOM_DRIFT_THRESHOLD = ConfigKeys.newIntegerConfigKey("tf.drift.phantom.threshold",
+            "Number of consecutive plans in which a resource must show drift only in the local state for it to be learned as a phantom drifter, " +
+            "whose drift is then refreshed only every 'tf.drift.phantom.refresh.interval'; 0 to disable learning", 3);
+
+    ConfigKey<Duration> PHANTOM_DRIFT_REFRESH_INTERVAL = ConfigKeys.builder(Duration.class)
+            .name("tf.drift.phantom.refresh.interval")
+            .description("How often drift at learned phantom drifters is included in a plan and refreshed; " +
+                    "those which no longer drift are then forgotten. Default 1h.")
+            .defaultValue(Duration.ONE_HOUR)
+            .build();
+
+    ConfigKey<Integer> STATE_REFRESH_TARGETS_MAX = ConfigKeys.newIntegerConfigKey("tf.state.refresh.targets.max",
+            "Maximum number of resources targeted by each 'apply -refresh-only' command run to accept drift into the state; " +
+            "more are split across several commands to keep command lines short", 50);
+
     ConfigKey<CustomWorkflowStep> PRE_PLAN_WORKFLOW = ConfigKeys.builder(CustomWorkflowStep.class, "pre_plan.workflow")
             .description("workflow to run prior to any plan")
             .runtimeInheritance(ConfigInheritance.NONE)
@@ -110,9 +164,28 @@ public interface TerraformConfiguration extends SoftwareProcess, TerraformCommon
             .runtimeInheritance(ConfigInheritance.NONE)
             .build();
 
+    ConfigKey<Duration> SAVED_PLAN_MAX_AGE = ConfigKeys.builder(Duration.class)
+            .name("tf.apply.saved_plan.max_age")
+            .description("A plan which finds changes to apply is kept, and 'apply' uses it instead of planning again if it is no older than this " +
+                    "and the configuration, variables and state are unchanged since (and 'tf.apply.extra_args' is not set). Set to 0 to always plan afresh. Default 5m.")
+            .defaultValue(Duration.FIVE_MINUTES)
+            .build();
+
     AttributeSensor<Instant> CONFIGURATION_APPLIED = Sensors.newSensor(Instant.class, "tf.configuration.applied",
             "The most recent time a Terraform configuration has been successfully applied.");
 
+    AttributeSensor<Long> SAVED_PLAN_APPLIED_COUNT = Sensors.newLongSensor("tf.apply.saved_plan.used",
+            "Number of applies which used the plan saved by the last plan instead of planning again, since the last restart");
+
+    AttributeSensor<String> APPLY_PROGRESS = Sensors.newStringSensor("tf.apply.progress",
+            "Resources done out of the total during the current or last apply or destroy, eg '3/10' ('3/?' until the total is known)");
+
+    AttributeSensor<List<String>> APPLY_RESOURCES_IN_PROGRESS = Sensors.newSensor(new TypeToken<List<String>>() {}, "tf.apply.in_progress",
+            "Resources being changed by the apply or destroy in progress");
+
+    AttributeSensor<Duration> APPLY_ETA = Sensors.newSensor(Duration.class, "tf.apply.eta",
+            "Estimated time until the apply or destroy in progress is done, from the average time per resource so far");
+
     @SuppressWarnings({"rawtypes", "unchecked"})
     AttributeSensor<Map<String, Object>> PLAN = new BasicAttributeSensor(Map.class, "tf.plan",
             "The contents of the Terraform plan command which specifies exactly what actions will be taken upon applying the configuration.");
@@ -120,16 +193,83 @@ public interface TerraformConfiguration extends SoftwareProcess, TerraformCommon
     AttributeSensor<String> OUTPUT = Sensors.newStringSensor("tf.output",
             "The contents of the Terraform output command which inspects Terraform state or plan.");
 
-    @SuppressWarnings({ "rawtypes", "unchecked" })
-    AttributeSensor<Map<String, Map<String,Object>>> STATE = new BasicAttributeSensor(Map.class, "tf.state",
-            "A map of resource state constructed from the state file on disk which contains the state of all managed infrastructure.");
+    // not persisted: rebuilt from TF_STATE on rebind, and the resource entities persist their own entries
+    AttributeSensor<Map<String, Map<String,Object>>> STATE = Sensors.builder(new TypeToken<Map<String, Map<String,Object>>>() {}, "tf.state")
+            .description("A map of resource state constructed from the state file on disk which contains the state of all managed infrastructure.")
+            .persistence(AttributeSensor.SensorPersistenceMode.NONE)
+            .build();
 
     AttributeSensor<String> TF_STATE = Sensors.newSensor(String.class, "tf.tf_state",
             "Output from terraform state pull.");
 
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    AttributeSensor<Map<String, Map<String,Object>>> PLAN_CHANGES_BY_RESOURCE = new BasicAttributeSensor(Map.class, "tf.plan.changes.resources",
+            "Resources the current plan would change, with the actions and the attributes changing, rendered from the saved plan when drift is found.");
+
     AttributeSensor<TerraformStatus> DRIFT_STATUS = Sensors.newSensor(TerraformStatus.class,"tf.drift.status",
             "Drift status of the configuration" );
 
+    AttributeSensor<Duration> POLLING_PERIOD_EFFECTIVE = Sensors.newSensor(Duration.class, "tf.polling.period.effective",
+            "The period currently used between background refreshes, backing off while the configuration is in sync");
+
+    AttributeSensor<Long> PLAN_REUSED_COUNT = Sensors.newLongSensor("tf.plan.reused",
+            "Number of background refreshes which reused the last plan because the configuration fingerprint was unchanged");
+
+    AttributeSensor<Long> RECONCILIATIONS_EXECUTED = Sensors.newLongSensor("tf.reconcile.executed",
+            "Number of times the resource model has been reconciled with the terraform state");
+
+    AttributeSensor<Long> STATE_PERSISTENCE_SAVED = Sensors.newLongSensor("tf.state.persistence.saved",
+            "Bytes of resource state not persisted, measured as JSON at the last reconciliation: the tf.state sensor and the tf.* sensors of the resource entities, " +
+                    "whose records are persisted once as each entity's contents");
+
+    AttributeSensor<Map<String, Duration>> RECONCILIATION_TIMINGS = Sensors.newSensor(new TypeToken<Map<String, Duration>>() {}, "tf.reconcile.timings",
+            "Time taken by each phase of the last reconciliation of the resource model: parse, refresh, create, unmanage and persist");
+
+    AttributeSensor<Integer> RESOURCES_COUNT = Sensors.newIntegerSensor("tf.resources.count",
+            "Number of resources in the Terraform state");
+
+    AttributeSensor<Map<String, Integer>> RESOURCES_COUNT_BY_TYPE = Sensors.newSensor(new TypeToken<Map<String, Integer>>() {}, "tf.resources.count.by_type",
+            "Number of resources in the Terraform state of each type");
+
+    AttributeSensor<Integer> RESOURCES_DRIFTED_COUNT = Sensors.newIntegerSensor("tf.resources.drifted",
+            "Number of resources with changes reported by the last plan");
+
+    AttributeSensor<Set<String>> PHANTOM_DRIFTERS = Sensors.newSensor(new TypeToken<Set<String>>() {}, "tf.drift.phantoms",
+            "Addresses of resources learned as phantom drifters, whose state-only drift keeps recurring and is refreshed less often");
+
+    AttributeSensor<Long> RECONCILIATIONS_SKIPPED = Sensors.newLongSensor("tf.reconcile.skipped",
+            "Number of times reconciling the resource model was skipped because the terraform state serial and lineage were unchanged");
+
+    AttributeSensor<Integer> SCHEDULER_QUEUE_DEPTH = Sensors.newIntegerSensor("tf.scheduler.queue.depth",
+            "Number of terraform commands across this server waiting for a slot, when a command of this configuration last started or finished");
+
+    AttributeSensor<Integer> SCHEDULER_RUNNING = Sensors.newIntegerSensor("tf.scheduler.running",
+            "Number of terraform commands across this server running, when a command of this configuration last started or finished");
+
+    AttributeSensor<Duration> SCHEDULER_WAIT_LAST = Sensors.newSensor(Duration.class, "tf.scheduler.wait.last",
+            "How long the last terraform command for this configuration waited for a slot");
+
+    AttributeSensor<String> LOCK_OWNER = Sensors.newStringSensor("tf.lock.owner",
+            "The operation holding the terraform lock for this configuration, if any");
+
+    AttributeSensor<Integer> LOCK_QUEUE_DEPTH = Sensors.newIntegerSensor("tf.lock.queue.depth",
+            "Number of operations waiting for the terraform lock for this configuration");
+
+    AttributeSensor<Map<String, Long>> LOCK_WAIT_HISTOGRAM = Sensors.newSensor(new TypeToken<Map<String, Long>>() {}, "tf.lock.wait.histogram",
+            "Number of operations which waited for the terraform lock for each range of time, since the last restart");
+
+    AttributeSensor<Map<String, Long>> LOCK_HOLD_HISTOGRAM = Sensors.newSensor(new TypeToken<Map<String, Long>>() {}, "tf.lock.hold.histogram",
+            "Number of operations which held the terraform lock for each range of time, since the last restart");
+
+    AttributeSensor<Long> LOCK_PREEMPTIONS = Sensors.newLongSensor("tf.lock.preemptions",
+            "Number of background refreshes cancelled to give the terraform lock to an effector, since the last restart");
+
+    AttributeSensor<Long> PLAN_COALESCED_COUNT = Sensors.newLongSensor("tf.plan.coalesced",
+            "Number of 'plan' requests which waited for a plan already in progress instead of running another, since the last restart");
+
+    AttributeSensor<Long> APPLY_COALESCED_COUNT = Sensors.newLongSensor("tf.apply.coalesced",
+            "Number of 'apply' requests which joined a queued apply with the same inputs instead of running another, since the last restart");
+
     void removeDiscoveredResources();
 
     @Effector(description="Performs the Terraform apply command which will create all of the infrastructure specified by the configuration. " +
@@ -144,6 +284,19 @@ public interface TerraformConfiguration extends SoftwareProcess, TerraformCommon
     @Effector(description = "Force a re-discovery of resources (clearing all first)")
     void rediscoverResources();
 
+    @Effector(description = "Find Terraform resources, returning their flattened attributes and whether the last plan reported changes to them. " +
+            "All criteria are optional. Works in all resource modes, and is the way to inspect resources in TABLE mode.")
+    List<Map<String, Object>> queryResources(
+            @EffectorParam(name = "address", description = "Wildcard pattern for the resource address, eg 'module.web.*'") @Nullable String address,
+            @EffectorParam(name = "type", description = "Wildcard pattern for the resource type, eg 'aws_*'") @Nullable String type,
+            @EffectorParam(name = "attribute", description = "Flattened attribute the resource must have, eg 'value.instance_type'") @Nullable String attribute,
+            @EffectorParam(name = "value", description = "Value the attribute must have; if no attribute is given, value any attribute must have") @Nullable String value,
+            @EffectorParam(name = "limit", description = "Maximum number of resources to return; 0 for no limit", defaultValue = "100") @Nullable Integer limit);
+
+    @Effector(description = "Forget resources learned as phantom drifters, so their drift is refreshed on every plan again until relearned; returns the addresses forgotten")
+    Set<String> forgetPhantomDrifters(
+            @EffectorParam(name = "address", description = "Wildcard pattern for the resource addresses to forget; all if omitted") @Nullable String address);
+
     @Effector(description = "Delete any terraform lock file (may be needed if management server interrupted; done automatically for stop, as we manage mutex locking)")
     public void clearTerraformLock();
 
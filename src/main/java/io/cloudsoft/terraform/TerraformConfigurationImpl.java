@@ -3,19 +3,32 @@ package io.cloudsoft.terraform;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Function;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Supplier;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.gson.internal.LinkedTreeMap;
+import io.cloudsoft.terraform.TerraformDriver.LockMode;
 import io.cloudsoft.terraform.entity.DataResource;
 import io.cloudsoft.terraform.entity.ManagedResource;
+import io.cloudsoft.terraform.entity.ResourceGroup;
 import io.cloudsoft.terraform.entity.TerraformResource;
 import io.cloudsoft.terraform.parser.EntityParser;
+import io.cloudsoft.terraform.parser.PlanLogParser;
+import io.cloudsoft.terraform.parser.ResourceRecord;
+import io.cloudsoft.terraform.parser.ResourceTable;
+import io.cloudsoft.terraform.parser.ApplyLogParser;
 import io.cloudsoft.terraform.parser.StateParser;
+import io.cloudsoft.terraform.parser.TfStateParser;
 import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.api.entity.EntitySpec;
 import org.apache.brooklyn.api.location.Location;
 import org.apache.brooklyn.api.location.MachineLocation;
 import org.apache.brooklyn.api.location.MachineProvisioningLocation;
 import org.apache.brooklyn.api.mgmt.Task;
+import org.apache.brooklyn.api.mgmt.rebind.RebindManager;
 import org.apache.brooklyn.api.sensor.AttributeSensor;
 import org.apache.brooklyn.config.ConfigKey;
 import org.apache.brooklyn.core.annotation.Effector;
@@ -35,7 +48,9 @@ import org.apache.brooklyn.entity.software.base.SoftwareProcessImpl;
 import org.apache.brooklyn.feed.function.FunctionFeed;
 import org.apache.brooklyn.feed.function.FunctionPollConfig;
 import org.apache.brooklyn.tasks.kubectl.ContainerTaskFactory;
+import org.apache.brooklyn.util.collections.MutableList;
 import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.collections.MutableSet;
 import org.apache.brooklyn.util.core.config.ConfigBag;
 import org.apache.brooklyn.util.core.task.DynamicTasks;
 import org.apache.brooklyn.util.core.task.Tasks;
@@ -43,22 +58,19 @@ import org.apache.brooklyn.util.core.task.system.SimpleProcessTaskFactory;
 import org.apache.brooklyn.util.exceptions.Exceptions;
 import org.apache.brooklyn.util.guava.Maybe;
 import org.apache.brooklyn.util.text.Identifiers;
-import org.apache.brooklyn.util.text.StringEscapes;
 import org.apache.brooklyn.util.text.Strings;
-import org.apache.brooklyn.util.time.CountdownTimer;
+import org.apache.brooklyn.util.text.WildcardGlobs;
 import org.apache.brooklyn.util.time.Duration;
-import org.apache.brooklyn.util.time.Time;
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 import static io.cloudsoft.terraform.TerraformDriver.*;
 import static io.cloudsoft.terraform.entity.StartableManagedResource.RESOURCE_STATUS;
@@ -70,10 +82,24 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
     private static final String TF_OUTPUT_SENSOR_PREFIX = "tf.output";
 
     private Map<String, Object> lastCommandOutputs = Collections.synchronizedMap(Maps.newHashMapWithExpectedSize(3));
-    private AtomicReference<Thread> configurationChangeInProgress = new AtomicReference(null);
 
     private Boolean applyDriftComplianceCheckToResources = false;
 
+    private transient TerraformLock lock;
+    private transient TerraformSingleFlight singleFlight;
+    private transient TerraformPollingSchedule pollingSchedule;
+    private transient TerraformPlanCache planCache;
+    private transient TerraformDriftHistory driftHistory;
+    /** set when the current refresh has read outputs from the pulled state, so 'terraform output' need not be run */
+    private transient ThreadLocal<Boolean> outputsUpdatedFromState = new ThreadLocal<>();
+    /** lineage, serial and other inputs of the last reconciliation of the model with the state, so it can be skipped if unchanged */
+    private transient String lastReconciledKey;
+    private transient TerraformResourceIndex resourceIndex;
+    /** in TABLE mode, all resources in the state; rebuilt from {@link TerraformConfiguration#TF_STATE} on rebind */
+    private transient volatile ResourceTable resourceTable;
+    /** addresses of the resources the last plan reported changes to */
+    private transient volatile Set<String> driftedAddresses = Collections.emptySet();
+
     @Override
     public void init() {
         super.init();
@@ -114,8 +140,65 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
     @Override
     public void rebind() {
         lastCommandOutputs = Collections.synchronizedMap(Maps.newHashMapWithExpectedSize(3));
-        configurationChangeInProgress = new AtomicReference(null);
+        lock = null;
+        singleFlight = null;
+        pollingSchedule = null;
+        planCache = null;
+        driftHistory = null;
+        outputsUpdatedFromState = new ThreadLocal<>();
+        lastReconciledKey = null;
+        resourceIndex = null;
+        resourceTable = null;
+        driftedAddresses = Collections.emptySet();
         super.rebind();
+        restoreStateFromTfState();
+    }
+
+    /** {@link TerraformConfiguration#STATE} is not persisted, so rebuild it from the pulled state, which is */
+    private void restoreStateFromTfState() {
+        String tfState = sensors().get(TerraformConfiguration.TF_STATE);
+        if (Strings.isBlank(tfState)) return;
+        try {
+            sensors().set(TerraformConfiguration.STATE, freeze(modelledResources(TfStateParser.parseResources(tfState, config().get(STATE_PARSE_PARALLEL_THRESHOLD)))));
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Unable to restore terraform resource state at "+this+" on rebind; will be updated on next refresh: "+e);
+        }
+    }
+
+    ResourcesMode resourcesMode() {
+        ResourcesMode mode = config().get(RESOURCES_MODE);
+        if (mode!=null) return mode;
+        return Boolean.FALSE.equals(config().get(TERRAFORM_RESOURCE_ENTITIES_ENABLED)) ? ResourcesMode.NONE : ResourcesMode.ENTITIES;
+    }
+
+    /**
+     * Publishes the resource counts and, in TABLE mode, keeps all the resources in the {@link ResourceTable}.
+     * @return the resources to publish in {@link TerraformConfiguration#STATE} and, unless in NONE mode, to model as entities:
+     * in TABLE mode only those of the types in {@link TerraformConfiguration#RESOURCES_TABLE_ENTITY_TYPES}, otherwise all
+     */
+    private Map<String, Map<String,Object>> modelledResources(Map<String, Map<String,Object>> state) {
+        Map<String, Integer> countByType = MutableMap.of();
+        state.values().forEach(r -> countByType.merge(String.valueOf(r.get("resource.type")), 1, Integer::sum));
+        sensors().set(RESOURCES_COUNT, state.size());
+        sensors().set(RESOURCES_COUNT_BY_TYPE, countByType);
+
+        if (resourcesMode()!=ResourcesMode.TABLE) {
+            resourceTable = null;
+            return state;
+        }
+        ResourceTable table = ResourceTable.of(state);
+        resourceTable = table;
+        List<String> entityTypes = Optional.ofNullable(config().get(RESOURCES_TABLE_ENTITY_TYPES)).orElse(Collections.emptyList());
+        return table.select(type -> entityTypes.stream().anyMatch(glob -> WildcardGlobs.isGlobMatched(glob, type)));
+    }
+
+    /** resource records are shared with the resource entities once reconciled, so they must not change after */
+    private static Map<String, Map<String,Object>> freeze(Map<String, Map<String,Object>> state) {
+        state.values().forEach(r -> {
+            if (r instanceof ResourceRecord) ((ResourceRecord) r).freeze();
+        });
+        return state;
     }
 
     @Override
@@ -129,15 +212,24 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
         getChildren().forEach(c -> c.sensors().set(Attributes.SERVICE_STATE_ACTUAL, Lifecycle.STOPPED));
 
         // when stopped, unmanage all the things we created; we do not need to remove them as children
-        getChildren().forEach(child -> {
-            if (child instanceof BasicGroup){
-                child.getChildren().stream().filter(gc -> gc instanceof TerraformResource)
-                                .forEach(Entities::unmanage);
-            }
-            if (child instanceof TerraformResource){
-                Entities.unmanage(child);
-            }
-        });
+        List<Entity> resources = MutableList.of();
+        List<Entity> groups = MutableList.of();
+        getChildren().forEach(child -> collectResources(child, resources, groups));
+        unmanageResources(resources);
+        unmanageResources(groups);
+        resourceIndex().invalidate();
+    }
+
+    /** adds the entity to the resources if it is one, or else the resources it groups; nested {@link ResourceGroup}s are added after their contents */
+    private static void collectResources(Entity entity, List<Entity> resources, List<Entity> groups) {
+        if (entity instanceof TerraformResource) {
+            resources.add(entity);
+        } else if (entity instanceof ResourceGroup) {
+            entity.getChildren().forEach(child -> collectResources(child, resources, groups));
+            groups.add(entity);
+        } else if (entity instanceof BasicGroup) {
+            entity.getChildren().stream().filter(gc -> gc instanceof TerraformResource).forEach(resources::add);
+        }
     }
 
     @Override
@@ -150,11 +242,41 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
                 .entity(this)
                 .period(getConfig(TerraformCommons.POLLING_PERIOD))
                 .poll(FunctionPollConfig.forMultiple().name("Refresh terraform")
-                        .supplier(new RefreshTerraformModelAndSensors(this, true))
+                        .supplier(new PollTerraformModelAndSensors(this))
                         .onException(new QueueAndRunFailedTasks()) )
                 .build());
     }
 
+    synchronized TerraformLock lock() {
+        if (lock==null) lock = new TerraformLock(this, task -> getDriver().cancelCommand(task));
+        return lock;
+    }
+
+    synchronized TerraformSingleFlight singleFlight() {
+        if (singleFlight==null) singleFlight = new TerraformSingleFlight(this);
+        return singleFlight;
+    }
+
+    synchronized TerraformPollingSchedule pollingSchedule() {
+        if (pollingSchedule==null) pollingSchedule = new TerraformPollingSchedule(this);
+        return pollingSchedule;
+    }
+
+    synchronized TerraformPlanCache planCache() {
+        if (planCache==null) planCache = new TerraformPlanCache(this);
+        return planCache;
+    }
+
+    synchronized TerraformDriftHistory driftHistory() {
+        if (driftHistory==null) driftHistory = new TerraformDriftHistory(this);
+        return driftHistory;
+    }
+
+    synchronized TerraformResourceIndex resourceIndex() {
+        if (resourceIndex==null) resourceIndex = new TerraformResourceIndex(this);
+        return resourceIndex;
+    }
+
     static class QueueAndRunFailedTasks implements Function<Throwable, Void> {
         @Override
         public Void apply(Throwable e) {
@@ -175,51 +297,211 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
      *  Since `terraform plan` is the only command reacting to changes, it makes sense entities to change according to its results.
      */
     private void updateDeploymentState() {
-        final String statePull = retryUntilLockAvailable("terraform state pull", () -> getDriver().runStatePullTask());
+        final String statePull = retryUntilLockAvailable("terraform state pull", LockMode.SHARED, () -> getDriver().runStatePullTask());
         sensors().set(TerraformConfiguration.TF_STATE, statePull);
 
-        // TODO would be nice to deprecate this as 'show' is a bit more expensive than other things
-        final String show = retryUntilLockAvailable("terraform show", () -> getDriver().runShowTask());
-        Map<String, Map<String,Object>> state = StateParser.parseResources(show);
+        // if the state is unchanged, and so is what reconciliation depends on, the model is already up to date
+        String stateVersion = TfStateParser.parseStateVersion(statePull);
+        String reconciledKey = stateVersion==null ? null : stateVersion + ":" + sensors().get(DRIFT_STATUS) + ":" + resourcesMode() + ":" + config().get(RESOURCES_TABLE_ENTITY_TYPES) + ":" + config().get(RESOURCES_GROUPING);
+        if (reconciledKey!=null && reconciledKey.equals(lastReconciledKey)) {
+            LOG.trace("Terraform state unchanged at "+this+" ("+stateVersion+"); skipping reconciliation");
+            sensors().set(RECONCILIATIONS_SKIPPED, Optional.ofNullable(sensors().get(RECONCILIATIONS_SKIPPED)).orElse(0L) + 1);
+            outputsUpdatedFromState.set(true);
+            return;
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Map<String, Duration> timings = MutableMap.of();
+
+        // resources and outputs are both read from the pulled state, rather than also running 'show' and 'output'
+        // each resource record is shared by this sensor and the resource entity's contents and sensors, and only the latter is persisted
+        Map<String, Map<String,Object>> state = modelledResources(TfStateParser.parseResources(statePull, config().get(STATE_PARSE_PARALLEL_THRESHOLD)));
+        boolean resourceEntitiesEnabled = resourcesMode()!=ResourcesMode.NONE;
+        if (resourceEntitiesEnabled) {
+            EntityParser.annotateManagedResources(state, this);
+        }
         sensors().set(TerraformConfiguration.STATE, state);
+        sensors().set(OUTPUT, new OutputSuccessFunction(this).apply(TfStateParser.parseOutputsAsJson(statePull)));
+        outputsUpdatedFromState.set(true);
+        timings.put("parse", lap(stopwatch));
 
-        if (!Boolean.FALSE.equals(config().get(TERRAFORM_RESOURCE_ENTITIES_ENABLED))) {
+        if (resourceEntitiesEnabled) {
             Map<String, Map<String, Object>> resources = MutableMap.copyOf(state);
-            updateResources(resources, this, ManagedResource.class);
-            updateDataResources(resources, DataResource.class);
+            List<Entity> childrenToRemove = MutableList.of();
+            List<Entity> childrenUpdated = MutableList.of();
+            childrenToRemove.addAll(updateResources(resources, state, ManagedResource.class, childrenUpdated));
+            childrenToRemove.addAll(updateDataResources(resources, state, DataResource.class, childrenUpdated));
+            timings.put("refresh", lap(stopwatch));
+
+            List<Entity> created = MutableList.of();
             if (!resources.isEmpty()) { // new resource, new child must be created
-                processResources(resources, this);
+                created = Boolean.TRUE.equals(config().get(RESOURCES_GROUPING))
+                        ? processResources(resources, this, resourceIndex().getDataResourcesGroup(), this::resourceGroupFor)
+                        : processResources(resources, this, resourceIndex().getDataResourcesGroup());
+                resourceIndex().added(created);
+            }
+            timings.put("create", lap(stopwatch));
+
+            Set<Entity> groupsToUpdate = resourceGroupsOf(Iterables.concat(created, childrenUpdated, childrenToRemove));
+            unmanageResources(childrenToRemove);
+            updateResourceGroups(groupsToUpdate);
+            timings.put("unmanage", lap(stopwatch));
+
+            if (!created.isEmpty() || !childrenToRemove.isEmpty()) {
+                LOG.debug("Reconciled resources at "+this+": created "+created.size()+", removed "+childrenToRemove.size()+"; timings "+timings);
+                checkpointPersistence();
+                timings.put("persist", lap(stopwatch));
             }
         }
+        sensors().set(RECONCILIATION_TIMINGS, timings);
+        freeze(state);
+        // this sensor and the resource entities' tf.* sensors are not persisted, as each record is persisted once as its entity's contents
+        long notPersisted = ResourceRecord.serializedSize(state);
+        if (resourceEntitiesEnabled) notPersisted += state.values().stream().mapToLong(ResourceRecord::sensorsSerializedSize).sum();
+        sensors().set(STATE_PERSISTENCE_SAVED, notPersisted);
+        lastReconciledKey = reconciledKey;
+        sensors().set(RECONCILIATIONS_EXECUTED, Optional.ofNullable(sensors().get(RECONCILIATIONS_EXECUTED)).orElse(0L) + 1);
     }
 
-    private static Predicate<? super Entity> runningOrSync = c -> !c.sensors().getAll().containsKey(RESOURCE_STATUS) || (!c.sensors().get(RESOURCE_STATUS).equals("running") &&
-            c.getParent().sensors().get(DRIFT_STATUS).equals(TerraformStatus.SYNC));
+    /** whether the child has no status, or should be marked running because the configuration is in sync; its parent may be a {@link ResourceGroup} */
+    private boolean isRunningOrSync(Entity c) {
+        return !c.sensors().getAll().containsKey(RESOURCE_STATUS) || (!c.sensors().get(RESOURCE_STATUS).equals("running") &&
+                TerraformStatus.SYNC.equals(sensors().get(DRIFT_STATUS)));
+    }
 
-    private void updateResources(Map<String, Map<String,Object>> resourcesToSensors, Entity parent, Class<? extends TerraformResource> clazz) {
+    /**
+     * Reconciles the children of the given type with the resources, removing those matched from the map so that only new resources remain.
+     * Children are only refreshed if the hash of their contents has changed; for the others the entry in the state, if given,
+     * is replaced by the child's contents, so that the two stay shared.
+     * @param updated collects the children refreshed or whose status changed
+     * @return the children no longer reported by terraform, to be {@link #unmanageResources(Collection) unmanaged}
+     */
+    private List<Entity> updateResources(Map<String, Map<String,Object>> resourcesToSensors, @Nullable Map<String, Map<String,Object>> state, Class<? extends TerraformResource> clazz,
+                                         Collection<Entity> updated) {
         List<Entity> childrenToRemove = new ArrayList<>();
-        parent.getChildren().stream().filter(c -> clazz.isAssignableFrom(c.getClass())).forEach(c -> {
-            if (runningOrSync.test(c)){
+        Map<Entity, Map<String,Object>> childrenToRefresh = new LinkedHashMap<>();
+        int unchanged = 0;
+        for (Entity c : resourceIndex().getResources(clazz)) {
+            boolean statusChanged = false;
+            if (isRunningOrSync(c)){
                 c.sensors().set(RESOURCE_STATUS, "running");
+                statusChanged = true;
             }
-            if (resourcesToSensors.containsKey(c.getConfig(TerraformResource.ADDRESS))) { //child in resource set, update sensors
-                ((TerraformResource) c).refreshSensors(resourcesToSensors.get(c.getConfig(TerraformResource.ADDRESS)));
-                resourcesToSensors.remove(c.getConfig(TerraformResource.ADDRESS));
-            } else {
+            String address = c.getConfig(TerraformResource.ADDRESS);
+            Map<String,Object> resource = resourcesToSensors.remove(address);
+            if (resource == null) {
                 childrenToRemove.add(c);
+            } else if (EntityParser.contentHash(resource).equals(c.sensors().get(TerraformResource.STATE_CONTENTS_HASH))) {
+                unchanged++;
+                Map<String,Object> contents = c.getConfig(TerraformResource.STATE_CONTENTS);
+                if (state != null && contents != null) state.put(address, contents);
+                if (statusChanged && c instanceof ManagedResource) ((ManagedResource) c).updateResourceState();
+                if (statusChanged) updated.add(c);
+            } else {
+                childrenToRefresh.put(c, resource);
             }
-        });
+        }
+        childrenToRefresh.forEach((c, resource) -> ((TerraformResource) c).refreshSensors(resource));
+        updated.addAll(childrenToRefresh.keySet());
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Reconciled "+clazz.getSimpleName()+" children of "+this+": "+childrenToRefresh.size()+" changed, "+unchanged+" unchanged, "
+                    +childrenToRemove.size()+" removed, "+resourcesToSensors.size()+" not yet matched");
+        }
         if (!childrenToRemove.isEmpty()) {
-            LOG.debug("Removing "+clazz+" resources no longer reported by Terraform at "+parent+": "+childrenToRemove);
-            childrenToRemove.forEach(Entities::unmanage);   // unmanage nodes that are no longer relevant (removing them as children causes leaks)
+            LOG.debug("Removing "+clazz+" resources no longer reported by Terraform at "+this+": "+childrenToRemove);
         }
+        return childrenToRemove;
     }
 
     /**
      * Updates Data resources
      */
-    private void updateDataResources(Map<String, Map<String,Object>> resources, Class<? extends TerraformResource> clazz) {
-        EntityParser.getDataResourcesGroup(this).ifPresent(c -> updateResources(resources, c, clazz));
+    private List<Entity> updateDataResources(Map<String, Map<String,Object>> resources, @Nullable Map<String, Map<String,Object>> state, Class<? extends TerraformResource> clazz,
+                                             Collection<Entity> updated) {
+        if (!resourceIndex().getDataResourcesGroup().isPresent()) return Collections.emptyList();
+        return updateResources(resources, state, clazz, updated);
+    }
+
+    /**
+     * The group for a managed resource when grouping is enabled: the group for the resource if it is an instance created by <code>count</code>
+     * or <code>for_each</code>, otherwise for its module, or this entity for resources in the root module.
+     * Groups are created as needed, nested in the groups of their enclosing modules.
+     */
+    private Entity resourceGroupFor(Map<String,Object> resource) {
+        List<String> groupAddresses = StateParser.moduleAncestors((String) resource.get("resource.module"));
+        String unindexedAddress = StateParser.unindexedAddress(String.valueOf(resource.get("resource.address")));
+        if (unindexedAddress!=null) groupAddresses.add(unindexedAddress);
+        Entity parent = this;
+        for (String address : groupAddresses) {
+            Entity groupParent = parent;
+            parent = resourceIndex().getGroup(address).orElseGet(() -> {
+                Entity group = groupParent.addChild(EntitySpec.create(ResourceGroup.class).configure(ResourceGroup.GROUP_ADDRESS, address));
+                resourceIndex().added(Collections.singleton(group));
+                return group;
+            });
+        }
+        return parent;
+    }
+
+    /** the {@link ResourceGroup}s containing the given entities, directly or through nested groups; must be called before they are unmanaged */
+    private static Set<Entity> resourceGroupsOf(Iterable<? extends Entity> resources) {
+        Set<Entity> result = MutableSet.of();
+        resources.forEach(r -> {
+            for (Entity group = r.getParent(); group instanceof ResourceGroup && result.add(group); group = group.getParent()) {}
+        });
+        return result;
+    }
+
+    /** updates the summaries of the given groups, deepest first so nested groups are counted as updated, and unmanages those left empty */
+    private void updateResourceGroups(Set<Entity> groups) {
+        if (groups.isEmpty()) return;
+        List<Entity> deepestFirst = MutableList.copyOf(groups);
+        deepestFirst.sort(Comparator.comparingInt(TerraformConfigurationImpl::depth).reversed());
+        List<Entity> empty = MutableList.of();
+        for (Entity group : deepestFirst) {
+            if (!Entities.isManaged(group)) continue;
+            if (group.getChildren().stream().noneMatch(c -> Entities.isManaged(c) && !empty.contains(c))) {
+                empty.add(group);
+            } else {
+                ((ResourceGroup) group).updateSummary();
+            }
+        }
+        unmanageResources(empty);
+    }
+
+    private static int depth(Entity entity) {
+        int depth = 0;
+        for (Entity parent = entity.getParent(); parent != null; parent = parent.getParent()) depth++;
+        return depth;
+    }
+
+    /** unmanages the given resource entities together, removing them from the index first so they are not looked up while being unmanaged */
+    private void unmanageResources(Collection<? extends Entity> resources) {
+        if (resources.isEmpty()) return;
+        resources.forEach(resourceIndex()::removed);
+        resources.forEach(Entities::unmanage);   // unmanage nodes that are no longer relevant (removing them as children causes leaks)
+    }
+
+    /**
+     * Persists the entities created and unmanaged by a reconciliation as one delta now, rather than leaving them to the periodic persister,
+     * so that a large discovery is checkpointed once it completes.
+     */
+    private void checkpointPersistence() {
+        RebindManager rebindManager = getManagementContext().getRebindManager();
+        if (rebindManager.isPersistenceRunning()) {
+            try {
+                rebindManager.forcePersistNow(false, null);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Unable to persist resource changes at "+this+" (will be retried by the periodic persister): "+e);
+            }
+        }
+    }
+
+    private static Duration lap(Stopwatch stopwatch) {
+        Duration result = Duration.millis(stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        stopwatch.reset().start();
+        return result;
     }
 
     protected abstract static class RetryingProvider<T> implements Supplier<T> {
@@ -265,15 +547,119 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
             this.doTerraformRefresh = doTerraformRefresh;
         }
 
+        @Override
+        public Void get() {
+            TerraformPollingSchedule schedule = deproxied(entity).pollingSchedule();
+            long start = System.currentTimeMillis();
+            TerraformStatus status = null;
+            boolean preempted = false;
+            schedule.onRefreshStarted();
+            try {
+                preempted = !refreshWithLocks();
+                status = entity.sensors().get(DRIFT_STATUS);
+                return null;
+            } finally {
+                if (preempted) schedule.onRefreshPreempted();
+                else schedule.onRefreshCompleted(status, Duration.millis(System.currentTimeMillis() - start));
+                entity.sensors().set(POLLING_PERIOD_EFFECTIVE, schedule.getPeriod());
+            }
+        }
+
+        /** a plan run holding the lock shared, to be processed holding it exclusively */
+        private static class PlanRun {
+            long exclusiveReleases;
+            String fingerprint;
+            String filename;
+            String planOutputJsonLines;
+        }
+
+        /**
+         * Runs the plan holding the lock {@link LockMode#SHARED shared}, as planning only reads and need not wait for other reads,
+         * then processes it holding the lock exclusively, as that may apply state changes and updates the model.
+         * If an exclusive operation such as an apply finished in between, the plan may be stale, so it is discarded;
+         * such operations update the model afterwards, and the next plan runs at the usual cadence.
+         * <p>
+         * When run in the background the plan is preemptible: if an effector needs the lock, the plan is cancelled and its file removed.
+         *
+         * @return false if the plan was preempted
+         */
+        private boolean refreshWithLocks() {
+            TerraformConfigurationImpl impl = deproxied(entity);
+            String summary = name==null ? getClass().getSimpleName() : name;
+            PlanRun plan = new PlanRun();
+            boolean planned;
+            try {
+                planned = impl.lock().callWithLock(summary+" (plan)", LockMode.SHARED,
+                        () -> runPlan(plan), Duration.ONE_MINUTE, true);
+            } catch (TerraformLock.PreemptedException e) {
+                LOG.debug("Refresh at "+entity+" preempted by an effector; will run again after the base polling period: "+e.getMessage());
+                removePlanFile(plan.filename);
+                return false;
+            }
+            if (!planned) return true;
+            impl.retryUntilLockAvailable(summary, LockMode.EXCLUSIVE, () -> {
+                if (impl.lock().getExclusiveReleases()!=plan.exclusiveReleases) {
+                    LOG.debug("Terraform configuration at "+entity+" changed while planning; discarding plan");
+                    removePlanFile(plan.filename);
+                    return null;
+                }
+                processPlan(plan);
+                return null;
+            }, Duration.seconds(-1));
+            return true;
+        }
+
         @Override
         protected Void getWhenHasLock() {
+            PlanRun plan = new PlanRun();
+            if (runPlan(plan)) processPlan(plan);
+            return null;
+        }
+
+        /** fills in the plan; the plan file name is set before the plan runs so it can be removed if the plan is cancelled
+         * @return false if the last plan can be reused */
+        private boolean runPlan(PlanRun plan) {
+            boolean tfCloudMode = Boolean.TRUE.equals(entity.config().get(TERRAFORM_CLOUD_MODE));
+            plan.exclusiveReleases = deproxied(entity).lock().getExclusiveReleases();
+
+            TerraformPlanCache planCache = deproxied(entity).planCache();
+            if (TerraformCommandScheduler.isBackground() && !tfCloudMode && !planCache.isRemoteBackend()) {
+                try {
+                    plan.fingerprint = TerraformPlanCache.fingerprint(getDriver());
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    LOG.debug("Unable to fingerprint configuration at "+entity+"; running full plan: "+e);
+                }
+                if (planCache.isReusable(plan.fingerprint, entity.sensors().get(DRIFT_STATUS))) {
+                    LOG.debug("Configuration fingerprint unchanged at "+entity+"; reusing last plan");
+                    entity.sensors().set(PLAN_REUSED_COUNT, planCache.onReused());
+                    return false;
+                }
+            }
+
+            plan.filename = tfCloudMode ? null : "../"+ Identifiers.makeRandomId(8)+".plan";
+            plan.planOutputJsonLines = tfCloudMode ? "" : getDriver().runJsonPlanTask(doTerraformRefresh, plan.filename, null);
+            return true;
+        }
+
+        private void processPlan(PlanRun plan) {
+            deproxied(entity).outputsUpdatedFromState.remove();
             PlanProcessingFunction planProcessor = new PlanProcessingFunction(entity);
             planProcessor.ignoreStateChangeBecauseGoingToReplan = true;
             boolean tfCloudMode = Boolean.TRUE.equals(entity.config().get(TERRAFORM_CLOUD_MODE));
-            String filename = tfCloudMode ? null : "../"+ Identifiers.makeRandomId(8)+".plan";
-            String planOutputJsonLines = tfCloudMode ? "" : getDriver().runJsonPlanTask(doTerraformRefresh, filename, null);
+            TerraformPlanCache planCache = deproxied(entity).planCache();
+            String fingerprint = plan.fingerprint;
+            String filename = plan.filename;
+            String planOutputJsonLines = plan.planOutputJsonLines;
+            planProcessor.planFile = filename;
+            TerraformDriftHistory driftHistory = deproxied(entity).driftHistory();
+            planProcessor.driftToLeaveOut = driftHistory.getDriftToLeaveOut();
             Map<String, Object> planSensorValue = planProcessor.apply(planOutputJsonLines);
-            boolean statePullNeeded = false;
+            boolean stateChanged = false;
+            if (!tfCloudMode) {
+                driftHistory.onPlan(setOrEmpty(planSensorValue.get(RESOURCES_DRIFT_DETECTED_STATE_ONLY)),
+                        setOrEmpty(planSensorValue.get(RESOURCES_DRIFT_DETECTED_CHANGES_NEEDED)), planProcessor.driftToLeaveOut);
+            }
 
             planProcessor.ignoreStateChangeBecauseGoingToReplan = false;
 
@@ -288,7 +674,8 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
              * then we want to refresh it.
              * But if it has planned_change (with or without resource_drift) we should _not_ refresh it.
              *
-             * Annoyingly `terraform apply -refresh-only <plan_file>` ignores the refresh only.
+             * Annoyingly `terraform apply -refresh-only <plan_file>` ignores the refresh only,
+             * so we run `apply -refresh-only -target=...` for those resources instead, which needs no plan and no replan.
              */
 
             Set<String> driftDetectedSomeResourcesAreStateChangeOnly = (Set) planSensorValue.get(RESOURCES_DRIFT_DETECTED_STATE_ONLY);
@@ -296,65 +683,113 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
             if (driftDetectedSomeResourcesAreStateChangeOnly!=null && !driftDetectedSomeResourcesAreStateChangeOnly.isEmpty()) {
 
                 LOG.debug("Apply state change only updates to resources: "+driftDetectedSomeResourcesAreStateChangeOnly);
-                if (!((Map) planSensorValue.get(RESOURCES_CHANGES_PLANNED)).isEmpty()) {
-                    // but some resources had planned changes, so need to first construct a plan which is changes only
-                    planOutputJsonLines = getDriver().runJsonPlanTask(doTerraformRefresh, filename,
-                            driftDetectedSomeResourcesAreStateChangeOnly.stream().map(r ->
-                                    " -target="+ StringEscapes.BashStringEscapes.wrapBash(r)).collect(Collectors.joining())
-                    );
-                    // annoyingly if we come into this block, *outputs* will not be refreshed by applying this plan
-                    // IE an `apply -target=X` _will_ update outputs, but a `plan -target=X -out=Plan` then `apply Plan` will not
-                    // seems there is no way to do an apply to reliably update outputs and resources without planned changes
-                    // according to https://github.com/hashicorp/terraform/issues/22864 outputs _should_ be updated _if_ all contributing resources are targeted;
-                    // but in tests, that doesn't happen at least in the case where the outputs are static
-                    planSensorValue = planProcessor.apply(planOutputJsonLines);
-                }
-
-                if (!((Map) planSensorValue.get(RESOURCES_CHANGES_PLANNED)).isEmpty()) {
-                    // unlikely - would only happen if between the first plan above and the second plan above something changed
-                    // meaning TF found planned_changes to the resources which in the first plan didn't have planned changes
-                    LOG.debug("Attempt to replan on state-change-only resources generated resources that now have planned changes: "+planSensorValue.get(RESOURCES_CHANGES_PLANNED));
-                    // skip the application of that plan; just delete the plan
-                    if (filename!=null) {
-                        getDriver().runQueued(getDriver().newCommandTaskFactory(true,
-                                        getDriver().makeCommandInTerraformActiveDir(
-                                                "rm " + filename))
-                                .summary("clean up")
-                                .newTask().asTask());
-                    }
+                // so refresh just those resources, without the plan file, and the plan found is otherwise still current
+                stateChanged = true;
+                Map<String, Object> reconciled = acceptStateOnlyDrift(driftDetectedSomeResourcesAreStateChangeOnly, planOutputJsonLines, planProcessor.driftToLeaveOut);
+                if (reconciled!=null) {
+                    planSensorValue = planProcessor.process(reconciled);
+                    removePlanFile(filename);
 
                 } else {
-                    getDriver().runQueued(getDriver().newCommandTaskFactory(true,
-                                    getDriver().makeCommandInTerraformActiveDir(
-                                            getDriver().prependTerraformExecutable(getDriver().applySubcommand(filename))
-                                                    + (filename!=null ? " && " + "rm " + filename : "")))
-                            .summary("terraform apply (limited to state changes) and clean up")
-                            .newTask().asTask());
+                    // not sure what the refresh did, so replan, keeping the plan file so any changes can be rendered from it
+                    removePlanFile(filename);
+                    filename = tfCloudMode ? null : "../"+ Identifiers.makeRandomId(8)+".plan";
+                    planOutputJsonLines = getDriver().runJsonPlanTask(doTerraformRefresh, filename, null);
+                    planProcessor.planFile = filename;
+                    planSensorValue = planProcessor.apply(planOutputJsonLines);
+                    // made from the refreshed state, so fingerprint afresh
+                    keepPlanFileForApply(filename, planSensorValue, null);
                 }
 
-                // replan, if in this block
-                planOutputJsonLines = getDriver().runJsonPlanTask(doTerraformRefresh);
-                statePullNeeded = true;
-
             } else {
                 // either all resources in sync or have planned changes or output changed; in this case do not refresh,
                 // we can simply use the plan that was found
-                if (filename!=null) {
-                    getDriver().runQueued(getDriver().newCommandTaskFactory(true,
-                                    getDriver().makeCommandInTerraformActiveDir(
-                                            "rm " + filename))
-                            .summary("clean up")
-                            .newTask().asTask());
-                }
+                keepPlanFileForApply(filename, planSensorValue, fingerprint);
             }
 
-            if (statePullNeeded) {
-                planSensorValue = planProcessor.apply(planOutputJsonLines);
+            entity.sensors().set(PLAN, planSensorValue);
+            if (!Boolean.TRUE.equals(deproxied(entity).outputsUpdatedFromState.get())) {
+                deproxied(entity).refreshOutput(false);
             }
+            deproxied(entity).outputsUpdatedFromState.remove();
+            // if state was changed the fingerprint is stale; otherwise keep the one we have (effector plans do not compute one)
+            planCache.onFullPlan(stateChanged ? null : fingerprint!=null ? fingerprint : planCache.getFingerprint());
+        }
 
-            entity.sensors().set(PLAN, planSensorValue);
-            deproxied(entity).refreshOutput(false);
-            return null;
+        /**
+         * Accepts the drift at the given resources into the state with a targeted <code>apply -refresh-only</code>.
+         * @return the plan as it now stands, ie without that drift, or null if the outcome is not clear and a full replan is needed
+         */
+        private Map<String, Object> acceptStateOnlyDrift(Set<String> addresses, String planOutputJsonLines, Set<String> driftLeftOut) {
+            Set<String> accepted;
+            try {
+                accepted = PlanLogParser.parseRefreshOnlyApply(getDriver().runRefreshOnlyApplyTask(addresses), addresses);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.debug("Unable to refresh state-only drift at "+entity+"; will replan: "+e);
+                return null;
+            }
+            if (accepted==null) {
+                LOG.debug("Refresh of state-only drift at "+entity+" was not conclusive; will replan");
+                return null;
+            }
+            Map<String, Object> result = StateParser.parsePlanLogEntries(entity, planOutputJsonLines, MutableSet.copyOf(accepted).putAll(driftLeftOut));
+            if (TerraformStatus.STATE_CHANGE.equals(result.get(PLAN_STATUS)) || result.containsKey("tf.output.changes")) {
+                // outputs may not have been refreshed by a targeted apply
+                LOG.debug("Plan at "+entity+" may still be out of date after refreshing state-only drift; will replan");
+                return null;
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Set<String> setOrEmpty(Object addresses) {
+            return addresses instanceof Set ? (Set<String>) addresses : Collections.emptySet();
+        }
+
+        private void removePlanFile(String filename) {
+            getDriver().runRemovePlanFileTask(filename);
+        }
+
+        /**
+         * Keeps the plan file for {@link TerraformConfigurationImpl#apply()} to use, if the plan has changes to apply and saved plans are enabled;
+         * otherwise removes it.
+         * @param fingerprint of the inputs to the plan, if known
+         */
+        private void keepPlanFileForApply(String filename, Map<String, Object> planSensorValue, String fingerprint) {
+            Duration maxAge = entity.config().get(SAVED_PLAN_MAX_AGE);
+            Object planned = planSensorValue.get(RESOURCES_CHANGES_PLANNED);
+            if (filename==null || maxAge==null || maxAge.toMilliseconds()<=0 || !(planned instanceof Map) || ((Map<?,?>) planned).isEmpty()) {
+                removePlanFile(filename);
+                return;
+            }
+            if (fingerprint==null) {
+                try {
+                    fingerprint = TerraformPlanCache.fingerprint(getDriver());
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    LOG.debug("Unable to fingerprint configuration at "+entity+"; not keeping plan for apply: "+e);
+                    removePlanFile(filename);
+                    return;
+                }
+            }
+            removePlanFile(deproxied(entity).planCache().savePlan(filename, fingerprint));
+        }
+    }
+
+    /** Used by the feed; skips the refresh unless the {@link TerraformPollingSchedule} says one is due. */
+    public static class PollTerraformModelAndSensors extends RefreshTerraformModelAndSensors {
+        public PollTerraformModelAndSensors(TerraformConfiguration entity) {
+            super(entity, true);
+        }
+
+        @Override
+        public Void get() {
+            if (!deproxied(entity).pollingSchedule().isDue()) return null;
+            return TerraformCommandScheduler.runAsBackground(() -> {
+                TerraformCommandScheduler.get(entity).jitterBackgroundStart(entity);
+                return super.get();
+            });
         }
     }
 
@@ -365,6 +800,10 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
     private static final class PlanProcessingFunction implements Function<String, Map<String, Object>>  {
         private final TerraformConfiguration entity;
         boolean ignoreStateChangeBecauseGoingToReplan = false;
+        /** plan file (relative to the active dir) written by the plan being processed, used to render changes; if null, a plan is run to render them */
+        String planFile = null;
+        /** resources whose drift is left out of the plan, ie learned phantom drifters; see {@link TerraformDriftHistory} */
+        Set<String> driftToLeaveOut = null;
 
         public PlanProcessingFunction(TerraformConfiguration entity) {
             this.entity = entity;
@@ -374,67 +813,100 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
         @Override
         public Map<String, Object> apply(@Nullable String tfPlanJson) {
             try {
-                Map<String, Object> tfPlanStatusDetailFromLogEntries = StateParser.parsePlanLogEntries(entity, tfPlanJson);
+                return process(StateParser.parsePlanLogEntries(entity, tfPlanJson, driftToLeaveOut));
+            } catch (Exception e) {
+                LOG.error("Unable to process terraform plan", e);
+                throw Exceptions.propagate(e);
+            }
+        }
 
-                final TerraformStatus currentPlanStatus = (TerraformStatus) tfPlanStatusDetailFromLogEntries.get(PLAN_STATUS);
-                final boolean ignoreDrift = !entity.getConfig(TerraformConfiguration.TERRAFORM_DRIFT_CHECK);
+        /** updates the sensors and model from a parsed plan */
+        Map<String, Object> process(Map<String, Object> tfPlanStatusDetailFromLogEntries) {
+            final TerraformStatus currentPlanStatus = (TerraformStatus) tfPlanStatusDetailFromLogEntries.get(PLAN_STATUS);
+            final boolean ignoreDrift = !entity.getConfig(TerraformConfiguration.TERRAFORM_DRIFT_CHECK);
 
-                if (TerraformConfiguration.TerraformStatus.ERROR.equals(currentPlanStatus)) {
-                    LOG.debug("Setting problem because "+"state is "+tfPlanStatusDetailFromLogEntries);
+            if (TerraformConfiguration.TerraformStatus.ERROR.equals(currentPlanStatus)) {
+                LOG.debug("Setting problem because "+"state is "+tfPlanStatusDetailFromLogEntries);
 
-                    ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", Entities.REMOVE);
-                    ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS,
-                            "TF-ERROR", tfPlanStatusDetailFromLogEntries.get(PLAN_MESSAGE) + ":" + tfPlanStatusDetailFromLogEntries.get("tf.errors"));
-                    updateResourceStates(tfPlanStatusDetailFromLogEntries);
+                ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", Entities.REMOVE);
+                ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS,
+                        "TF-ERROR", tfPlanStatusDetailFromLogEntries.get(PLAN_MESSAGE) + ":" + tfPlanStatusDetailFromLogEntries.get("tf.errors"));
+                updateResourceStates(tfPlanStatusDetailFromLogEntries);
 
-                } else if (ignoreStateChangeBecauseGoingToReplan && TerraformStatus.STATE_CHANGE.equals(currentPlanStatus)) {
-                    LOG.debug("Found local-state-only drift. Not updating sensors as this will handled locally and then normally re-run.");
-                    return tfPlanStatusDetailFromLogEntries;
+            } else if (ignoreStateChangeBecauseGoingToReplan && TerraformStatus.STATE_CHANGE.equals(currentPlanStatus)) {
+                LOG.debug("Found local-state-only drift. Not updating sensors as this will handled locally and then normally re-run.");
+                return tfPlanStatusDetailFromLogEntries;
 
-                } else if (ignoreDrift || currentPlanStatus == TerraformStatus.SYNC) {
-                    LOG.debug("Clearing problems and refreshing state because "+"state is "+tfPlanStatusDetailFromLogEntries+(currentPlanStatus == TerraformStatus.SYNC ? "" : " and ignoring drift"));
-                    // plan status is SYNC so no errors, no ASYNC resources OR drift is ignored
-                    ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", Entities.REMOVE);
+            } else if (ignoreDrift || currentPlanStatus == TerraformStatus.SYNC) {
+                LOG.debug("Clearing problems and refreshing state because "+"state is "+tfPlanStatusDetailFromLogEntries+(currentPlanStatus == TerraformStatus.SYNC ? "" : " and ignoring drift"));
+                // plan status is SYNC so no errors, no ASYNC resources OR drift is ignored
+                ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", Entities.REMOVE);
+                ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ERROR", Entities.REMOVE);
+                ((EntityInternal)entity).sensors().remove(Sensors.newSensor(Object.class, "compliance.drift"));
+                ((EntityInternal)entity).sensors().remove(Sensors.newSensor(Object.class, "tf.plan.changes"));
+                ((EntityInternal)entity).sensors().remove(PLAN_CHANGES_BY_RESOURCE);
+                deproxied(entity).updateDeploymentState();
+
+            } else if (!TerraformConfiguration.TerraformStatus.SYNC.equals(currentPlanStatus)) {
+                LOG.debug("Setting drift because " + "state is " + tfPlanStatusDetailFromLogEntries);
+
+                if (tfPlanStatusDetailFromLogEntries.containsKey(RESOURCE_CHANGES)) {
+                    ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", "Resources no longer match initial plan. Invoke 'apply' to synchronize configuration and infrastructure.");
                     ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ERROR", Entities.REMOVE);
-                    ((EntityInternal)entity).sensors().remove(Sensors.newSensor(Object.class, "compliance.drift"));
-                    ((EntityInternal)entity).sensors().remove(Sensors.newSensor(Object.class, "tf.plan.changes"));
-                    deproxied(entity).updateDeploymentState();
-
-                } else if (!TerraformConfiguration.TerraformStatus.SYNC.equals(currentPlanStatus)) {
-                    LOG.debug("Setting drift because " + "state is " + tfPlanStatusDetailFromLogEntries);
-
-                    if (tfPlanStatusDetailFromLogEntries.containsKey(RESOURCE_CHANGES)) {
-                        ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", "Resources no longer match initial plan. Invoke 'apply' to synchronize configuration and infrastructure.");
-                        ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ERROR", Entities.REMOVE);
-
-                        deproxied(entity).updateDeploymentState(); // we are updating the resources anyway, because we still need to inspect our infrastructure
-                        updateResourceStates(tfPlanStatusDetailFromLogEntries);
-                    } else {
-                        ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", "Outputs no longer match initial plan.This is not critical as the infrastructure is not affected. However you might want to invoke 'apply'.");
-                        ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ERROR", Entities.REMOVE);
-                    }
-
-                    entity.sensors().set(Sensors.newSensor(Object.class, "compliance.drift"), tfPlanStatusDetailFromLogEntries);
-                    entity.sensors().set(Sensors.newSensor(Object.class, "tf.plan.changes"), entity.getDriver().runPlanTask());
 
+                    deproxied(entity).updateDeploymentState(); // we are updating the resources anyway, because we still need to inspect our infrastructure
+                    updateResourceStates(tfPlanStatusDetailFromLogEntries);
                 } else {
-                    // shouldn't be possible to come here
-                    LOG.debug("No action because "+"state is "+tfPlanStatusDetailFromLogEntries);
+                    ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ASYNC", "Outputs no longer match initial plan.This is not critical as the infrastructure is not affected. However you might want to invoke 'apply'.");
+                    ServiceStateLogic.updateMapSensorEntry(entity, Attributes.SERVICE_PROBLEMS, "TF-ERROR", Entities.REMOVE);
                 }
 
-                boolean driftChanged = entity.sensors().get(PLAN)!=null && !Objects.equals(entity.sensors().get(PLAN).get(RESOURCE_CHANGES), tfPlanStatusDetailFromLogEntries.get(RESOURCE_CHANGES));
-                if (driftChanged || !Objects.equals(entity.sensors().get(DRIFT_STATUS), currentPlanStatus)) {
-                    // republished whenever drift has changed, or if status has changed
-                    // (deliberately republish same value, if the resources involved are different)
-                    entity.sensors().set(DRIFT_STATUS, currentPlanStatus);
-                }
+                entity.sensors().set(Sensors.newSensor(Object.class, "compliance.drift"), tfPlanStatusDetailFromLogEntries);
+                publishPlanChanges();
 
-                deproxied(entity).lastCommandOutputs.put(PLAN.getName(), tfPlanStatusDetailFromLogEntries);
-                return tfPlanStatusDetailFromLogEntries;
+            } else {
+                // shouldn't be possible to come here
+                LOG.debug("No action because "+"state is "+tfPlanStatusDetailFromLogEntries);
+            }
 
-            } catch (Exception e) {
-                LOG.error("Unable to process terraform plan", e);
-                throw Exceptions.propagate(e);
+            Set<String> drifted = MutableSet.of();
+            if (!ignoreDrift && currentPlanStatus != TerraformStatus.SYNC && tfPlanStatusDetailFromLogEntries.get(RESOURCE_CHANGES) instanceof List) {
+                ((List<Map<String, Object>>) tfPlanStatusDetailFromLogEntries.get(RESOURCE_CHANGES)).forEach(change -> drifted.add(String.valueOf(change.get("resource.addr"))));
+            }
+            deproxied(entity).driftedAddresses = drifted;
+            entity.sensors().set(RESOURCES_DRIFTED_COUNT, drifted.size());
+
+            boolean driftChanged = entity.sensors().get(PLAN)!=null && !Objects.equals(entity.sensors().get(PLAN).get(RESOURCE_CHANGES), tfPlanStatusDetailFromLogEntries.get(RESOURCE_CHANGES));
+            if (driftChanged || !Objects.equals(entity.sensors().get(DRIFT_STATUS), currentPlanStatus)) {
+                // republished whenever drift has changed, or if status has changed
+                // (deliberately republish same value, if the resources involved are different)
+                entity.sensors().set(DRIFT_STATUS, currentPlanStatus);
+            }
+
+            deproxied(entity).lastCommandOutputs.put(PLAN.getName(), tfPlanStatusDetailFromLogEntries);
+            return tfPlanStatusDetailFromLogEntries;
+        }
+
+        /** renders the saved plan file if there is one, rather than running another (refreshing) plan */
+        private void publishPlanChanges() {
+            if (planFile==null) {
+                entity.sensors().set(Sensors.newSensor(Object.class, "tf.plan.changes"), entity.getDriver().runPlanTask());
+                ((EntityInternal)entity).sensors().remove(PLAN_CHANGES_BY_RESOURCE);
+                return;
+            }
+            String shown = entity.getDriver().runShowPlanFileTask(planFile);
+            int separator = shown.indexOf(PLAN_SHOW_SEPARATOR);
+            String text = separator>=0 ? shown.substring(0, separator).trim() : shown;
+            entity.sensors().set(Sensors.newSensor(Object.class, "tf.plan.changes"), text);
+            if (separator>=0) {
+                try {
+                    entity.sensors().set(PLAN_CHANGES_BY_RESOURCE,
+                            StateParser.parsePlanResourceChanges(shown.substring(separator + PLAN_SHOW_SEPARATOR.length())));
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    LOG.warn("Unable to parse saved plan at "+entity+" (ignoring): "+e);
+                    ((EntityInternal)entity).sensors().remove(PLAN_CHANGES_BY_RESOURCE);
+                }
             }
         }
 
@@ -442,18 +914,20 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
             Object hasChanges = tfPlanStatus.get(RESOURCE_CHANGES);
             LOG.debug("Terraform plan updating: " + tfPlanStatus + ", changes: "+hasChanges);
             if (hasChanges!=null) {
+                List<Entity> updated = MutableList.of();
                 ((List<Map<String, Object>>) hasChanges).forEach(changeMap -> {
                     String resourceAddr = changeMap.get("resource.addr").toString();
-                    entity.getChildren().stream()
-                            .filter(c -> c instanceof ManagedResource)
-                            .filter(c -> resourceAddr.equals(c.config().get(TerraformResource.ADDRESS)))
-                            .forEach(this::checkAndUpdateResource);
+                    deproxied(entity).resourceIndex().getManagedResource(resourceAddr).ifPresent(c -> {
+                        checkAndUpdateResource(c);
+                        updated.add(c);
+                    });
                 });
+                deproxied(entity).updateResourceGroups(resourceGroupsOf(updated));
             }
         }
 
         private void checkAndUpdateResource(Entity c) {
-            if (!c.sensors().get(RESOURCE_STATUS).equals("changed") && !c.getParent().sensors().get(DRIFT_STATUS).equals(TerraformStatus.SYNC)) {
+            if (!c.sensors().get(RESOURCE_STATUS).equals("changed") && !TerraformStatus.SYNC.equals(entity.sensors().get(DRIFT_STATUS))) {
                 c.sensors().set(RESOURCE_STATUS, "changed");
             }
             // this method gets called twice when updating resources and updating them accoring to the plan, maybe fix at some point
@@ -565,54 +1039,20 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
     }
 
     <V> V retryUntilLockAvailable(String summary, Callable<V> runWithLock) {
-        return retryUntilLockAvailable(summary, runWithLock, Duration.ONE_MINUTE, Duration.FIVE_SECONDS);
-    }
-
-    <V> V retryUntilLockAvailable(String summary, Callable<V> runWithLock, Duration timeout, Duration retryFrequency) {
-        CountdownTimer timerO = timeout.isNegative() ? null : timeout.countdownTimer();
-        while(true) {
-            Object hadLock = null;
-            Thread lockOwner = configurationChangeInProgress.get();
-            if (lockOwner!=null) {
-                if (lockOwner.equals(Thread.currentThread())) hadLock = Thread.currentThread();
-                Task task = Tasks.current();
-                while (hadLock==null && task != null) {
-                    if (lockOwner.equals(task.getThread())) hadLock = task+" / "+task.getThread();
-                    task = task.getSubmittedByTask();
-                }
-            }
-            boolean gotLock = false;
-            if (hadLock==null) {
-                gotLock = configurationChangeInProgress.compareAndSet(null, Thread.currentThread());
-            }
-            if (hadLock!=null || gotLock) {
-                if (gotLock) {
-                    LOG.debug("Acquired lock for '"+summary+"' (thread "+Thread.currentThread()+")");
-                } else {
-                    LOG.debug("Already had lock for '"+summary+"', from "+hadLock);
-                }
-                try {
-                    return runWithLock.call();
-                } catch (Exception e) {
-                    throw Exceptions.propagate(e);
-                } finally {
-                    if (gotLock) {
-                        configurationChangeInProgress.set(null);
-                        LOG.debug("Cleared lock for '"+summary+"' (thread "+Thread.currentThread()+")");
-                    }
-                }
-            } else {
-                if (timerO!=null && timerO.isExpired()) {
-                    throw new IllegalStateException("Cannot perform "+summary+": operation timed out before lock available (is another change or refresh in progress?)");
-                }
-                try {
-                    Tasks.withBlockingDetails("Waiting on terraform lock (change or refresh in progress?), owned by "+configurationChangeInProgress.get()+"; sleeping then retrying "+summary,
-                            () -> { Time.sleep(retryFrequency); return null; } );
-                } catch (Exception e) {
-                    throw Exceptions.propagate(e);
-                }
-            }
-        }
+        return retryUntilLockAvailable(summary, LockMode.EXCLUSIVE, runWithLock);
+    }
+
+    <V> V retryUntilLockAvailable(String summary, LockMode mode, Callable<V> runWithLock) {
+        return retryUntilLockAvailable(summary, mode, runWithLock, Duration.ONE_MINUTE);
+    }
+
+    <V> V retryUntilLockAvailable(String summary, Callable<V> runWithLock, Duration timeout) {
+        return retryUntilLockAvailable(summary, LockMode.EXCLUSIVE, runWithLock, timeout);
+    }
+
+    /** runs the job holding this configuration's {@link TerraformLock} in the given mode, waiting up to the given timeout for it (or indefinitely if negative) */
+    <V> V retryUntilLockAvailable(String summary, LockMode mode, Callable<V> runWithLock, Duration timeout) {
+        return lock().callWithLock(summary, mode, runWithLock, timeout);
     }
 
     protected Maybe<Object> runWorkflow(ConfigKey<CustomWorkflowStep> key) {
@@ -630,16 +1070,101 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
     @Override
     @Effector(description = "Apply the Terraform configuration to the infrastructure. Changes made outside terraform are reset.")
     public void apply() {
-        runWorkflow(PRE_APPLY_WORKFLOW);
-        retryUntilLockAvailable("terraform apply", () -> { Objects.requireNonNull(getDriver()).runApplyTask(); return null; });
-        runWorkflow(POST_APPLY_WORKFLOW);
-        plan();
+        pollingSchedule().onActivity();
+        // applies queued with the same inputs would have the same effect, so run once; but not one already running, which may predate the request
+        singleFlight().run(applyFlightKey(), false, APPLY_COALESCED_COUNT, started -> {
+            planCache().invalidate();
+            runWorkflow(PRE_APPLY_WORKFLOW);
+            Map<String, Object> applied = retryUntilLockAvailable("terraform apply", () -> {
+                started.run();
+                singleFlight().detach(PLAN_FLIGHT);
+                Map<String, Object> result = applySavedPlanIfCurrent();
+                return result!=null ? result : Objects.requireNonNull(getDriver()).runApplyTask();
+            });
+            runWorkflow(POST_APPLY_WORKFLOW);
+            updateModelAfterApply(applied, this::plan);
+            return null;
+        });
+    }
+
+    private static final String PLAN_FLIGHT = "plan";
+
+    /**
+     * Applies the plan kept by the last plan which found changes, if it is recent and the configuration, variables and state are unchanged since,
+     * saving terraform planning again. Caller must hold the lock.
+     * @return what the apply did, as for {@link TerraformDriver#runApplyTask()};
+     * or null if there is no such plan, or terraform refused it as stale, so a normal apply is needed
+     */
+    private Map<String, Object> applySavedPlanIfCurrent() {
+        TerraformPlanCache.SavedPlan saved = planCache().takeSavedPlan();
+        if (saved==null) return null;
+        Duration maxAge = config().get(SAVED_PLAN_MAX_AGE);
+        List<String> extraArgs = config().get(EXTRA_APPLY_ARGS);
+        boolean current = false;
+        if (maxAge!=null && saved.getAge().isShorterThan(maxAge) && (extraArgs==null || extraArgs.isEmpty())) {
+            try {
+                current = saved.fingerprint.equals(TerraformPlanCache.fingerprint(getDriver()));
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.debug("Unable to fingerprint configuration at "+this+"; not using saved plan: "+e);
+            }
+        }
+        if (!current) {
+            LOG.debug("Saved plan at "+this+" is stale (made "+saved.getAge()+" ago); applying afresh");
+            getDriver().runRemovePlanFileTask(saved.file);
+            return null;
+        }
+        Map<String, Object> result = getDriver().runApplyTask(saved.file);
+        if (result==null) return null;
+        Long count = sensors().get(SAVED_PLAN_APPLIED_COUNT);
+        sensors().set(SAVED_PLAN_APPLIED_COUNT, (count==null ? 0 : count) + 1);
+        return result;
+    }
+
+    /**
+     * Updates the model and sensors from what an apply did, with a state pull, rather than running a full refreshing plan:
+     * an apply which completed without errors leaves the infrastructure matching the configuration.
+     * Drift arising since is found by the next background plan.
+     * @param applied as returned by {@link TerraformDriver#runApplyTask()}
+     * @param fallback run instead if the apply output does not show it completed, eg if it failed or is not json, to replan
+     */
+    void updateModelAfterApply(Map<String, Object> applied, Runnable fallback) {
+        if (applied==null || !TerraformStatus.SYNC.equals(applied.get(PLAN_STATUS))) {
+            fallback.run();
+            return;
+        }
+        Map<String, Object> planSensorValue = applied;
+        LOG.debug("Updating model at "+this+" from apply: "+planSensorValue.get(PLAN_MESSAGE));
+        retryUntilLockAvailable("update model after apply", () -> {
+            outputsUpdatedFromState.remove();
+            new PlanProcessingFunction(this).process(planSensorValue);
+            sensors().set(PLAN, planSensorValue);
+            if (!Boolean.TRUE.equals(outputsUpdatedFromState.get())) {
+                sensors().set(OUTPUT, new OutputSuccessFunction(this).apply((String) planSensorValue.get(ApplyLogParser.OUTPUTS)));
+            }
+            outputsUpdatedFromState.remove();
+            return null;
+        });
+    }
+
+    /** identifies what an apply would apply: the configuration source, the variables and environment, and any extra arguments */
+    private String applyFlightKey() {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Object part : Arrays.asList(config().get(TerraformCommons.CONFIGURATION_URL), config().get(TerraformCommons.CONFIGURATION_CONTENTS),
+                config().get(EXTRA_APPLY_ARGS), new TreeMap<>(getDriver().getShellEnvironment()))) {
+            hasher.putString(String.valueOf(part), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return "apply " + hasher.hash();
     }
 
     @Override
     @Effector(description="Performs the Terraform plan command to show what would change (and refresh sensors).")
     public void plan() {
-        planInternal(true);
+        pollingSchedule().onActivity();
+        singleFlight().run(PLAN_FLIGHT, true, PLAN_COALESCED_COUNT, started -> {
+            planInternal(true);
+            return null;
+        });
     }
 
     protected void planInternal(boolean refresh) {
@@ -659,9 +1184,34 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
 
     @Override
     public void removeDiscoveredResources() {
+        lastReconciledKey = null;
         Map<String, Map<String,Object>> resources = MutableMap.of();
-        updateResources(resources, this, ManagedResource.class);
-        updateDataResources(resources, DataResource.class);
+        List<Entity> childrenToRemove = MutableList.of();
+        childrenToRemove.addAll(updateResources(resources, null, ManagedResource.class, MutableList.of()));
+        childrenToRemove.addAll(updateDataResources(resources, null, DataResource.class, MutableList.of()));
+        Set<Entity> groupsToUpdate = resourceGroupsOf(childrenToRemove);
+        unmanageResources(childrenToRemove);
+        updateResourceGroups(groupsToUpdate);
+    }
+
+    @Override
+    public List<Map<String, Object>> queryResources(@Nullable String address, @Nullable String type, @Nullable String attribute, @Nullable String value, @Nullable Integer limit) {
+        ResourceTable table = resourceTable;
+        if (table==null) {
+            Map<String, Map<String,Object>> state = sensors().get(TerraformConfiguration.STATE);
+            table = state==null ? ResourceTable.EMPTY : ResourceTable.of(state);
+        }
+        List<Map<String, Object>> result = table.query(address, type, attribute, value, limit==null ? 100 : limit);
+        Set<String> drifted = driftedAddresses;
+        result.forEach(r -> r.put("resource.drifted", drifted.contains(r.get("resource.address"))));
+        return result;
+    }
+
+    @Override
+    public Set<String> forgetPhantomDrifters(@Nullable String address) {
+        Set<String> result = driftHistory().forget(Strings.isBlank(address) ? null : address);
+        LOG.debug("Forgot phantom drifters at "+this+": "+result);
+        return result;
     }
 
     @Override
@@ -670,16 +1220,19 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
         retryUntilLockAvailable("clear terraform lock", () -> {
             getDriver().runRemoveLockFileTask();
             return null;
-        }, Duration.seconds(-1), Duration.seconds(1));
+        }, Duration.seconds(-1));
     }
 
     @Override
     @Effector(description = "Destroy the Terraform configuration")
     public void destroyTerraform() {
+        pollingSchedule().onActivity();
+        planCache().invalidate();
         retryUntilLockAvailable("terraform destroy", () -> {
+            singleFlight().detach(PLAN_FLIGHT);
             getDriver().destroy(false);
             return null;
-        }, Duration.seconds(-1), Duration.seconds(1));
+        }, Duration.seconds(-1));
     }
 
     @Override
@@ -724,7 +1277,10 @@ public class TerraformConfigurationImpl extends SoftwareProcessImpl implements T
         if(StringUtils.isNotBlank(configUrl)) {
             config().set(TerraformCommons.CONFIGURATION_URL, configUrl);
         }
+        pollingSchedule().onActivity();
+        planCache().invalidate();
         retryUntilLockAvailable("reinstall configuration from "+configUrl, () -> {
+            singleFlight().detach(PLAN_FLIGHT);
             try {
                 DynamicTasks.queueIfPossible(Tasks.builder()
                         .displayName("Prepare latest configuration files")
@@ -2,6 +2,7 @@ package io.cloudsoft.terraform;
 
 import org.apache.brooklyn.api.entity.EntityLocal;
 import org.apache.brooklyn.api.location.Location;
+import org.apache.brooklyn.api.mgmt.Task;
 import org.apache.brooklyn.api.mgmt.TaskAdaptable;
 import org.apache.brooklyn.core.entity.Entities;
 import org.apache.brooklyn.tasks.kubectl.ContainerCommons;
@@ -18,6 +19,7 @@ import org.apache.brooklyn.util.core.task.system.internal.SystemProcessTaskFacto
 import org.apache.brooklyn.util.exceptions.Exceptions;
 import org.apache.brooklyn.util.os.Os;
 import org.apache.brooklyn.util.text.Strings;
+import org.apache.brooklyn.util.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -143,6 +145,21 @@ public class TerraformContainerDriver implements TerraformDriver {
         t.get();
     }
 
+    @Override
+    public void cancelCommand(Task<?> task) {
+        // cancelling the task stops us waiting, but the job keeps running in the cluster unless deleted;
+        // delete it first, so the operation does not fail and remove files the job is still writing
+        ContainerTaskResult result = (ContainerTaskResult) TaskTags.getTagsFast(task).stream().filter(x -> x instanceof ContainerTaskResult).findAny().orElse(null);
+        if (result!=null && result.getKubeJobName()!=null) {
+            Task<?> delete = Entities.submit(getEntity(), newCommandTaskFactory(false, null).newDeleteJobTask(result.getKubeJobName()).allowingNonZeroExitCode()
+                    .summary("delete job for cancelled command"));
+            if (!delete.blockUntilEnded(Duration.ONE_MINUTE)) {
+                LOG.warn("Job for cancelled command "+task+" at "+getEntity()+" not deleted within "+Duration.ONE_MINUTE+"; cancelling anyway");
+            }
+        }
+        TerraformDriver.super.cancelCommand(task);
+    }
+
     @Override
     public void customize() {
         LOG.trace(" >> TerraformDockerDriver.customize() ...");
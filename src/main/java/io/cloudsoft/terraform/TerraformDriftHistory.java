@@ -0,0 +1,117 @@
+package io.cloudsoft.terraform;
+
+import org.apache.brooklyn.core.entity.EntityInternal;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.collections.MutableSet;
+import org.apache.brooklyn.util.text.WildcardGlobs;
+import org.apache.brooklyn.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tracks which resources of a {@link TerraformConfiguration} show state-only drift plan after plan, and learns those which keep
+ * doing so as phantom drifters: drift which refreshing the state does not settle, typically because the provider reads back an
+ * attribute differently from how it was written.
+ * <p>
+ * A resource is learned once it shows state-only drift in {@link TerraformConfiguration#PHANTOM_DRIFT_THRESHOLD} consecutive plans.
+ * Drift at learned resources is left out of plans, so it is neither reported nor refreshed, except every
+ * {@link TerraformConfiguration#PHANTOM_DRIFT_REFRESH_INTERVAL}, when it is refreshed as normal and resources which no longer drift are forgotten.
+ * Drift alongside a planned change is actionable, so it resets the count and the resource is not (or no longer) learned.
+ * <p>
+ * The learned set is published as {@link TerraformConfiguration#PHANTOM_DRIFTERS} and restored from it after rebind; counts are not persisted.
+ */
+class TerraformDriftHistory {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerraformDriftHistory.class);
+
+    private final EntityInternal entity;
+    /** number of consecutive plans in which each resource not yet learned showed state-only drift */
+    private final Map<String, Integer> consecutive = MutableMap.of();
+    private final Set<String> learned;
+    private long lastFullCheckUtc = System.currentTimeMillis();
+
+    TerraformDriftHistory(EntityInternal entity) {
+        this.entity = entity;
+        Set<String> published = entity.sensors().get(TerraformConfiguration.PHANTOM_DRIFTERS);
+        learned = published==null ? MutableSet.of() : MutableSet.copyOf(published);
+    }
+
+    /** @return the resources whose drift should be left out of the next plan; empty if a full check is due */
+    synchronized Set<String> getDriftToLeaveOut() {
+        if (learned.isEmpty() || !isLearningEnabled()) return Collections.emptySet();
+        Duration interval = entity.config().get(TerraformConfiguration.PHANTOM_DRIFT_REFRESH_INTERVAL);
+        if (interval==null || System.currentTimeMillis() >= lastFullCheckUtc + interval.toMilliseconds()) return Collections.emptySet();
+        return MutableSet.copyOf(learned);
+    }
+
+    /**
+     * Records the drift found by a plan.
+     * @param stateOnly resources with drift and no planned changes
+     * @param changesNeeded resources with drift and planned changes
+     * @param leftOut resources whose drift was left out of the plan, as returned by {@link #getDriftToLeaveOut()}
+     */
+    synchronized void onPlan(Set<String> stateOnly, Set<String> changesNeeded, Set<String> leftOut) {
+        if (!isLearningEnabled()) {
+            consecutive.clear();
+            if (!learned.isEmpty()) {
+                learned.clear();
+                publish();
+            }
+            return;
+        }
+        int threshold = entity.config().get(TerraformConfiguration.PHANTOM_DRIFT_THRESHOLD);
+        boolean changed = false;
+
+        consecutive.keySet().retainAll(stateOnly);
+        for (String address : stateOnly) {
+            if (learned.contains(address)) continue;
+            if (consecutive.merge(address, 1, Integer::sum) >= threshold) {
+                LOG.debug("Learned "+address+" at "+entity+" as a phantom drifter, after state-only drift in "+threshold+" consecutive plans");
+                consecutive.remove(address);
+                learned.add(address);
+                changed = true;
+            }
+        }
+        for (String address : changesNeeded) {
+            changed |= learned.remove(address);
+        }
+        if (leftOut.isEmpty()) {
+            // drift at learned resources was included in this plan, so forget those which no longer drift
+            lastFullCheckUtc = System.currentTimeMillis();
+            changed |= learned.removeIf(address -> !stateOnly.contains(address));
+        }
+        if (changed) publish();
+    }
+
+    /**
+     * Forgets learned phantom drifters, so their drift is refreshed on every plan again until they are learned again.
+     * @param addressGlob wildcard pattern for the resources to forget, or null to forget all
+     * @return the resources forgotten
+     */
+    synchronized Set<String> forget(String addressGlob) {
+        Set<String> result = new TreeSet<>();
+        learned.removeIf(address -> {
+            if (addressGlob!=null && !WildcardGlobs.isGlobMatched(addressGlob, address)) return false;
+            result.add(address);
+            return true;
+        });
+        consecutive.keySet().removeIf(address -> addressGlob==null || WildcardGlobs.isGlobMatched(addressGlob, address));
+        if (!result.isEmpty()) publish();
+        return result;
+    }
+
+    private boolean isLearningEnabled() {
+        Integer threshold = entity.config().get(TerraformConfiguration.PHANTOM_DRIFT_THRESHOLD);
+        return threshold!=null && threshold>0;
+    }
+
+    private void publish() {
+        entity.sensors().set(TerraformConfiguration.PHANTOM_DRIFTERS, new TreeSet<>(learned));
+    }
+
+}
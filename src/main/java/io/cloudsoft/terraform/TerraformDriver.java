@@ -1,5 +1,7 @@
 package io.cloudsoft.terraform;
 
+import com.google.common.collect.Iterables;
+import io.cloudsoft.terraform.parser.ApplyLogParser;
 import org.apache.brooklyn.api.entity.Entity;
 import org.apache.brooklyn.api.mgmt.Task;
 import org.apache.brooklyn.api.mgmt.TaskAdaptable;
@@ -19,6 +21,7 @@ import org.apache.brooklyn.util.core.text.TemplateProcessor;
 import org.apache.brooklyn.util.exceptions.Exceptions;
 import org.apache.brooklyn.util.os.Os;
 import org.apache.brooklyn.util.stream.KnownSizeInputStream;
+import org.apache.brooklyn.util.text.StringEscapes;
 import org.apache.brooklyn.util.text.Strings;
 import org.apache.brooklyn.util.time.Duration;
 import org.apache.brooklyn.util.time.Time;
@@ -27,12 +30,15 @@ import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static io.cloudsoft.terraform.TerraformCommons.*;
 
@@ -55,6 +61,9 @@ public interface TerraformDriver extends SoftwareProcessDriver {
     /** resources that terraform has found no longer matches the known state _and_ needs changes made, mapped to the change object */
     String RESOURCES_DRIFT_DETECTED_CHANGES_NEEDED = "tf.resources.drift_detected.changes_needed";
 
+    /** printed between the human-readable and json renderings of a plan file by {@link #runShowPlanFileTask(String)} */
+    String PLAN_SHOW_SEPARATOR = "=== terraform show -json ===";
+
     String PLAN_MESSAGE = "tf.plan.message";
     String PLAN_ERRORS = "tf.errors";
 
@@ -99,6 +108,23 @@ public interface TerraformDriver extends SoftwareProcessDriver {
 
     String makeCommandInTerraformActiveDir(String command);
 
+    /**
+     * as {@link #makeCommandInTerraformActiveDir(String)}, for a command which may be {@link #cancelCommand(Task) cancelled} while it runs,
+     * such that cancelling it stops the command and anything it started; used for the commands a preemptible background refresh runs
+     */
+    default String makeKillableCommand(String command) {
+        return makeCommandInTerraformActiveDir(command);
+    }
+
+    /**
+     * How an operation holds the configuration's terraform lock: {@link #SHARED} with other read-only operations,
+     * for commands which do not change the state or the working directory (eg <code>state pull</code>, <code>show</code>,
+     * <code>output</code> and <code>plan -lock=false</code>), or {@link #EXCLUSIVE}ly, for all others (eg <code>apply</code>,
+     * <code>init</code> and removing the lock file). Each <code>run*Task</code> method declares the mode of its command
+     * when it passes it to {@link #runQueued(TaskAdaptable, LockMode)}.
+     */
+    enum LockMode { SHARED, EXCLUSIVE }
+
     // added these methods to underline the terraform possible commands
     default String initSubcommand() {
         return "init -input=false"; // Prepare your working directory for other commands
@@ -128,16 +154,60 @@ public interface TerraformDriver extends SoftwareProcessDriver {
         return runQueued(taskFactory.newTask());
     }
 
+    /** as {@link #runQueued(TaskAdaptable, LockMode)}, holding the lock {@link LockMode#EXCLUSIVE exclusively} */
     default <T> T runQueued(TaskAdaptable<T> task) {
-        TaskAdaptable<T> t = DynamicTasks.queue(task);
-        DynamicTasks.waitForLast();
-        return t.asTask().getUnchecked();
+        return runQueued(task, LockMode.EXCLUSIVE);
+    }
+
+    /**
+     * queues the task and waits for it, holding the {@link TerraformLock} in the given mode (unless the caller already holds it),
+     * and a slot from the {@link TerraformCommandScheduler}, while it runs;
+     * if the caller holds the lock preemptibly, the task is cancelled should it be preempted
+     * @throws IllegalStateException if the mode is exclusive and the caller holds the lock shared
+     */
+    default <T> T runQueued(TaskAdaptable<T> task, LockMode mode) {
+        TerraformLock lock = ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).lock();
+        return lock.callWithLock(task.asTask().getDisplayName(), mode, () ->
+                lock.runCommand(task.asTask(), () -> TerraformCommandScheduler.get(getEntity()).runWithPermit(getEntity(), () -> {
+                    TaskAdaptable<T> t = DynamicTasks.queue(task);
+                    DynamicTasks.waitForLast();
+                    return t.asTask().getUnchecked();
+                })), Duration.seconds(-1));
+    }
+
+    default TerraformApplyMonitor newApplyMonitor() {
+        return new TerraformApplyMonitor((TerraformConfigurationImpl) Entities.deproxy(getEntity()));
+    }
+
+    /**
+     * runs an apply or destroy with <code>-json</code> as {@link #runQueued(TaskAdaptable)}, holding the lock exclusively;
+     * the task should write its output to the monitor, see {@link #taskForTerraformSubCommand(String, String, OutputStream)},
+     * which publishes its progress while it runs
+     * @return what the apply did, as {@link ApplyLogParser#parse(String)}; the output itself is not returned.
+     * If it fails, the monitor has what it did before failing.
+     */
+    default Map<String, Object> runQueuedWithProgress(Task<String> task, TerraformApplyMonitor monitor) {
+        try {
+            runQueued(task, LockMode.EXCLUSIVE);
+        } finally {
+            monitor.finish(task);
+        }
+        return monitor.getSummary();
+    }
+
+    /** cancels a command queued by {@link #runQueued(TaskAdaptable)}, stopping the terraform process it runs */
+    default void cancelCommand(Task<?> task) {
+        task.cancel(true);
     }
 
     default <T> T retryUntilLockAvailable(String summary, Callable<T> job) {
         return ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).retryUntilLockAvailable(summary, job);
     }
 
+    default <T> T retryUntilLockAvailable(String summary, LockMode mode, Callable<T> job) {
+        return ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).retryUntilLockAvailable(summary, mode, job);
+    }
+
     default void clearCurrentTagInessential() {
         ((BasicTask<?>) Tasks.current()).applyTagModifier(input -> {
             input.remove(TaskTags.INESSENTIAL_TASK);
@@ -166,12 +236,12 @@ public interface TerraformDriver extends SoftwareProcessDriver {
     }
 
     default void runTerraformInitAndVerifyResults() {
-        String initialized = runQueued(taskForTerraformSubCommand(initSubcommand(), "terraform init"));
+        String initialized = runQueued(taskForTerraformSubCommand(initSubcommand(), "terraform init"), LockMode.EXCLUSIVE);
         if (initialized.contains(EMPTY_TF_CFG_WARN)) {
             throw new IllegalStateException("Invalid or missing Terraform configuration: " + initialized);
         }
         if (initialized.contains("calculate lock file checksums locally")) {
-            runQueued(taskForTerraformSubCommand("providers lock", "terraform providers lock (detected as required)"));
+            runQueued(taskForTerraformSubCommand("providers lock", "terraform providers lock (detected as required)"), LockMode.EXCLUSIVE);
         }
     }
 
@@ -179,19 +249,19 @@ public interface TerraformDriver extends SoftwareProcessDriver {
      * @return {@code String} containing json state of the infrastructure
      */
     default String runShowTask() {
-        return runQueued( taskForTerraformSubCommand("show -no-color -json", "terraform show"));
+        return runQueued( taskForTerraformSubCommand("show -no-color -json", "terraform show"), LockMode.SHARED);
     }
 
     /**
      * @return {@code String} containing tf state
      */
     default String runStatePullTask() {
-        return runQueued( taskForTerraformSubCommand("state pull") );
+        return runQueued( taskForTerraformSubCommand("state pull"), LockMode.SHARED);
     }
 
     // Needed for extracting pure Terraform output for the tf.plan sensor
     default String runPlanTask() {
-        return runQueued( taskForTerraformSubCommand(planSubcommand(true, false), "terraform plan (human-readable output)") );
+        return runQueued( taskForTerraformSubCommand(planSubcommand(true, false), "terraform plan (human-readable output)"), LockMode.SHARED);
     }
 
     default String runJsonPlanTask(boolean doRefresh) {
@@ -205,35 +275,115 @@ public interface TerraformDriver extends SoftwareProcessDriver {
                 // thus the following seems the fastest way to do a refresh and get the plan output
 
                 String planResult = runQueued(newCommandTaskFactory(true,
-                        makeCommandInTerraformActiveDir(
+                        makeKillableCommand(
                                 prependTerraformExecutable(planSubcommand(doRefresh /* true */, true) +
                                         (filename!=null ? " -out=" + filename : "") +
                                         (args!=null ? " "+args : ""))))
                         .summary("terraform plan")
-                        .newTask().asTask());
+                        .newTask().asTask(), LockMode.SHARED);
 
                 return planResult;
 
             } else {
                 // -refresh=false doesn't seem to speed up planning much at all (it still needs online access)
                 // but worth doing for good measure
-                return runQueued(taskForTerraformSubCommand(planSubcommand(false, true), "terraform plan (and update resources and drift)"));
+                return runQueued(taskForTerraformSubCommand(planSubcommand(false, true), "terraform plan (and update resources and drift)"), LockMode.SHARED);
             }
         } catch (Exception e) {
             throw Exceptions.propagateAnnotated("Error running terraform plan (json)", e);
         }
     }
 
+    /**
+     * Renders a plan file saved with <code>-out</code>, which does not refresh and so is much cheaper than running another plan.
+     * @return human-readable rendering of the plan, then {@link #PLAN_SHOW_SEPARATOR} on its own line, then the json rendering
+     */
+    default String runShowPlanFileTask(String planFile) {
+        return runQueued(newCommandTaskFactory(true, makeCommandInTerraformActiveDir(
+                prependTerraformExecutable("show -no-color " + planFile) +
+                        " && echo " + StringEscapes.BashStringEscapes.wrapBash(PLAN_SHOW_SEPARATOR) + " && " +
+                        prependTerraformExecutable("show -no-color -json " + planFile)))
+                .summary("terraform show (saved plan)")
+                .newTask().asTask(), LockMode.SHARED);
+    }
+
+    /**
+     * @return a hash of the configuration, variable and dependency lock files in the active dir, and the serial and lineage of any local state;
+     * if this and the shell environment are unchanged, a plan without refresh would be unchanged.
+     * The hash is prefixed with {@link TerraformPlanCache#REMOTE_BACKEND_PREFIX} if a backend other than <code>local</code> is initialized,
+     * as the state is then not in the active dir and changes to it are not seen.
+     */
+    default String runPlanFingerprintTask() {
+        return runQueued(newCommandTaskFactory(false, makeCommandInTerraformActiveDir(
+                "{ if [ -f .terraform/terraform.tfstate ] && ! grep -qE '\"type\": *\"local\"' .terraform/terraform.tfstate ; " +
+                        "then printf " + StringEscapes.BashStringEscapes.wrapBash(TerraformPlanCache.REMOTE_BACKEND_PREFIX) + " ; fi ; " +
+                        "{ for f in $( ls -1 *.tf *.tf.json *.tfvars *.tfvars.json .terraform.lock.hcl 2> /dev/null | sort ) ; do echo \"== $f\" ; cat \"$f\" ; done ; " +
+                        "grep -E '\"(serial|lineage)\"' terraform.tfstate 2> /dev/null ; true ; } " +
+                        "| ( sha256sum 2> /dev/null || shasum -a 256 ) | cut -d ' ' -f 1 ; }"))
+                .summary("fingerprint configuration")
+                .newTask().asTask(), LockMode.SHARED).trim();
+    }
+
     default String runOutputTask(boolean doRefresh) {
-        if (doRefresh) DynamicTasks.queue(refreshTaskWithName("Refresh state to gather output", false));
-        return runQueued( taskForTerraformSubCommand("output -no-color -json", "terraform output") );
+        if (doRefresh) {
+            try {
+                runQueued(refreshTaskWithName("Refresh state to gather output", false), LockMode.EXCLUSIVE);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.debug("Unable to refresh state before gathering output at "+getEntity()+" (continuing): "+e);
+            }
+        }
+        return runQueued( taskForTerraformSubCommand("output -no-color -json", "terraform output"), LockMode.SHARED);
     }
 
-    default void runApplyTask() {
-        runQueued(taskForTerraformSubCommand(applySubcommand(), "terraform apply"));
+    /**
+     * @return what the apply did, as {@link ApplyLogParser#parse(String)}, which can be used to update the model
+     */
+    default Map<String, Object> runApplyTask() {
+        TerraformApplyMonitor monitor = newApplyMonitor();
+        Map<String, Object> result = runQueuedWithProgress(taskForTerraformSubCommand(applySubcommand("-json"), "terraform apply", monitor), monitor);
         getEntity().sensors().set(TerraformConfiguration.CONFIGURATION_APPLIED, Instant.now());
         // previously removed children here, but (1) there might be children we shouldn't remove; and (2) the synch should take care of that
-        // now _caller_ should force a new plan instead
+        // now _caller_ should update the model from the result, or force a new plan
+        return result;
+    }
+
+    /**
+     * Applies a plan file saved by an earlier plan, then removes it; terraform refuses if the state has changed since the plan was made.
+     * @return what the apply did, as for {@link #runApplyTask()};
+     * or null if terraform refused the plan as stale without changing anything, see {@link ApplyLogParser.Summary#isStaleSavedPlan()},
+     * in which case the caller can fall back to {@link #runApplyTask()}, which plans afresh; any other failure is thrown
+     */
+    default Map<String, Object> runApplyTask(String planFile) {
+        TerraformApplyMonitor monitor = newApplyMonitor();
+        Task<String> t = taskForTerraformSubCommand(applySubcommand("-json " + planFile), "terraform apply (saved plan)", monitor);
+        TaskTags.markInessential(t);
+        try {
+            Map<String, Object> result = runQueuedWithProgress(t, monitor);
+            getEntity().sensors().set(TerraformConfiguration.CONFIGURATION_APPLIED, Instant.now());
+            return result;
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            if (!monitor.isStaleSavedPlan()) {
+                throw Exceptions.propagateAnnotated("Error applying saved plan "+planFile, e);
+            }
+            LOG.debug("Saved plan "+planFile+" at "+getEntity()+" is stale; will apply afresh: "+e);
+            return null;
+        } finally {
+            runRemovePlanFileTask(planFile);
+        }
+    }
+
+    /**
+     * removes a plan file written by {@link #runJsonPlanTask(boolean, String, String)}, if not null;
+     * the file has a random name and is used by no other operation, so this does not take the {@link TerraformLock},
+     * and can be run by a refresh which was preempted without waiting for the operation which preempted it
+     */
+    default void runRemovePlanFileTask(String planFile) {
+        if (planFile==null) return;
+        Entities.submit(getEntity(), newCommandTaskFactory(true, makeCommandInTerraformActiveDir("rm -f " + planFile))
+                .summary("clean up")
+                .newTask()).getUnchecked();
     }
 
     default Task<String> taskForTerraformSubCommand(final String terraformSubCommand) {
@@ -247,12 +397,38 @@ public interface TerraformDriver extends SoftwareProcessDriver {
                 .newTask().asTask();
     }
 
+    /**
+     * as {@link #taskForTerraformSubCommand(String, String)}, also writing its stdout to the given stream as it is written, where the driver can,
+     * in which case the task need only keep a bounded tail of the output, and its result is not the whole output;
+     * by default it does not, and the output can be read from the task once it completes
+     */
+    default Task<String> taskForTerraformSubCommand(final String terraformSubCommand, String name, OutputStream stdoutSink) {
+        return taskForTerraformSubCommand(terraformSubCommand, name);
+    }
+
     default Task<String> refreshTaskWithName(final String name, boolean required) {
         Task<String> t = taskForTerraformSubCommand(applyRefreshOnly(), name);
         if (!required) TaskTags.markInessential(t);
         return t;
     }
 
+    /**
+     * Runs <code>apply -refresh-only -json</code> limited to the given resources, to accept their drift into the state without a plan file;
+     * long lists are split into chunks of at most {@link TerraformConfiguration#STATE_REFRESH_TARGETS_MAX} targets, one command each.
+     * @return the json lines written by all the commands
+     */
+    default String runRefreshOnlyApplyTask(Collection<String> addresses) {
+        Integer max = getEntity().config().get(TerraformConfiguration.STATE_REFRESH_TARGETS_MAX);
+        StringBuilder result = new StringBuilder();
+        for (List<String> chunk : Iterables.partition(addresses, max==null || max<1 ? 1 : max)) {
+            result.append(runQueued(taskForTerraformSubCommand(applySubcommand("-refresh-only -json"
+                            + chunk.stream().map(r -> " -target="+StringEscapes.BashStringEscapes.wrapBash(r)).collect(Collectors.joining())),
+                    "terraform apply -refresh-only ("+chunk.size()+" resource"+(chunk.size()==1 ? "" : "s")+")"), LockMode.EXCLUSIVE));
+            result.append("\n");
+        }
+        return result.toString();
+    }
+
     default int runRemoveLockFileTask() {
         int result = runQueued( newCommandTaskFactory(false, "rm "+getLockFilePath())
                 .summary("Remove lock file")
@@ -387,7 +563,7 @@ public interface TerraformDriver extends SoftwareProcessDriver {
         ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).runWorkflow(TerraformConfiguration.PRE_PLAN_WORKFLOW);
 
         // previously we did extensive plan/checks before apply (above); but this was slow and noisy in the UI, so prefer below
-        retryUntilLockAvailable("apply", () -> { runApplyTask(); return null; });
+        Map<String, Object> applied = retryUntilLockAvailable("apply", () -> runApplyTask());
         ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).runWorkflow(TerraformConfiguration.POST_APPLY_WORKFLOW);
 
 
@@ -395,12 +571,16 @@ public interface TerraformDriver extends SoftwareProcessDriver {
         TaskBuilder<Object> tb = Tasks.builder()
                 .displayName("Update model and sensors after apply")
                 .body(() -> {
-                    // replan to update drift and populate the model, then set output;
-                    // previously we used -refresh=false but that doesn't speed it up as much as we would hope;
-                    // we also sometimes find there is additional state change found on refresh, so worth doing usually
-                    ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).planInternal(true);
+                    // populate the model and set output from what the apply did, with a state pull;
+                    // if the apply output is not conclusive, replan to update drift and populate the model, then set output
+                    // (previously we always replanned, with -refresh=false, but that doesn't speed it up as much as we would hope)
+                    TerraformConfigurationImpl entity = (TerraformConfigurationImpl) Entities.deproxy(getEntity());
+                    entity.updateModelAfterApply(applied, () -> entity.planInternal(true));
                 });
-        runQueued(tb.build());
+        // not runQueued: the commands this runs take their own scheduler slots, and must not hold one while waiting for the lock
+        TaskAdaptable<Object> t = DynamicTasks.queue(tb.build());
+        DynamicTasks.waitForLast();
+        t.asTask().getUnchecked();
 
     }
 
@@ -421,7 +601,8 @@ public interface TerraformDriver extends SoftwareProcessDriver {
         Exception error = null;
         try {
             ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).runWorkflow(TerraformConfiguration.PRE_DESTROY_WORKFLOW);
-            runQueued( taskForTerraformSubCommand("apply -destroy -auto-approve -no-color", "terraform destroy") );
+            TerraformApplyMonitor monitor = newApplyMonitor();
+            runQueuedWithProgress( taskForTerraformSubCommand("apply -destroy -auto-approve -no-color -json", "terraform destroy", monitor), monitor);
             ((TerraformConfigurationImpl) Entities.deproxy(getEntity())).runWorkflow(TerraformConfiguration.POST_DESTROY_WORKFLOW);
 
             ((TerraformConfiguration) getEntity()).removeDiscoveredResources();
@@ -1,8 +1,11 @@
 package io.cloudsoft.terraform;
 
+import com.google.common.collect.ImmutableMap;
 import org.apache.brooklyn.api.entity.EntityLocal;
 import org.apache.brooklyn.core.entity.BrooklynConfigKeys;
 import org.apache.brooklyn.core.entity.Entities;
+import org.apache.brooklyn.util.core.internal.ssh.ShellTool;
+import org.apache.brooklyn.util.core.internal.ssh.process.ProcessTool;
 import org.apache.brooklyn.util.core.task.DynamicTasks;
 import org.apache.brooklyn.util.core.task.system.ProcessTaskFactory;
 import org.apache.brooklyn.util.core.task.system.internal.SystemProcessTaskFactory;
@@ -15,8 +18,10 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -37,6 +42,12 @@ public class TerraformLocalDriver extends TerraformOnMachineDriver implements Te
         return tf;
     }
 
+    @Override
+    protected int execCommand(String summary, String command, Map<String, String> env, OutputStream out, OutputStream err) {
+        return new ProcessTool().execCommands(ImmutableMap.of(ShellTool.PROP_OUT_STREAM.getName(), out, ShellTool.PROP_ERR_STREAM.getName(), err),
+                Collections.singletonList(command), env);
+    }
+
     @Override
     public void copyTo(InputStream tfStream, String target) {
         try {
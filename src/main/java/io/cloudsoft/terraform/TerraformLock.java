@@ -0,0 +1,339 @@
+package io.cloudsoft.terraform;
+
+import io.cloudsoft.terraform.TerraformDriver.LockMode;
+import org.apache.brooklyn.api.mgmt.Task;
+import org.apache.brooklyn.api.sensor.AttributeSensor;
+import org.apache.brooklyn.core.entity.EntityInternal;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.core.task.Tasks;
+import org.apache.brooklyn.util.exceptions.Exceptions;
+import org.apache.brooklyn.util.time.CountdownTimer;
+import org.apache.brooklyn.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * The lock a {@link TerraformConfiguration} holds while running terraform commands and updating its model,
+ * so that changes and refreshes do not overlap.
+ * <p>
+ * It is held {@link LockMode#SHARED shared} by operations which only read, which can run together,
+ * or {@link LockMode#EXCLUSIVE exclusive} by those which change the state or the working directory.
+ * Callers wait in a queue and the lock is handed to the next one as soon as it is released, rather than each polling for it.
+ * Callers which are not running in the {@link TerraformCommandScheduler#isBackground() background}, ie effectors rather than the
+ * polling feed, are granted it first; otherwise the order is first come, first served, and shared callers do not overtake an exclusive one.
+ * The lock is reentrant: a thread which holds it, or a task submitted (directly or indirectly) by one which does, does not wait;
+ * but an operation holding it shared cannot take it exclusively.
+ * <p>
+ * Background operations which only read, such as the plan run by a refresh, can hold it preemptibly:
+ * when an effector needs the lock, the terraform command they are running is {@link TerraformDriver#cancelCommand(Task) cancelled},
+ * they fail with a {@link PreemptedException}, and the lock passes to the effector.
+ * <p>
+ * Time spent waiting and holding the lock is counted in {@link TerraformConfiguration#LOCK_WAIT_HISTOGRAM} and
+ * {@link TerraformConfiguration#LOCK_HOLD_HISTOGRAM}. Not persisted; the lock is not held across rebind.
+ */
+class TerraformLock {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerraformLock.class);
+
+    /** upper bounds of the histogram buckets; the last bucket counts everything longer */
+    static final Duration[] HISTOGRAM_BOUNDS = { Duration.ONE_SECOND, Duration.TEN_SECONDS, Duration.ONE_MINUTE, Duration.FIVE_MINUTES, Duration.THIRTY_MINUTES };
+
+    /** thrown by a preemptible operation which was preempted by an effector needing the lock */
+    static class PreemptedException extends CancellationException {
+        PreemptedException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Waiter {
+        final String summary;
+        final LockMode mode;
+        final boolean background;
+        final boolean preemptible;
+        final long sequence;
+        final Thread thread = Thread.currentThread();
+        boolean granted = false;
+        boolean preempted = false;
+        /** the command this holder is running, if preemptible */
+        Task<?> command;
+
+        Waiter(String summary, LockMode mode, boolean background, boolean preemptible, long sequence) {
+            this.summary = summary;
+            this.mode = mode;
+            this.background = background;
+            this.preemptible = preemptible;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public String toString() {
+            return summary + " (" + (mode==LockMode.SHARED ? "shared, " : "") + (background ? "background, " : "") + "thread " + thread.getName() + ")";
+        }
+    }
+
+    private final EntityInternal entity;
+    private final Consumer<Task<?>> commandCanceller;
+    private final List<Waiter> waiting = new ArrayList<>();
+    private final Map<String, Long> waitHistogram = newHistogram();
+    private final Map<String, Long> holdHistogram = newHistogram();
+    private final List<Waiter> holders = new ArrayList<>();
+    private long sequence = 0;
+    private long exclusiveReleases = 0;
+
+    /** @param commandCanceller cancels a command being run by a preempted holder */
+    TerraformLock(EntityInternal entity, Consumer<Task<?>> commandCanceller) {
+        this.entity = entity;
+        this.commandCanceller = commandCanceller;
+    }
+
+    <V> V callWithLock(String summary, LockMode mode, Callable<V> job, Duration timeout) {
+        return callWithLock(summary, mode, job, timeout, false);
+    }
+
+    /**
+     * Runs the job holding the lock in the given mode, waiting for it if needed.
+     * @param timeout how long to wait before failing with an {@link IllegalStateException}; negative to wait indefinitely
+     * @param preemptible whether, if run in the background, the job can be cancelled when an effector needs the lock;
+     *                    it must then only run commands which are safe to abort
+     * @throws PreemptedException if the job was preempted
+     */
+    <V> V callWithLock(String summary, LockMode mode, Callable<V> job, Duration timeout, boolean preemptible) {
+        Waiter heldBy = heldByCurrentTaskOrAncestor();
+        if (heldBy!=null) {
+            if (mode==LockMode.EXCLUSIVE && heldBy.mode==LockMode.SHARED) {
+                throw new IllegalStateException("Cannot perform "+summary+": requires the terraform lock exclusively, but it is held shared by "+heldBy);
+            }
+            LOG.debug("Already had lock for '"+summary+"', from "+heldBy);
+            return call(job);
+        }
+
+        Waiter waiter;
+        synchronized (this) {
+            boolean background = TerraformCommandScheduler.isBackground();
+            waiter = new Waiter(summary, mode, background, preemptible && background, sequence++);
+        }
+        long start = System.currentTimeMillis();
+        acquire(waiter, timeout);
+        long acquired = System.currentTimeMillis();
+        record(waitHistogram, TerraformConfiguration.LOCK_WAIT_HISTOGRAM, acquired - start);
+        LOG.debug("Acquired lock for '"+summary+"' (thread "+waiter.thread+") after "+Duration.millis(acquired - start));
+        try {
+            return call(job);
+        } catch (RuntimeException e) {
+            if (isPreempted(waiter)) throw new PreemptedException("Preempted '"+summary+"' to give the terraform lock to an effector");
+            throw e;
+        } finally {
+            release(waiter);
+            record(holdHistogram, TerraformConfiguration.LOCK_HOLD_HISTOGRAM, System.currentTimeMillis() - acquired);
+            LOG.debug("Cleared lock for '"+summary+"' (thread "+waiter.thread+")");
+        }
+    }
+
+    private void acquire(Waiter waiter, Duration timeout) {
+        List<Waiter> preempted;
+        synchronized (this) {
+            waiting.add(waiter);
+            dispatch();
+            if (waiter.granted) return;
+            preempted = preemptFor(waiter);
+        }
+        preempted.forEach(this::cancelCommand);
+        CountdownTimer timer = timeout==null || timeout.isNegative() ? null : timeout.countdownTimer();
+        try {
+            Tasks.withBlockingDetails("Waiting on terraform lock (change or refresh in progress?), owned by "+getOwner()+", to run "+waiter.summary, () -> {
+                synchronized (this) {
+                    while (!waiter.granted) {
+                        if (timer==null) {
+                            wait();
+                        } else {
+                            long remaining = timer.getDurationRemaining().toMilliseconds();
+                            if (remaining<=0) {
+                                throw new IllegalStateException("Cannot perform "+waiter.summary+": operation timed out before lock available (is another change or refresh in progress?)");
+                            }
+                            wait(remaining);
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            synchronized (this) {
+                if (waiter.granted) {
+                    // granted as we gave up; hand it on
+                    release(waiter);
+                } else {
+                    waiting.remove(waiter);
+                    publishQueue();
+                }
+            }
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /** marks the preemptible background holders which conflict with an effector as preempted; caller must hold the monitor */
+    private List<Waiter> preemptFor(Waiter waiter) {
+        List<Waiter> result = new ArrayList<>();
+        if (waiter.background) return result;
+        for (Waiter holder : holders) {
+            if (holder.preemptible && !holder.preempted && (holder.mode==LockMode.EXCLUSIVE || waiter.mode==LockMode.EXCLUSIVE)) {
+                holder.preempted = true;
+                result.add(holder);
+            }
+        }
+        if (!result.isEmpty()) {
+            LOG.debug("Preempting "+result+" at "+entity+" to run "+waiter);
+            Long count = entity.sensors().get(TerraformConfiguration.LOCK_PREEMPTIONS);
+            entity.sensors().set(TerraformConfiguration.LOCK_PREEMPTIONS, (count==null ? 0 : count) + result.size());
+        }
+        return result;
+    }
+
+    private void cancelCommand(Waiter holder) {
+        Task<?> command;
+        synchronized (this) {
+            command = holder.command;
+        }
+        if (command!=null && !command.isDone()) {
+            try {
+                commandCanceller.accept(command);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Unable to cancel "+command+" when preempting "+holder+" at "+entity+" (ignoring): "+e);
+            }
+        }
+    }
+
+    private synchronized boolean isPreempted(Waiter waiter) {
+        return waiter.preempted;
+    }
+
+    /**
+     * Runs a terraform command for the current operation, recording it if the operation holds the lock preemptibly so it can be cancelled.
+     * @throws PreemptedException if the operation has been preempted, rather than starting another command
+     */
+    <T> T runCommand(Task<?> command, Callable<T> run) {
+        Waiter holder = heldByCurrentTaskOrAncestor();
+        boolean tracked = false;
+        if (holder!=null && holder.preemptible) {
+            synchronized (this) {
+                if (holder.preempted) throw new PreemptedException("Preempted '"+holder.summary+"' before running "+command);
+                holder.command = command;
+                tracked = true;
+            }
+        }
+        try {
+            return call(run);
+        } finally {
+            if (tracked) {
+                synchronized (this) {
+                    if (holder.command==command) holder.command = null;
+                }
+            }
+        }
+    }
+
+    private synchronized void release(Waiter waiter) {
+        if (holders.remove(waiter) && waiter.mode==LockMode.EXCLUSIVE) exclusiveReleases++;
+        dispatch();
+    }
+
+    /**
+     * Grants the lock to as many waiters as it can in order (effectors before background refreshes, then arrival order):
+     * one exclusive waiter if there are no holders, or consecutive shared waiters if there is no exclusive holder.
+     * Caller must hold the monitor.
+     */
+    private void dispatch() {
+        while (!waiting.isEmpty()) {
+            Waiter next = null;
+            for (Waiter w : waiting) {
+                if (next==null || (next.background && !w.background) || (next.background==w.background && w.sequence < next.sequence)) {
+                    next = w;
+                }
+            }
+            boolean available = next.mode==LockMode.EXCLUSIVE ? holders.isEmpty() : holders.stream().noneMatch(h -> h.mode==LockMode.EXCLUSIVE);
+            if (!available) break;
+            waiting.remove(next);
+            next.granted = true;
+            holders.add(next);
+            notifyAll();
+            if (next.mode==LockMode.EXCLUSIVE) break;
+        }
+        entity.sensors().set(TerraformConfiguration.LOCK_OWNER, getOwner());
+        publishQueue();
+    }
+
+    private void publishQueue() {
+        entity.sensors().set(TerraformConfiguration.LOCK_QUEUE_DEPTH, waiting.size());
+    }
+
+    /** @return the hold of the lock by this thread or a task which submitted the current task, if any */
+    private synchronized Waiter heldByCurrentTaskOrAncestor() {
+        if (holders.isEmpty()) return null;
+        Task<?> task = Tasks.current();
+        for (Waiter holder : holders) {
+            if (holder.thread.equals(Thread.currentThread())) return holder;
+            for (Task<?> t = task; t!=null; t = t.getSubmittedByTask()) {
+                if (holder.thread.equals(t.getThread())) return holder;
+            }
+        }
+        return null;
+    }
+
+    /** @return the operations holding the lock, or null if it is free */
+    synchronized String getOwner() {
+        if (holders.isEmpty()) return null;
+        return holders.stream().map(Waiter::toString).collect(Collectors.joining(", "));
+    }
+
+    /**
+     * @return the number of times the lock has been released by an exclusive holder, which may have changed the state;
+     * an operation can compare this before and after waiting to see whether what it read while holding the lock shared may be stale
+     */
+    synchronized long getExclusiveReleases() {
+        return exclusiveReleases;
+    }
+
+    synchronized int getQueueDepth() {
+        return waiting.size();
+    }
+
+    private static Map<String, Long> newHistogram() {
+        Map<String, Long> result = MutableMap.of();
+        for (Duration bound : HISTOGRAM_BOUNDS) result.put("<"+bound, 0L);
+        result.put(">="+HISTOGRAM_BOUNDS[HISTOGRAM_BOUNDS.length-1], 0L);
+        return result;
+    }
+
+    private void record(Map<String, Long> histogram, AttributeSensor<Map<String, Long>> sensor, long millis) {
+        Map<String, Long> snapshot;
+        synchronized (histogram) {
+            String bucket = ">="+HISTOGRAM_BOUNDS[HISTOGRAM_BOUNDS.length-1];
+            for (Duration bound : HISTOGRAM_BOUNDS) {
+                if (millis < bound.toMilliseconds()) {
+                    bucket = "<"+bound;
+                    break;
+                }
+            }
+            histogram.merge(bucket, 1L, Long::sum);
+            snapshot = MutableMap.copyOf(histogram);
+        }
+        entity.sensors().set(sensor, snapshot);
+    }
+
+    private static <V> V call(Callable<V> job) {
+        try {
+            return job.call();
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+}
@@ -1,11 +1,13 @@
 package io.cloudsoft.terraform;
 
 import com.google.common.collect.ImmutableMap;
+import io.cloudsoft.terraform.util.TailOutputStream;
 import org.apache.brooklyn.api.entity.EntityLocal;
 import org.apache.brooklyn.api.location.OsDetails;
 import org.apache.brooklyn.api.mgmt.Task;
 import org.apache.brooklyn.core.entity.Attributes;
 import org.apache.brooklyn.core.entity.Entities;
+import org.apache.brooklyn.core.mgmt.BrooklynTaskTags;
 import org.apache.brooklyn.entity.software.base.AbstractSoftwareProcessSshDriver;
 import org.apache.brooklyn.location.ssh.SshMachineLocation;
 import org.apache.brooklyn.util.core.task.DynamicTasks;
@@ -13,17 +15,26 @@ import org.apache.brooklyn.util.core.task.Tasks;
 import org.apache.brooklyn.util.core.task.system.ProcessTaskFactory;
 import org.apache.brooklyn.util.exceptions.Exceptions;
 import org.apache.brooklyn.util.os.Os;
+import org.apache.brooklyn.util.stream.Streams;
 import org.apache.brooklyn.util.ssh.BashCommands;
+import org.apache.brooklyn.util.text.Identifiers;
+import org.apache.brooklyn.util.text.StringEscapes;
 import org.apache.brooklyn.util.text.Strings;
+import org.apache.brooklyn.util.time.Duration;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static io.cloudsoft.terraform.TerraformConfiguration.TERRAFORM_DOWNLOAD_URL;
 import static io.cloudsoft.terraform.TerraformConfiguration.TERRAFORM_PATH;
@@ -33,6 +44,11 @@ import static org.apache.brooklyn.util.ssh.BashCommands.commandsToDownloadUrlsAs
 public abstract class TerraformOnMachineDriver extends AbstractSoftwareProcessSshDriver implements TerraformDriver {
     private static final Logger LOG = LoggerFactory.getLogger(TerraformOnMachineDriver.class);
 
+    static final String PID_FILE_SUFFIX = ".command.pid";
+    private static final Pattern PID_FILE = Pattern.compile("[^\\s'\"]+" + Pattern.quote(PID_FILE_SUFFIX));
+    private static final Duration KILL_TIMEOUT = Duration.seconds(45);
+    static final int OUTPUT_TAIL_BYTES = 64*1024;
+
     protected Boolean terraformAlreadyAvailable;
     protected Boolean terraformInPath;
 
@@ -74,6 +90,120 @@ public abstract class TerraformOnMachineDriver extends AbstractSoftwareProcessSs
         return format("cd %s && %s", getTerraformActiveDir(), command);
     }
 
+    /**
+     * Runs the command with <code>bash</code> in its own session where <code>setsid</code> is available, recording in a pid file in the run dir
+     * its process group (as a negative number) or, if it could not be given one, the pid of the shell running it; the file is removed when it exits.
+     * {@link #cancelCommand(Task)} then kills that group, or the shell and all its descendants.
+     */
+    @Override
+    public String makeKillableCommand(String command) {
+        String pidFile = Os.mergePathsUnix(getRunDir(), Identifiers.makeRandomId(8) + PID_FILE_SUFFIX);
+        return format("cd %s && $( setsid -w true > /dev/null 2>&1 && echo setsid -w ) bash -c " +
+                        "'if [ \"$( ps -o pgid= -p $$ | tr -d \" \" )\" = \"$$\" ] ; then echo -$$ ; else echo $$ ; fi > %s ; " +
+                        "bash -c \"$0\" ; rc=$? ; rm -f %s ; exit $rc' %s",
+                getTerraformActiveDir(), pidFile, pidFile, StringEscapes.BashStringEscapes.wrapBash(command));
+    }
+
+    /**
+     * Kills the processes of the command, if it was made by {@link #makeKillableCommand(String)}, waiting for them to exit, before cancelling the task;
+     * so once the operation running it fails, nothing is still writing the files it was using, eg a plan file, and they can be removed.
+     */
+    @Override
+    public void cancelCommand(Task<?> task) {
+        String pidFile = pidFileOf(task);
+        if (pidFile!=null) {
+            Task<?> kill = Entities.submit(getEntity(), newCommandTaskFactory(false, killProcessGroupCommand(pidFile))
+                    .allowingNonZeroExitCode()
+                    .summary("kill process of cancelled command")
+                    .newTask());
+            if (!kill.blockUntilEnded(KILL_TIMEOUT)) {
+                LOG.warn("Process of cancelled command "+task+" at "+getEntity()+" did not exit within "+KILL_TIMEOUT+"; cancelling anyway");
+            }
+        }
+        TerraformDriver.super.cancelCommand(task);
+    }
+
+    /**
+     * Runs the command on the machine directly, rather than with a task from {@link #newCommandTaskFactory(boolean, String)},
+     * so its stdout can be passed to the sink as it is written. Only the last {@link #OUTPUT_TAIL_BYTES} of its stdout and stderr are kept,
+     * to record on the task and to report if the exit code is not zero, so memory does not grow with its output;
+     * the sink is expected to read what it needs as it is written. Returns the kept tail of stdout.
+     * Without a sink, it is run as {@link #taskForTerraformSubCommand(String, String)}.
+     */
+    @Override
+    public Task<String> taskForTerraformSubCommand(String terraformSubCommand, String name, OutputStream stdoutSink) {
+        if (stdoutSink==null) return taskForTerraformSubCommand(terraformSubCommand, name);
+        String command = makeCommandInTerraformActiveDir(prependTerraformExecutable(terraformSubCommand));
+        Map<String, String> env = getShellEnvironment();
+        TailOutputStream stdout = new TailOutputStream(OUTPUT_TAIL_BYTES);
+        TailOutputStream stderr = new TailOutputStream(OUTPUT_TAIL_BYTES);
+        Callable<String> body = () -> {
+            int exitCode = execCommand(name, command, env, tee(stdout, stdoutSink), stderr);
+            if (exitCode!=0) {
+                throw new IllegalStateException("Error running "+name+": exit code "+exitCode+
+                        (stderr.size()>0 ? "; stderr: "+stderr : stdout.size()>0 ? "; stdout: "+stdout : ""));
+            }
+            return stdout.toString();
+        };
+        return Tasks.<String>builder()
+                .displayName(name)
+                .tag(BrooklynTaskTags.tagForStreamSoft(BrooklynTaskTags.STREAM_STDIN, Streams.byteArrayOfString(command)))
+                .tag(BrooklynTaskTags.tagForStreamSoft(BrooklynTaskTags.STREAM_STDOUT, stdout))
+                .tag(BrooklynTaskTags.tagForStreamSoft(BrooklynTaskTags.STREAM_STDERR, stderr))
+                .body(body)
+                .build();
+    }
+
+    /**
+     * runs the command on the machine, with the given environment, writing its output to the given streams as it is written
+     * @return the exit code
+     */
+    protected abstract int execCommand(String summary, String command, Map<String, String> env, OutputStream out, OutputStream err);
+
+    private static OutputStream tee(OutputStream first, OutputStream second) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                first.write(b);
+                second.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                first.write(b, off, len);
+                second.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                first.flush();
+                second.flush();
+            }
+        };
+    }
+
+    /** the pid file written by the command run by the task, from the script it was given, if it was made by {@link #makeKillableCommand(String)} */
+    protected static String pidFileOf(Task<?> task) {
+        BrooklynTaskTags.WrappedStream stdin = BrooklynTaskTags.stream(task, BrooklynTaskTags.STREAM_STDIN);
+        if (stdin==null || stdin.streamContents==null) return null;
+        Matcher matcher = PID_FILE.matcher(stdin.streamContents.get());
+        return matcher.find() ? matcher.group() : null;
+    }
+
+    /**
+     * terminates the process group in the pid file, or if it has a pid rather than a group, that process and all its descendants,
+     * waiting up to 30s for them to exit before killing them outright; does nothing if the command already exited
+     */
+    protected static String killProcessGroupCommand(String pidFile) {
+        return "if [ -f " + pidFile + " ] ; then p=$( cat " + pidFile + " ) ; " +
+                "d() { echo $1 ; for c in $( pgrep -P $1 2> /dev/null ) ; do d $c ; done ; } ; " +
+                "case $p in -*) t=$p ;; *) t=$( d $p ) ;; esac ; " +
+                "alive() { for q in $t ; do kill -0 -- $q 2> /dev/null && return 0 ; done ; return 1 ; } ; " +
+                "for q in $t ; do kill -TERM -- $q 2> /dev/null ; done ; " +
+                "for i in $( seq 30 ) ; do alive || break ; sleep 1 ; done ; " +
+                "for q in $t ; do kill -KILL -- $q 2> /dev/null ; done ; rm -f " + pidFile + " ; fi";
+    }
+
     @Override
     public boolean isRunning() {
         return true;
@@ -0,0 +1,127 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.hash.Hashing;
+import io.cloudsoft.terraform.TerraformConfiguration.TerraformStatus;
+import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.util.text.Strings;
+import org.apache.brooklyn.util.time.Duration;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Remembers the fingerprint of the inputs to the last full plan of a {@link TerraformConfiguration},
+ * so that a background refresh can reuse the previous {@link TerraformConfiguration#PLAN} instead of running terraform
+ * when nothing AMP controls has changed.
+ * <p>
+ * The fingerprint combines {@link TerraformDriver#runPlanFingerprintTask()} with the shell environment (which includes <code>TF_VAR_*</code> values).
+ * It cannot see changes made in the cloud, so a full plan still runs at least every {@link TerraformConfiguration#PLAN_REFRESH_INTERVAL}.
+ * Nor can it see state kept by a remote backend, so once one is found the last plan is never reused and the fingerprint is not computed
+ * for background refreshes, until the configuration is next applied, destroyed or reinstalled.
+ * Computing it runs a command, which in <code>kube</code> mode is a Kubernetes job, so it is only worth doing where that is cheaper than a plan.
+ * <p>
+ * It also keeps the file of the last plan which found changes, with the fingerprint it was made from, so that an apply can use it
+ * when nothing has changed since, rather than planning again.
+ * <p>
+ * Not persisted; after rebind the first refresh always runs a full plan, and any kept plan file is left unused.
+ */
+class TerraformPlanCache {
+
+    /** marks the fingerprint of a configuration whose state is in a remote backend */
+    static final String REMOTE_BACKEND_PREFIX = "remote:";
+
+    private final Entity entity;
+
+    private String fingerprint;
+    private boolean remoteBackend = false;
+    private long lastFullPlanUtc = 0;
+    private long reused = 0;
+    private SavedPlan savedPlan;
+
+    /** a plan file kept so that an apply can use it rather than planning again */
+    static class SavedPlan {
+        final String file;
+        final String fingerprint;
+        final long createdUtc = System.currentTimeMillis();
+
+        SavedPlan(String file, String fingerprint) {
+            this.file = file;
+            this.fingerprint = fingerprint;
+        }
+
+        Duration getAge() {
+            return Duration.millis(System.currentTimeMillis() - createdUtc);
+        }
+    }
+
+    TerraformPlanCache(Entity entity) {
+        this.entity = entity;
+    }
+
+    static String fingerprint(TerraformDriver driver) {
+        String files = driver.runPlanFingerprintTask();
+        String env = new TreeMap<>(driver.getShellEnvironment()).toString();
+        return files + ":" + Hashing.sha256().hashString(env, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether the last plan can be reused: state not in a remote backend, fingerprint unchanged, last plan found no drift,
+     * and the refresh interval has not elapsed.
+     */
+    synchronized boolean isReusable(String newFingerprint, TerraformStatus lastStatus) {
+        if (newFingerprint!=null && newFingerprint.startsWith(REMOTE_BACKEND_PREFIX)) remoteBackend = true;
+        if (remoteBackend) return false;
+        if (Strings.isBlank(newFingerprint) || !Objects.equals(fingerprint, newFingerprint)) return false;
+        if (!TerraformStatus.SYNC.equals(lastStatus)) return false;
+        Duration interval = entity.config().get(TerraformConfiguration.PLAN_REFRESH_INTERVAL);
+        if (interval==null || interval.toMilliseconds()<=0) return false;
+        return System.currentTimeMillis() < lastFullPlanUtc + interval.toMilliseconds();
+    }
+
+    synchronized long onReused() {
+        return ++reused;
+    }
+
+    /**
+     * Records a full plan.
+     * @param newFingerprint the fingerprint of the inputs to that plan, or null if not known or if the plan changed state (so the fingerprint is stale)
+     */
+    synchronized void onFullPlan(String newFingerprint) {
+        fingerprint = newFingerprint;
+        lastFullPlanUtc = System.currentTimeMillis();
+    }
+
+    /**
+     * Keeps a plan file for an apply to use.
+     * @param fingerprint the fingerprint of the inputs to the plan, including the state it was made from
+     * @return the plan file kept previously, which the caller should remove, or null
+     */
+    synchronized String savePlan(String file, String fingerprint) {
+        String previous = savedPlan==null ? null : savedPlan.file;
+        savedPlan = new SavedPlan(file, fingerprint);
+        return previous;
+    }
+
+    /** @return the plan file kept, if any, which the caller then owns, ie must apply or remove */
+    synchronized SavedPlan takeSavedPlan() {
+        SavedPlan result = savedPlan;
+        savedPlan = null;
+        return result;
+    }
+
+    synchronized void invalidate() {
+        fingerprint = null;
+        remoteBackend = false;
+    }
+
+    /** whether a remote backend was found, so fingerprinting for reuse is pointless */
+    synchronized boolean isRemoteBackend() {
+        return remoteBackend;
+    }
+
+    synchronized String getFingerprint() {
+        return fingerprint;
+    }
+
+}
@@ -0,0 +1,113 @@
+package io.cloudsoft.terraform;
+
+import io.cloudsoft.terraform.TerraformConfiguration.TerraformStatus;
+import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.util.time.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when the background refresh of a {@link TerraformConfiguration} is next due.
+ * <p>
+ * The refresh feed ticks at the base {@link TerraformCommons#POLLING_PERIOD}, and ticks are skipped until this says a refresh is due.
+ * While refreshes keep finding the configuration in {@link TerraformStatus#SYNC} the effective period is multiplied by
+ * {@link TerraformCommons#POLLING_BACKOFF_MULTIPLIER}, up to {@link TerraformCommons#POLLING_PERIOD_MAX};
+ * any other status, a failed refresh, or an effector being invoked snaps it back to the base period.
+ * If a refresh takes longer than the effective period, the next one is scheduled at least that long after it finishes,
+ * so a slow configuration does not spend all its time refreshing.
+ * <p>
+ * Not persisted; after rebind the schedule restarts at the base period.
+ */
+class TerraformPollingSchedule {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerraformPollingSchedule.class);
+
+    /** number of refreshes that run at the base period after an effector, before backing off is allowed again */
+    static final int FAST_REFRESHES_AFTER_ACTIVITY = 2;
+
+    private final Entity entity;
+
+    private long periodMillis;
+    private long nextDueUtc = 0;
+    private int refreshesInProgress = 0;
+    private int fastRefreshesRemaining = 0;
+    private long overruns = 0;
+
+    TerraformPollingSchedule(Entity entity) {
+        this.entity = entity;
+        this.periodMillis = getBasePeriod().toMilliseconds();
+    }
+
+    /** whether a background refresh should run now; false if one is running (eg from an effector) or the period has not elapsed */
+    synchronized boolean isDue() {
+        return refreshesInProgress==0 && System.currentTimeMillis() >= nextDueUtc;
+    }
+
+    synchronized void onRefreshStarted() {
+        refreshesInProgress++;
+    }
+
+    /**
+     * Records the end of a refresh and computes the next due time.
+     * @param status the drift status the refresh found, or null if the refresh failed
+     * @param took how long the refresh ran for
+     */
+    synchronized void onRefreshCompleted(TerraformStatus status, Duration took) {
+        refreshesInProgress = Math.max(0, refreshesInProgress-1);
+
+        long base = getBasePeriod().toMilliseconds();
+        long max = Math.max(base, getMaxPeriod().toMilliseconds());
+        if (TerraformStatus.SYNC.equals(status) && fastRefreshesRemaining<=0) {
+            double multiplier = Math.max(1, getMultiplier());
+            periodMillis = Math.min(max, Math.max(base, (long) (periodMillis * multiplier)));
+        } else {
+            periodMillis = base;
+            if (fastRefreshesRemaining>0) fastRefreshesRemaining--;
+        }
+
+        long delay = periodMillis;
+        if (took!=null && took.toMilliseconds() > periodMillis) {
+            overruns++;
+            LOG.debug("Terraform refresh at "+entity+" took "+took+", longer than polling period "+Duration.millis(periodMillis)+"; delaying next refresh accordingly ("+overruns+" overruns)");
+            delay = took.toMilliseconds();
+        }
+        nextDueUtc = System.currentTimeMillis() + delay;
+    }
+
+    /** a refresh was preempted by an effector; run it again after the base period, without counting it as a result */
+    synchronized void onRefreshPreempted() {
+        refreshesInProgress = Math.max(0, refreshesInProgress-1);
+        nextDueUtc = System.currentTimeMillis() + getBasePeriod().toMilliseconds();
+    }
+
+    /** an effector has run or is about to run; poll at the base period for the next few refreshes */
+    synchronized void onActivity() {
+        periodMillis = getBasePeriod().toMilliseconds();
+        fastRefreshesRemaining = FAST_REFRESHES_AFTER_ACTIVITY;
+        nextDueUtc = Math.min(nextDueUtc, System.currentTimeMillis() + periodMillis);
+    }
+
+    synchronized Duration getPeriod() {
+        return Duration.millis(periodMillis);
+    }
+
+    synchronized long getOverruns() {
+        return overruns;
+    }
+
+    private Duration getBasePeriod() {
+        Duration result = entity.config().get(TerraformCommons.POLLING_PERIOD);
+        return result!=null ? result : TerraformCommons.POLLING_PERIOD.getDefaultValue();
+    }
+
+    private Duration getMaxPeriod() {
+        Duration result = entity.config().get(TerraformCommons.POLLING_PERIOD_MAX);
+        return result!=null ? result : getBasePeriod();
+    }
+
+    private double getMultiplier() {
+        Double result = entity.config().get(TerraformCommons.POLLING_BACKOFF_MULTIPLIER);
+        return result!=null ? result : 1;
+    }
+
+}
@@ -0,0 +1,152 @@
+package io.cloudsoft.terraform;
+
+import io.cloudsoft.terraform.entity.DataResource;
+import io.cloudsoft.terraform.entity.ManagedResource;
+import io.cloudsoft.terraform.entity.ResourceGroup;
+import io.cloudsoft.terraform.entity.TerraformResource;
+import io.cloudsoft.terraform.parser.EntityParser;
+import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.core.entity.Entities;
+import org.apache.brooklyn.entity.group.BasicGroup;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.apache.brooklyn.util.collections.MutableMap;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Index of the resource entities of a {@link TerraformConfiguration} by address, of its {@link ResourceGroup}s, and of its "Data Resources" group,
+ * so that reconciling the state and processing plans do not scan the children for each resource.
+ * <p>
+ * Not persisted; it is built from the children on first use, including after rebind, and kept current by the code
+ * which creates and unmanages resource entities. Entries for entities which are no longer managed are ignored and rebuilt.
+ */
+class TerraformResourceIndex {
+
+    private final Entity entity;
+
+    private Map<String, Entity> managedResources;
+    private Map<String, Entity> dataResources;
+    private Map<String, Entity> groups;
+    private Optional<BasicGroup> dataGroup;
+
+    TerraformResourceIndex(Entity entity) {
+        this.entity = entity;
+    }
+
+    private void build() {
+        if (managedResources != null) return;
+        managedResources = MutableMap.of();
+        dataResources = MutableMap.of();
+        groups = MutableMap.of();
+        putManagedResources(entity);
+        dataGroup = EntityParser.getDataResourcesGroup(entity);
+        dataGroup.ifPresent(g -> g.getChildren().stream().filter(c -> c instanceof DataResource && isCurrent(c)).forEach(this::put));
+    }
+
+    private void putManagedResources(Entity parent) {
+        parent.getChildren().stream().filter(TerraformResourceIndex::isCurrent).forEach(c -> {
+            if (c instanceof ManagedResource) put(c);
+            else if (c instanceof ResourceGroup) {
+                put(c);
+                putManagedResources(c);
+            }
+        });
+    }
+
+    private void put(Entity resource) {
+        if (resource instanceof ResourceGroup) {
+            String address = resource.config().get(ResourceGroup.GROUP_ADDRESS);
+            if (address != null) groups.put(address, resource);
+            return;
+        }
+        String address = resource.config().get(TerraformResource.ADDRESS);
+        if (address == null) return;
+        if (resource instanceof DataResource) dataResources.put(address, resource);
+        else if (resource instanceof ManagedResource) managedResources.put(address, resource);
+    }
+
+    private static boolean isCurrent(Entity e) {
+        return e != null && Entities.isManaged(e);
+    }
+
+    /** @return the managed resource entity with the given address, if there is one */
+    synchronized Optional<Entity> getManagedResource(String address) {
+        build();
+        Entity result = managedResources.get(address);
+        if (result != null && !isCurrent(result)) {
+            invalidate();
+            return getManagedResource(address);
+        }
+        return Optional.ofNullable(result);
+    }
+
+    /** @return the {@link ResourceGroup} with the given module or unindexed resource address, if there is one */
+    synchronized Optional<Entity> getGroup(String address) {
+        build();
+        Entity result = groups.get(address);
+        if (result != null && !isCurrent(result)) {
+            invalidate();
+            return getGroup(address);
+        }
+        return Optional.ofNullable(result);
+    }
+
+    /** @return a snapshot of the resource groups */
+    synchronized Collection<Entity> getGroups() {
+        build();
+        Collection<Entity> result = MutableList.copyOf(groups.values());
+        if (!result.stream().allMatch(TerraformResourceIndex::isCurrent)) {
+            invalidate();
+            return getGroups();
+        }
+        return result;
+    }
+
+    /** @return a snapshot of the resource entities of the given type (managed or data) */
+    synchronized Collection<Entity> getResources(Class<? extends TerraformResource> type) {
+        build();
+        Collection<Entity> result = MutableList.copyOf(DataResource.class.isAssignableFrom(type) ? dataResources.values() : managedResources.values());
+        if (!result.stream().allMatch(TerraformResourceIndex::isCurrent)) {
+            invalidate();
+            return getResources(type);
+        }
+        return result;
+    }
+
+    synchronized Optional<BasicGroup> getDataResourcesGroup() {
+        build();
+        if (dataGroup.isPresent() && !isCurrent(dataGroup.get())) {
+            invalidate();
+            build();
+        }
+        return dataGroup;
+    }
+
+    /** records resource entities or groups just created, and the data group if one was created for them */
+    synchronized void added(Collection<? extends Entity> resources) {
+        if (managedResources == null) return;
+        resources.forEach(this::put);
+        if (!dataGroup.isPresent() && !dataResources.isEmpty()) {
+            dataGroup = EntityParser.getDataResourcesGroup(entity);
+        }
+    }
+
+    synchronized void removed(Entity resource) {
+        if (managedResources == null) return;
+        String address = resource.config().get(TerraformResource.ADDRESS);
+        if (resource instanceof ResourceGroup) groups.remove(resource.config().get(ResourceGroup.GROUP_ADDRESS), resource);
+        else if (resource instanceof DataResource) dataResources.remove(address, resource);
+        else managedResources.remove(address, resource);
+    }
+
+    /** forces the index to be rebuilt from the children on next use */
+    synchronized void invalidate() {
+        managedResources = null;
+        dataResources = null;
+        groups = null;
+        dataGroup = null;
+    }
+
+}
@@ -0,0 +1,115 @@
+package io.cloudsoft.terraform;
+
+import org.apache.brooklyn.api.mgmt.Task;
+import org.apache.brooklyn.api.sensor.AttributeSensor;
+import org.apache.brooklyn.core.entity.EntityInternal;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.core.task.Tasks;
+import org.apache.brooklyn.util.exceptions.Exceptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Coalesces requests for the same operation on a {@link TerraformConfiguration}, such as plans and applies made by policies,
+ * workflows and users within seconds of each other: a request made while an equivalent one is in flight waits for that one
+ * and gets its result, rather than queueing another terraform run.
+ * <p>
+ * A flight can be joined until the job marks it started, or for as long as it runs if it is joinable while running.
+ * Requests from the task running a flight, or tasks it submitted, are never joined to it, as they would wait for themselves.
+ * Not persisted; after rebind nothing is in flight.
+ */
+class TerraformSingleFlight {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TerraformSingleFlight.class);
+
+    private static class Flight {
+        final String key;
+        final boolean joinableWhileRunning;
+        final Thread thread = Thread.currentThread();
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+        boolean started = false;
+
+        Flight(String key, boolean joinableWhileRunning) {
+            this.key = key;
+            this.joinableWhileRunning = joinableWhileRunning;
+        }
+
+        boolean isRunByCurrentTaskOrAncestor() {
+            if (thread.equals(Thread.currentThread())) return true;
+            for (Task<?> t = Tasks.current(); t!=null; t = t.getSubmittedByTask()) {
+                if (thread.equals(t.getThread())) return true;
+            }
+            return false;
+        }
+    }
+
+    private final EntityInternal entity;
+    private final Map<String, Flight> flights = MutableMap.of();
+
+    TerraformSingleFlight(EntityInternal entity) {
+        this.entity = entity;
+    }
+
+    /**
+     * Runs the job, or if an equivalent one can be joined, waits for it and returns its result (or throws its error).
+     * @param key identifies equivalent requests, eg including the inputs to an apply
+     * @param joinableWhileRunning whether requests can join the flight after it has started, or only while it is waiting to start
+     * @param coalescedCount sensor counting the requests which joined a flight
+     * @param job given a callback to mark the flight started, eg once it has the lock
+     */
+    @SuppressWarnings("unchecked")
+    <T> T run(String key, boolean joinableWhileRunning, AttributeSensor<Long> coalescedCount, Function<Runnable, T> job) {
+        Flight flight;
+        boolean join;
+        synchronized (this) {
+            Flight existing = flights.get(key);
+            join = existing!=null && (!existing.started || existing.joinableWhileRunning) && !existing.isRunByCurrentTaskOrAncestor();
+            if (join) {
+                flight = existing;
+                Long count = entity.sensors().get(coalescedCount);
+                entity.sensors().set(coalescedCount, (count==null ? 0 : count) + 1);
+            } else {
+                flight = new Flight(key, joinableWhileRunning);
+                flights.put(key, flight);
+            }
+        }
+
+        if (join) {
+            LOG.debug("Joining "+key+" already in progress at "+entity);
+            try {
+                return (T) Tasks.withBlockingDetails("Waiting for "+key+" already in progress", () -> flight.result.get());
+            } catch (Exception e) {
+                throw Exceptions.propagate(e instanceof ExecutionException && e.getCause()!=null ? e.getCause() : e);
+            }
+        }
+
+        try {
+            T result = job.apply(() -> started(flight));
+            flight.result.complete(result);
+            return result;
+        } catch (Throwable e) {
+            flight.result.completeExceptionally(e);
+            throw Exceptions.propagate(e);
+        } finally {
+            synchronized (this) {
+                flights.remove(key, flight);
+            }
+        }
+    }
+
+    private synchronized void started(Flight flight) {
+        flight.started = true;
+        if (!flight.joinableWhileRunning) flights.remove(flight.key, flight);
+    }
+
+    /** stops later requests joining the flight in progress for the key, eg because what it does is no longer current */
+    synchronized void detach(String key) {
+        flights.remove(key);
+    }
+
+}
@@ -9,6 +9,7 @@ import org.apache.brooklyn.core.entity.Entities;
 import org.apache.brooklyn.entity.software.base.AbstractSoftwareProcessSshDriver;
 import org.apache.brooklyn.location.ssh.SshMachineLocation;
 import org.apache.brooklyn.util.core.ResourceUtils;
+import org.apache.brooklyn.util.core.internal.ssh.ShellTool;
 import org.apache.brooklyn.util.core.task.DynamicTasks;
 import org.apache.brooklyn.util.core.task.Tasks;
 import org.apache.brooklyn.util.core.task.ssh.SshTasks;
@@ -22,6 +23,8 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +49,12 @@ public class TerraformSshDriver extends TerraformOnMachineDriver {
         return tf;
     }
 
+    @Override
+    protected int execCommand(String summary, String command, Map<String, String> env, OutputStream out, OutputStream err) {
+        return getMachine().execCommands(ImmutableMap.of(ShellTool.PROP_OUT_STREAM.getName(), out, ShellTool.PROP_ERR_STREAM.getName(), err),
+                summary, Collections.singletonList(command), env);
+    }
+
     @Override
     public void copyTo(InputStream tfStream, String target) {
         getMachine().copyTo(tfStream, target);
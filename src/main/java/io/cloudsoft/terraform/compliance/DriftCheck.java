@@ -1,11 +1,12 @@
 package io.cloudsoft.terraform.compliance;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Iterables;
 import io.cloudsoft.amp.dashboard.beans.ComplianceCheck;
 import io.cloudsoft.terraform.TerraformConfiguration;
 import io.cloudsoft.terraform.TerraformConfiguration.TerraformStatus;
 import io.cloudsoft.terraform.entity.ManagedResource;
+import io.cloudsoft.terraform.parser.PlanLogEntry;
 import org.apache.brooklyn.api.entity.Entity;
 import org.apache.brooklyn.api.entity.EntityLocal;
 import org.apache.brooklyn.api.sensor.AttributeSensor;
@@ -13,11 +14,16 @@ import org.apache.brooklyn.api.sensor.SensorEvent;
 import org.apache.brooklyn.api.sensor.SensorEventListener;
 import org.apache.brooklyn.config.ConfigKey;
 import org.apache.brooklyn.core.config.ConfigKeys;
+import org.apache.brooklyn.core.entity.Entities;
 import org.apache.brooklyn.core.entity.EntityInitializers;
 import org.apache.brooklyn.core.entity.EntityInternal;
 import org.apache.brooklyn.core.sensor.Sensors;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.apache.brooklyn.util.collections.MutableMap;
 import org.apache.brooklyn.util.core.config.ConfigBag;
 import org.apache.brooklyn.util.text.Identifiers;
+import org.apache.brooklyn.util.time.Duration;
+import org.apache.brooklyn.util.time.Time;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 
 import static io.cloudsoft.terraform.TerraformDriver.PLAN_MESSAGE;
@@ -36,15 +43,24 @@ public class DriftCheck extends EntityInitializers.InitializerPatternWithConfigK
 
     public static final AttributeSensor<Set<ComplianceCheck>> DRIFT_COMPLIANCE = Sensors.newSensor(ComplianceCheck.SET_TYPE_TOKEN, "dashboard.compliance.terraform.drift");
     public static final ConfigKey<Boolean> ENABLE_DRIFT_COMPLIANCE_CHECK_FOR_MANAGED_RESOURCES = ConfigKeys.newBooleanConfigKey("terraform.resources-drift.enabled", "drift status for managed resources", false);
+    public static final ConfigKey<Duration> DRIFT_COMPLIANCE_DEBOUNCE = ConfigKeys.newConfigKey(Duration.class, "terraform.drift-compliance.debounce",
+            "Time to wait after the plan or drift status changes before updating compliance, so that changes in quick succession are handled once", Duration.ONE_SECOND);
 
     private static final Logger LOG = LoggerFactory.getLogger(DriftCheck.class);
 
     private Boolean doApplyToResources = false;
 
+    /** not used since resource priorities are computed by the configuration's check; kept for specs created with it */
     private int managedResourcesNumber = 0;
 
     public DriftCheck() { }
 
+    public DriftCheck(Boolean applyToResources) {
+        doApplyToResources = applyToResources;
+    }
+
+    /** @deprecated since the number of resources is not used; use {@link #DriftCheck(Boolean)} */
+    @Deprecated
     public DriftCheck(Boolean applyToResources, int resourcesNumber){
         doApplyToResources = applyToResources;
         managedResourcesNumber = resourcesNumber;
@@ -58,51 +74,105 @@ public class DriftCheck extends EntityInitializers.InitializerPatternWithConfigK
     public void apply(EntityLocal entity) {
         if (entity instanceof TerraformConfiguration){
             ((EntityInternal) entity).getMutableEntityType().addSensor(DRIFT_COMPLIANCE);
-            ((TerraformConfiguration) entity).setApplyDriftComplianceToResources(initParam(ENABLE_DRIFT_COMPLIANCE_CHECK_FOR_MANAGED_RESOURCES));
+            Boolean applyToResources = initParam(ENABLE_DRIFT_COMPLIANCE_CHECK_FOR_MANAGED_RESOURCES);
+            ((TerraformConfiguration) entity).setApplyDriftComplianceToResources(applyToResources);
 
-            entity.subscriptions().subscribe(entity, TerraformConfiguration.DRIFT_STATUS, new TerraformEntityDriftCheck(entity));
+            TerraformEntityDriftCheck listener = new TerraformEntityDriftCheck(entity, Boolean.TRUE.equals(applyToResources), initParam(DRIFT_COMPLIANCE_DEBOUNCE));
+            entity.subscriptions().subscribe(entity, TerraformConfiguration.DRIFT_STATUS, listener);
+            entity.subscriptions().subscribe(entity, TerraformConfiguration.PLAN, listener);
             LOG.debug("Terraform Drift Compliance check created for configuration entity: " + entity.getDisplayName());
         } else if((entity instanceof ManagedResource) && doApplyToResources) {
+            // published by the configuration's check
             ((EntityInternal) entity).getMutableEntityType().addSensor(DRIFT_COMPLIANCE);
-
-            entity.subscriptions().subscribe(entity, ManagedResource.RESOURCE_STATUS, new TerraformResourceDriftCheck(entity));
-            LOG.debug("Terraform Drift Compliance check created for resource entity: " + entity.getDisplayName());
         }
     }
 
     private static Predicate<Map<String,Object> > driftInfoCheck = d -> d!=null && d.containsKey(PLAN_STATUS) && !(TerraformConfiguration.TerraformStatus.SYNC.equals(d.get(PLAN_STATUS))) && d.containsKey("tf.resource.changes");
 
-    public class TerraformEntityDriftCheck implements SensorEventListener<TerraformStatus> {
+    /**
+     * Publishes the compliance of the configuration and, if enabled, of all its managed resources, from the plan.
+     * Events in quick succession, such as the plan and the drift status being published together, are handled once,
+     * after the debounce period, and results are only published if they have changed.
+     */
+    public static class TerraformEntityDriftCheck implements SensorEventListener<Object> {
 
-        private Entity entity;
+        private final Entity entity;
+        private final boolean applyToResources;
+        private final Duration debounce;
+        private final AtomicBoolean pending = new AtomicBoolean();
 
-        public TerraformEntityDriftCheck(@Nonnull EntityLocal entity) {
+        public TerraformEntityDriftCheck(@Nonnull EntityLocal entity, boolean applyToResources, Duration debounce) {
             this.entity = entity;
+            this.applyToResources = applyToResources;
+            this.debounce = debounce==null ? Duration.ZERO : debounce;
         }
 
         @Override
-        public void onEvent(SensorEvent<TerraformStatus> event) {
-            TerraformStatus state = event.getValue();
+        public void onEvent(SensorEvent<Object> event) {
+            if (!pending.compareAndSet(false, true)) return;
+            ((EntityInternal) entity).getExecutionContext().submit("Terraform drift compliance check", () -> {
+                Time.sleep(debounce);
+                pending.set(false);
+                update();
+            });
+        }
+
+        synchronized void update() {
             Map<String,Object> tfPlan = entity.sensors().get(TerraformConfiguration.PLAN);
+            TerraformStatus state = entity.sensors().get(TerraformConfiguration.DRIFT_STATUS);
+            if (state==null) return;
+
+            List<Entity> resources = MutableList.copyOf(Iterables.filter(Entities.descendantsWithoutSelf(entity), ManagedResource.class));
+            Map<String, List<Map<String, Object>>> drifted = MutableMap.of();
+            if (driftInfoCheck.test(tfPlan)) {
+                ((List<Map<String, Object>>) tfPlan.get("tf.resource.changes")).forEach(change ->
+                        drifted.computeIfAbsent(String.valueOf(change.get("resource.addr")), k -> MutableList.of()).add(change));
+            }
 
+            ComplianceCheck result = newResult(1d, state.equals(TerraformStatus.SYNC), getSummaryForConfiguration(tfPlan));
+            result.notes = getNotesForConfiguration(resources.size(), tfPlan);
+            boolean changed = publishIfChanged(entity, result);
+
+            int resourcesChanged = 0;
+            if (applyToResources && !resources.isEmpty()) {
+                double priority = 1d / resources.size();
+                for (Entity resource : resources) {
+                    List<Map<String, Object>> changes = drifted.get(resource.config().get(ManagedResource.ADDRESS));
+                    ComplianceCheck resourceResult = newResult(priority, changes==null, getSummaryForResource(resource, changes));
+                    resourceResult.notes = "";
+                    if (publishIfChanged(resource, resourceResult)) resourcesChanged++;
+                }
+            }
+            LOG.debug(String.format("Terraform Drift compliance check for: %s with result: %b%s; %d of %d resource results changed",
+                    entity.getDisplayName(), result.pass, changed ? "" : " (unchanged)", resourcesChanged, applyToResources ? resources.size() : 0));
+        }
+
+        private static ComplianceCheck newResult(double priority, boolean pass, String summary) {
             ComplianceCheck result = new ComplianceCheck();
             result.id = Identifiers.makeRandomId(6);
             result.mode = "amp";
-            result.priority = 1d;
+            result.priority = priority;
             result.created = Instant.now();
-            result.pass = state.equals(TerraformStatus.SYNC);
-            result.summary = getSummaryForConfiguration(tfPlan);
-            result.notes = getNotesForConfiguration(entity, tfPlan);
-
-            Set<ComplianceCheck> status = Sets.newHashSet();
-
-            status.add(result);
-            LOG.debug(String.format("Terraform Drift compliance check for: %s with result: %b",entity.getDisplayName(), result.pass));
+            result.pass = pass;
+            result.summary = summary;
+            return result;
+        }
 
-            entity.sensors().set(DRIFT_COMPLIANCE, status);
+        /** publishes the result unless the entity already has an equivalent one, ignoring the id and time */
+        private static boolean publishIfChanged(Entity target, ComplianceCheck result) {
+            Set<ComplianceCheck> current = target.sensors().get(DRIFT_COMPLIANCE);
+            if (current!=null && current.size()==1) {
+                ComplianceCheck last = current.iterator().next();
+                if (Objects.equals(last.pass, result.pass) && Objects.equals(last.priority, result.priority)
+                        && Objects.equals(last.summary, result.summary) && Objects.equals(last.notes, result.notes)) {
+                    return false;
+                }
+            }
+            target.sensors().set(DRIFT_COMPLIANCE, ImmutableSet.of(result));
+            return true;
         }
 
-        private String getSummaryForConfiguration(Map<String,Object> driftInfo){
+        private static String getSummaryForConfiguration(Map<String,Object> driftInfo){
             String summary;
             if (driftInfo==null) {
                 summary = "No drift info retrieved.";
@@ -123,54 +193,41 @@ public class DriftCheck extends EntityInitializers.InitializerPatternWithConfigK
             return summary;
         }
 
-        private String getNotesForConfiguration(Entity entity, Map<String,Object> driftInfo){
-            String notes = "Total number of managed resources: " + entity.getChildren().size() + ". ";
+        private static String getNotesForConfiguration(int managedResources, Map<String,Object> driftInfo){
+            StringBuilder notes = new StringBuilder("Total number of managed resources: ").append(managedResources).append(". ");
             if (driftInfoCheck.test(driftInfo)){
                 List<Map<String, Object>> resourcesChanges = (List<Map<String, Object>>) driftInfo.get("tf.resource.changes");
-                notes += "Number of resources with problems: " + resourcesChanges.size() + " - Details: ";
+                notes.append("Number of resources with problems: ").append(resourcesChanges.size()).append(" - Details: ");
+                String separator = "";
                 for (Map<String,Object> resource : resourcesChanges){
-                    notes += "(Resource: " + resource.get("resource.addr") + ", action: " + resource.get("resource.action") + "), ";
+                    notes.append(separator).append("(Resource: ").append(resource.get("resource.addr")).append(", action: ").append(resource.get("resource.action")).append(")");
+                    separator = ", ";
                 }
-                notes = notes.substring(0,notes.length()-2);
             }
             if (driftInfo!=null && !Objects.isNull(driftInfo.get("errors"))){
-                notes += " - Errors: " + driftInfo.get("errors");
+                notes.append(" - Errors: ").append(driftInfo.get("errors"));
             }
-            return notes;
+            return notes.toString();
         }
-    }
 
-    public class TerraformResourceDriftCheck implements SensorEventListener<String> {
-
-        private Entity entity;
-
-        public TerraformResourceDriftCheck(@Nonnull EntityLocal entity) {
-            this.entity = entity;
-        }
-
-        @Override
-        public void onEvent(SensorEvent<String> event) {
-            String eventData = event.getValue();
-
-            ComplianceCheck result = new ComplianceCheck();
-            result.id = Identifiers.makeRandomId(6);
-            result.mode = "amp";
-            result.priority = (managedResourcesNumber != 0) ? 1d/managedResourcesNumber : 1d/entity.getParent().getChildren().size();
-            result.created = Instant.now();
-            result.pass = eventData.equals("running") || eventData.equals("ok");
-            result.summary = getSummaryForResource(eventData);
-            result.notes = "";
-
-            LOG.debug(String.format("Terraform Drift compliance check for: %s with result: %b",entity.getDisplayName(), result.pass));
-
-            entity.sensors().set(DRIFT_COMPLIANCE, ImmutableSet.of(result));
-        }
-
-        private String getSummaryForResource(final String resourceStatus){
-            if (resourceStatus.equals("running") || resourceStatus.equals("ok")){
+        /** @param changes the entries of the plan for the resource, or null if it has none */
+        private static String getSummaryForResource(Entity resource, List<Map<String, Object>> changes){
+            if (changes==null){
                 return "The resource is in a healthy state.";
             }
-            return "The resource is not in a healthy state. The current state is: " + resourceStatus;
+            StringBuilder summary = new StringBuilder("The resource is not in a healthy state. The last plan reported: ");
+            String separator = "";
+            for (Map<String, Object> change : changes) {
+                summary.append(separator).append(change.get("resource.action"));
+                Object changeType = change.get("resource.change_type");
+                if (PlanLogEntry.LType.RESOURCE_DRIFT.name().equals(changeType)) summary.append(" (made outside terraform)");
+                else if (PlanLogEntry.LType.PLANNED_CHANGE.name().equals(changeType)) summary.append(" (planned)");
+                separator = ", ";
+            }
+            summary.append(".");
+            String status = resource.sensors().get(ManagedResource.RESOURCE_STATUS);
+            if (status!=null) summary.append(" The current state is: ").append(status);
+            return summary.toString();
         }
     }
 }
\ No newline at end of file
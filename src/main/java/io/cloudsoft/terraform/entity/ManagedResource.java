@@ -12,6 +12,9 @@ public interface ManagedResource extends TerraformResource {
     AttributeSensor<String> RESOURCE_STATUS = Sensors.newStringSensor("tf.resource.status", "The status of this resource; " +
             "'changed' if any drift is detetcted, but otherwise set as 'running' by default, but overridden as 'ok' for Startable MRs");
 
+    AttributeSensor<String> APPLY_STATUS = Sensors.newStringSensor("tf.resource.apply.status", "The status of this resource in the current or last " +
+            "apply or destroy which changed it, eg 'updating' while it runs then 'updated', or 'update failed'");
+
     boolean refreshSensors(Map<String,Object> resource);
 
     void updateResourceState();
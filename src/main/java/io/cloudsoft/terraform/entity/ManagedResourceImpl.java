@@ -4,7 +4,6 @@ import org.apache.brooklyn.core.entity.Attributes;
 import org.apache.brooklyn.core.entity.Entities;
 import org.apache.brooklyn.core.entity.lifecycle.Lifecycle;
 import org.apache.brooklyn.core.entity.lifecycle.ServiceStateLogic;
-import org.apache.brooklyn.core.sensor.Sensors;
 import org.apache.brooklyn.entity.stock.BasicEntityImpl;
 
 import java.util.Map;
@@ -19,7 +18,7 @@ public class ManagedResourceImpl extends BasicEntityImpl implements ManagedResou
 
     protected void connectSensors() {
         Map<String, Object> resourceDetails = this.getConfig(StartableManagedResource.STATE_CONTENTS);
-        resourceDetails.forEach((k,v) -> sensors().set(Sensors.newSensor(Object.class, "tf." + k), v.toString()));
+        ResourceSensors.publish(this, resourceDetails);
         if(!resourceDetails.containsKey("resource.status")) {
             sensors().set(ManagedResource.RESOURCE_STATUS, "ok"); // the provider doesn't provide any property to let us know the state of the resource
         }
@@ -27,13 +26,15 @@ public class ManagedResourceImpl extends BasicEntityImpl implements ManagedResou
         updateResourceState();
     }
 
+    @Override
+    public void rebind() {
+        super.rebind();
+        ResourceSensors.republish(this);
+    }
+
     @Override
     public boolean refreshSensors(Map<String, Object> resource) {
-        resource.forEach((k, v) -> {
-            if (!sensors().get(Sensors.newSensor(Object.class, "tf." + k)).equals(v)){
-                sensors().set(Sensors.newSensor(Object.class, "tf." + k), v.toString());
-            }
-        });
+        ResourceSensors.publish(this, resource);
         updateResourceState();
         return true;
     }
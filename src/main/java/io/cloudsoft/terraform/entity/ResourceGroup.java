@@ -0,0 +1,33 @@
+package io.cloudsoft.terraform.entity;
+
+import org.apache.brooklyn.api.entity.ImplementedBy;
+import org.apache.brooklyn.api.sensor.AttributeSensor;
+import org.apache.brooklyn.config.ConfigKey;
+import org.apache.brooklyn.core.config.ConfigKeys;
+import org.apache.brooklyn.core.sensor.Sensors;
+import org.apache.brooklyn.entity.stock.BasicEntity;
+import org.apache.brooklyn.util.core.flags.SetFromFlag;
+
+/**
+ * Groups managed resources by module, and the instances of a resource created with <code>count</code> or <code>for_each</code>,
+ * when <code>tf.resources.grouping</code> is enabled. Groups of modules contain the groups of their child modules.
+ */
+@ImplementedBy(ResourceGroupImpl.class)
+public interface ResourceGroup extends BasicEntity {
+
+    @SetFromFlag("address")
+    ConfigKey<String> GROUP_ADDRESS = ConfigKeys.newStringConfigKey("tf.resource.group.address",
+            "Address of the module, or of the resource without its index, whose resources are in this group", null);
+
+    AttributeSensor<Integer> MEMBERS = Sensors.newIntegerSensor("tf.resource.group.members",
+            "Number of resources in this group, including in nested groups");
+
+    AttributeSensor<Integer> HEALTHY = Sensors.newIntegerSensor("tf.resource.group.healthy",
+            "Number of resources in this group which have not changed outside terraform");
+
+    AttributeSensor<Integer> DRIFTED = Sensors.newIntegerSensor("tf.resource.group.drifted",
+            "Number of resources in this group which have changed outside terraform");
+
+    /** recomputes the summary sensors from the children, using the sensors of nested groups, which should be updated first */
+    void updateSummary();
+}
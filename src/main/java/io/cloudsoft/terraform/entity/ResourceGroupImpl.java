@@ -0,0 +1,52 @@
+package io.cloudsoft.terraform.entity;
+
+import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.core.entity.Attributes;
+import org.apache.brooklyn.core.entity.Entities;
+import org.apache.brooklyn.core.entity.lifecycle.Lifecycle;
+import org.apache.brooklyn.core.entity.lifecycle.ServiceStateLogic;
+import org.apache.brooklyn.entity.stock.BasicEntityImpl;
+
+import java.util.Optional;
+
+public class ResourceGroupImpl extends BasicEntityImpl implements ResourceGroup {
+
+    @Override
+    public void init() {
+        super.init();
+        setDisplayName(getConfig(GROUP_ADDRESS));
+        sensors().set(MEMBERS, 0);
+        sensors().set(HEALTHY, 0);
+        sensors().set(DRIFTED, 0);
+        sensors().set(Attributes.SERVICE_STATE_ACTUAL, Lifecycle.CREATED);
+    }
+
+    @Override
+    public void updateSummary() {
+        int members = 0;
+        int drifted = 0;
+        for (Entity child : getChildren()) {
+            if (!Entities.isManaged(child)) continue;
+            if (child instanceof ResourceGroup) {
+                members += Optional.ofNullable(child.sensors().get(MEMBERS)).orElse(0);
+                drifted += Optional.ofNullable(child.sensors().get(DRIFTED)).orElse(0);
+            } else if (child instanceof ManagedResource) {
+                members++;
+                if ("changed".equals(child.sensors().get(ManagedResource.RESOURCE_STATUS))) drifted++;
+            }
+        }
+        sensors().set(MEMBERS, members);
+        sensors().set(HEALTHY, members - drifted);
+        sensors().set(DRIFTED, drifted);
+        if (drifted > 0) {
+            sensors().set(Attributes.SERVICE_STATE_ACTUAL, Lifecycle.ON_FIRE);
+            ServiceStateLogic.updateMapSensorEntry(this, Attributes.SERVICE_PROBLEMS,
+                    "TF-ASYNC", drifted + " of " + members + " resources changed outside terraform.");
+        } else {
+            sensors().set(Attributes.SERVICE_STATE_ACTUAL, Lifecycle.CREATED);
+            ServiceStateLogic.updateMapSensorEntry(this, Attributes.SERVICE_PROBLEMS,
+                    "TF-ASYNC", Entities.REMOVE);
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package io.cloudsoft.terraform.entity;
+
+import io.cloudsoft.terraform.parser.EntityParser;
+import org.apache.brooklyn.api.entity.Entity;
+import org.apache.brooklyn.api.sensor.AttributeSensor;
+import org.apache.brooklyn.api.sensor.AttributeSensor.SensorPersistenceMode;
+import org.apache.brooklyn.api.sensor.Sensor;
+import org.apache.brooklyn.core.sensor.Sensors;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The <code>tf.*</code> sensors published by a resource entity for each entry of its {@link TerraformResource#STATE_CONTENTS}.
+ * <p>
+ * These are not persisted: the contents config is, and the sensors are re-published from it on rebind,
+ * so each resource's attributes are stored once.
+ */
+final class ResourceSensors {
+
+    /** sensors are immutable, and the same attribute keys recur across resources and refreshes, so create each once */
+    private static final Map<String, AttributeSensor<Object>> SENSORS = new ConcurrentHashMap<>();
+
+    private ResourceSensors() {}
+
+    static AttributeSensor<Object> sensor(String key) {
+        return SENSORS.computeIfAbsent(key, k -> Sensors.builder(Object.class, "tf." + k)
+                .persistence(SensorPersistenceMode.NONE)
+                .build());
+    }
+
+    /** sets the sensors which have changed, and records the resource as the entity's shared contents along with its hash */
+    static void publish(TerraformResource entity, Map<String, Object> resource) {
+        resource.forEach((k, v) -> {
+            AttributeSensor<Object> sensor = sensor(k);
+            if (!Objects.equals(entity.sensors().get(sensor), v.toString())) {
+                entity.sensors().set(sensor, v.toString());
+            }
+        });
+        if (entity.config().get(TerraformResource.STATE_CONTENTS) != resource) {
+            entity.config().set(TerraformResource.STATE_CONTENTS, resource);
+        }
+        entity.sensors().set(TerraformResource.STATE_CONTENTS_HASH, EntityParser.contentHash(resource));
+    }
+
+    /**
+     * Re-publishes the sensors from the persisted contents after rebind, setting only those which are missing or different.
+     * Those persisted by earlier versions were registered as persistent, so they are removed first to register them as not persisted.
+     */
+    static void republish(Entity entity) {
+        Map<String, Object> resource = entity.config().get(TerraformResource.STATE_CONTENTS);
+        if (resource == null) return;
+        resource.forEach((k, v) -> {
+            AttributeSensor<Object> sensor = sensor(k);
+            if (isPersisted(entity, sensor)) {
+                entity.sensors().remove(sensor);
+            } else if (Objects.equals(entity.sensors().get(sensor), v.toString())) {
+                return;
+            }
+            entity.sensors().set(sensor, v.toString());
+        });
+    }
+
+    private static boolean isPersisted(Entity entity, AttributeSensor<?> sensor) {
+        Sensor<?> registered = entity.getEntityType().getSensor(sensor.getName());
+        return registered instanceof AttributeSensor && ((AttributeSensor<?>) registered).getPersistenceMode() != SensorPersistenceMode.NONE;
+    }
+
+}
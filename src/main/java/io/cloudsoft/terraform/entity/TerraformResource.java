@@ -1,8 +1,10 @@
 package io.cloudsoft.terraform.entity;
 
+import org.apache.brooklyn.api.sensor.AttributeSensor;
 import org.apache.brooklyn.config.ConfigKey;
 import org.apache.brooklyn.core.config.BasicConfigKey;
 import org.apache.brooklyn.core.config.ConfigKeys;
+import org.apache.brooklyn.core.sensor.Sensors;
 import org.apache.brooklyn.entity.stock.BasicEntity;
 import org.apache.brooklyn.util.core.flags.SetFromFlag;
 
@@ -32,5 +34,8 @@ public interface TerraformResource extends BasicEntity {
     ConfigKey<String> ADDRESS =  ConfigKeys.newStringConfigKey("tf.resource.address",
             "Terraform resource address.", null);
 
+    AttributeSensor<String> STATE_CONTENTS_HASH = Sensors.newStringSensor("tf.state.contents.hash",
+            "Hash of the state contents last published as sensors, used to skip refreshing resources which have not changed");
+
     boolean refreshSensors(Map<String, Object> resource);
 }
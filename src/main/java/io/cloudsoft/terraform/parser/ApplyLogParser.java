@@ -0,0 +1,134 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import io.cloudsoft.terraform.TerraformConfiguration;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.apache.brooklyn.util.text.Strings;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static io.cloudsoft.terraform.TerraformDriver.PLAN_MESSAGE;
+import static io.cloudsoft.terraform.TerraformDriver.PLAN_STATUS;
+
+/**
+ * Parses the json lines written by <code>terraform apply -json</code>, so the model can be updated from what the apply did rather than by planning again.
+ * If the apply completed without errors, the result has {@link io.cloudsoft.terraform.TerraformDriver#PLAN_STATUS} SYNC and its summary as the
+ * {@link io.cloudsoft.terraform.TerraformDriver#PLAN_MESSAGE}, the resources it changed as {@link #APPLIED_RESOURCES},
+ * and the outputs in the format written by <code>terraform output -json</code> as {@link #OUTPUTS};
+ * if it reported errors the status is ERROR, with the messages as <code>tf.errors</code>; and if it did not complete there is no status.
+ */
+public final class ApplyLogParser {
+
+    public static final String APPLIED_RESOURCES = "tf.apply.resources";
+    public static final String OUTPUTS = "tf.apply.outputs";
+    /** summary of the error reported by terraform when a saved plan cannot be applied because the state has changed */
+    public static final String STALE_SAVED_PLAN = "Saved plan is stale";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private ApplyLogParser() {}
+
+    public static Map<String, Object> parse(String applyLogEntries) {
+        Summary summary = new Summary();
+        PlanLogParser.forEachEntry(new StringReader(applyLogEntries), summary);
+        return summary.getResult();
+    }
+
+    /**
+     * @return whether the output is from applying a saved plan which terraform refused because the state changed since the plan was made,
+     * see {@link Summary#isStaleSavedPlan()}
+     */
+    public static boolean isStaleSavedPlan(String applyLogEntries) {
+        Summary summary = new Summary();
+        PlanLogParser.forEachEntry(new StringReader(applyLogEntries), summary);
+        return summary.isStaleSavedPlan();
+    }
+
+    /**
+     * Accumulates what an apply did from its entries, given one at a time as they are written, as {@link #parse(String)} does for the whole output;
+     * only what goes into the result is kept, not the output.
+     */
+    public static final class Summary implements Consumer<PlanLogEntry> {
+        private final List<Map<String, Object>> applied = MutableList.of();
+        private final List<String> errors = MutableList.of();
+        private PlanLogEntry summary = null;
+        private PlanLogEntry outputs = null;
+        private boolean started = false;
+        private boolean stale = false;
+
+        @Override
+        public synchronized void accept(PlanLogEntry ple) {
+            if (ple.type==null) return;
+            switch (ple.type) {
+                case APPLY_START:
+                    started = true;
+                    break;
+                case APPLY_COMPLETE:
+                    if (ple.hook!=null) applied.add(ImmutableMap.of(
+                            "resource.addr", String.valueOf(resource(ple).get("addr")),
+                            "resource.action", String.valueOf(ple.hook.get("action"))));
+                    break;
+                case APPLY_ERRORED:
+                    errors.add(ple.message);
+                    break;
+                case DIAGNOSTIC:
+                    if (ple.diagnostic==null || !"warning".equals(ple.diagnostic.severity)) errors.add(ple.message + (ple.diagnostic!=null && ple.diagnostic.detail!=null ? ": " + ple.diagnostic.detail : ""));
+                    if (ple.diagnostic!=null && "error".equals(ple.diagnostic.severity) && ple.diagnostic.summary!=null && ple.diagnostic.summary.contains(STALE_SAVED_PLAN)) stale = true;
+                    break;
+                case CHANGE_SUMMARY:
+                    // the apply also writes the summary of the plan it makes first
+                    if (ple.changes!=null && "apply".equals(ple.changes.get("operation"))) summary = ple;
+                    break;
+                case OUTPUTS:
+                    // the values are written after the apply summary; any before are the changes planned
+                    if (summary!=null) outputs = ple;
+                    break;
+                default:
+                    // not interested
+            }
+        }
+
+        /**
+         * @return whether terraform refused to apply a saved plan because the state changed since the plan was made:
+         * it reported a {@link #STALE_SAVED_PLAN} error, and did not start changing any resource
+         */
+        public synchronized boolean isStaleSavedPlan() {
+            return stale && !started;
+        }
+
+        /** @return what the apply did so far, as described for {@link ApplyLogParser} */
+        public synchronized Map<String, Object> getResult() {
+            Map<String, Object> result = new HashMap<>();
+            result.put(APPLIED_RESOURCES, MutableList.copyOf(applied));
+            if (!errors.isEmpty()) {
+                result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.ERROR);
+                result.put(PLAN_MESSAGE, "Apply failed.");
+                result.put("tf.errors", Strings.join(errors, "\n"));
+            } else if (summary!=null) {
+                result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.SYNC);
+                result.put(PLAN_MESSAGE, summary.message);
+            }
+            if (outputs!=null && outputs.outputs!=null) {
+                try {
+                    result.put(OUTPUTS, MAPPER.writeValueAsString(outputs.outputs));
+                } catch (JsonProcessingException e) {
+                    throw new IllegalStateException("Cannot write outputs from Terraform apply output", e);
+                }
+            }
+            return result;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> resource(PlanLogEntry ple) {
+        Object resource = ple.hook.get("resource");
+        return resource instanceof Map ? (Map<String, Object>) resource : ImmutableMap.of();
+    }
+
+}
@@ -0,0 +1,152 @@
+package io.cloudsoft.terraform.parser;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Follows the progress of <code>terraform apply -json</code> (or <code>apply -destroy -json</code>) from its output as it is written,
+ * which can be passed in chunks of any size: only the last incomplete line is kept, so memory use does not grow with the output.
+ * The total is taken from the summary of the plan the apply makes first; each resource counts as done when it completes or fails.
+ */
+public final class ApplyProgress {
+
+    private static final Map<String, String[]> ACTION_STATUSES = ImmutableMap.of(
+            "create", new String[] { "creating", "created" },
+            "update", new String[] { "updating", "updated" },
+            "delete", new String[] { "deleting", "deleted" },
+            "replace", new String[] { "replacing", "replaced" },
+            "read", new String[] { "reading", "read" });
+
+    private final BiConsumer<String, String> resourceStatusListener;
+    private final Consumer<PlanLogEntry> entryListener;
+    private final StringBuilder partialLine = new StringBuilder();
+    /** resources started and not yet done, with the time they started */
+    private final Map<String, Long> inProgress = new LinkedHashMap<>();
+    private Integer total = null;
+    private int done = 0;
+    private int failed = 0;
+    private long firstStartUtc = -1;
+
+    /** @param resourceStatusListener given the address and status of each resource when it starts, completes or fails, eg <code>creating</code> then <code>created</code> */
+    public ApplyProgress(BiConsumer<String, String> resourceStatusListener) {
+        this(resourceStatusListener, entry -> {});
+    }
+
+    /**
+     * @param resourceStatusListener as for {@link #ApplyProgress(BiConsumer)}
+     * @param entryListener given every entry read, so the output need be parsed only once, eg by an {@link ApplyLogParser.Summary}
+     */
+    public ApplyProgress(BiConsumer<String, String> resourceStatusListener, Consumer<PlanLogEntry> entryListener) {
+        this.resourceStatusListener = resourceStatusListener;
+        this.entryListener = entryListener;
+    }
+
+    /** reads the complete lines in the output written since the last call, keeping any incomplete line for the next */
+    public synchronized void accept(CharSequence output) {
+        int lineStart = 0;
+        for (int i=0; i<output.length(); i++) {
+            if (output.charAt(i)=='\n') {
+                partialLine.append(output, lineStart, i);
+                acceptLine(partialLine.toString());
+                partialLine.setLength(0);
+                lineStart = i+1;
+            }
+        }
+        partialLine.append(output, lineStart, output.length());
+    }
+
+    /** reads any final line not terminated by a newline, once the output is complete */
+    public synchronized void end() {
+        if (partialLine.length()>0) acceptLine(partialLine.toString());
+        partialLine.setLength(0);
+    }
+
+    /**
+     * reads a complete line of the output, eg as it is written
+     * @return whether it changed the progress, so it may need publishing
+     */
+    public synchronized boolean acceptLine(String line) {
+        if (!line.trim().startsWith("{")) return false;
+        PlanLogEntry ple = PlanLogParser.parseEntry(line);
+        if (ple==null || ple.type==null) return false;
+        entryListener.accept(ple);
+        switch (ple.type) {
+            case CHANGE_SUMMARY:
+                // the first is the summary of the plan made by the apply; the last, of the apply itself
+                if (total==null && ple.changes!=null) total = count(ple.changes, "add") + count(ple.changes, "change") + count(ple.changes, "remove");
+                break;
+            case APPLY_START:
+                if (firstStartUtc<0) firstStartUtc = System.currentTimeMillis();
+                inProgress.put(address(ple), System.currentTimeMillis());
+                notify(ple, 0, "starting");
+                break;
+            case APPLY_COMPLETE:
+                inProgress.remove(address(ple));
+                done++;
+                notify(ple, 1, "done");
+                break;
+            case APPLY_ERRORED:
+                inProgress.remove(address(ple));
+                done++;
+                failed++;
+                resourceStatusListener.accept(address(ple), action(ple) + " failed");
+                break;
+            default:
+                // not interested
+                return false;
+        }
+        return true;
+    }
+
+    private void notify(PlanLogEntry ple, int index, String defaultStatus) {
+        String[] statuses = ACTION_STATUSES.get(action(ple));
+        resourceStatusListener.accept(address(ple), statuses!=null ? statuses[index] : defaultStatus);
+    }
+
+    private static int count(Map<String, Object> changes, String key) {
+        Object count = changes.get(key);
+        return count instanceof Number ? ((Number) count).intValue() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String address(PlanLogEntry ple) {
+        Object resource = ple.hook==null ? null : ple.hook.get("resource");
+        return resource instanceof Map ? String.valueOf(((Map<String, Object>) resource).get("addr")) : String.valueOf(resource);
+    }
+
+    private static String action(PlanLogEntry ple) {
+        return ple.hook==null ? "apply" : String.valueOf(ple.hook.get("action"));
+    }
+
+    /** @return the number of resources the apply will change, or null if not yet known */
+    public synchronized Integer getTotal() {
+        return total;
+    }
+
+    /** @return the number of resources which have completed or failed */
+    public synchronized int getDone() {
+        return done;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    /** @return the resources started and not yet done, in the order they started */
+    public synchronized List<String> getInProgress() {
+        return new ArrayList<>(inProgress.keySet());
+    }
+
+    /** @return an estimate of the time until all resources are done, from the average time taken per resource so far; or null if none are done yet */
+    public synchronized Long getEtaMillis(long nowUtc) {
+        if (total==null || done==0 || firstStartUtc<0) return null;
+        return Math.max(0, (nowUtc - firstStartUtc) * Math.max(0, total - done) / done);
+    }
+
+}
@@ -1,5 +1,6 @@
 package io.cloudsoft.terraform.parser;
 
+import com.google.common.collect.ImmutableSet;
 import io.cloudsoft.terraform.TerraformConfiguration;
 import io.cloudsoft.terraform.compliance.DriftCheck;
 import io.cloudsoft.terraform.entity.DataResource;
@@ -14,12 +15,16 @@ import org.apache.brooklyn.core.entity.AbstractEntity;
 import org.apache.brooklyn.core.entity.Attributes;
 import org.apache.brooklyn.core.entity.lifecycle.Lifecycle;
 import org.apache.brooklyn.entity.group.BasicGroup;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.apache.brooklyn.util.collections.MutableMap;
 import org.apache.brooklyn.util.text.Strings;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -28,6 +33,9 @@ import static io.cloudsoft.terraform.entity.TerraformResource.*;
 
 public  final class EntityParser {
 
+    /** keys added to managed resources which are not reported by terraform; <code>total-resource-number</code> is no longer added */
+    private static final Set<String> ANNOTATION_KEYS = ImmutableSet.of("drift-compliance", "total-resource-number");
+
     private static Predicate<Map<String,Object>> IS_RUNNABLE = resource ->
             resource.get("resource.type").toString().endsWith("_instance") ||
             resource.get("resource.type").toString().endsWith("_virtual_machine") ||
@@ -40,13 +48,34 @@ public  final class EntityParser {
         return Strings.isNonBlank(prefix)? prefix+"." : entity.getId()+".";
     }
 
-    public static void processResources(Map<String, Map<String,Object>> resources, Entity entity) {
+    public static List<Entity> processResources(Map<String, Map<String,Object>> resources, Entity entity) {
+        return processResources(resources, entity, getDataResourcesGroup(entity));
+    }
+
+    /**
+     * Creates entities for the given resources as children of the entity, or of its data resources group.
+     * The specs are copied from one prototype per entity type and share their {@link DriftCheck} initializer,
+     * rather than each being built from scratch.
+     * @param groupOpt the existing data resources group, if known, so the children need not be searched
+     * @return the entities created
+     */
+    public static List<Entity> processResources(Map<String, Map<String,Object>> resources, Entity entity, Optional<BasicGroup> groupOpt) {
+        return processResources(resources, entity, groupOpt, resource -> entity);
+    }
+
+    /**
+     * As {@link #processResources(Map, Entity, Optional)}, with managed resources added as children of the entity
+     * returned by the given function, such as a group for their module.
+     */
+    public static List<Entity> processResources(Map<String, Map<String,Object>> resources, Entity entity, Optional<BasicGroup> groupOpt,
+                                                Function<Map<String,Object>, Entity> parentForManagedResource) {
+        List<Entity> created = MutableList.of();
         List<Map<String, Object>> dataResources = getDataResources(resources);
         List<Map<String, Object>> managedResources = getManagedResources(resources);
-        int managedResourceNumber = managedResources.size();
+        String prefix = getIdPrefixFor(entity);
+        Map<Object, EntitySpec<? extends Entity>> prototypes = MutableMap.of();
 
         if(!dataResources.isEmpty()) {
-            Optional<BasicGroup> groupOpt = getDataResourcesGroup(entity);
             final BasicGroup dataGroup;
             if (!groupOpt.isPresent()) {
                 dataGroup = entity.addChild(EntitySpec.create(BasicGroup.class).configure(AbstractEntity.DEFAULT_DISPLAY_NAME, "Data Resources"));
@@ -54,21 +83,37 @@ public  final class EntityParser {
             } else {
                 dataGroup = groupOpt.get();
             }
-            dataResources.forEach(resource -> dataGroup.addChild(basicSpec(DataResource.class, resource, getIdPrefixFor(entity))));
+            dataResources.forEach(resource -> created.add(dataGroup.addChild(resourceSpec(prototype(prototypes, DataResource.class, resource), resource, prefix))));
         }
         if(!managedResources.isEmpty()) {
             managedResources.forEach(resource -> {
-                // TODO rename? this means whether drift is _enabled_ not whether it has drifted
-                resource.put("drift-compliance", ((TerraformConfiguration) entity).isApplyDriftComplianceToResources());
-
-                resource.put("total-resource-number", managedResourceNumber);
-                if (IS_RUNNABLE.test(resource)){
-                    entity.addChild(basicSpec(StartableManagedResource.class, resource, getIdPrefixFor(entity)));
-                } else
-                    entity.addChild(basicSpec(ManagedResource.class, resource, getIdPrefixFor(entity)));
-                }
-            );
+                annotateManagedResource(resource, entity);
+                Class<? extends TerraformResource> clazz = IS_RUNNABLE.test(resource) ? StartableManagedResource.class : ManagedResource.class;
+                created.add(parentForManagedResource.apply(resource).addChild(resourceSpec(prototype(prototypes, clazz, resource), resource, prefix)));
+            });
         }
+        return created;
+    }
+
+    /**
+     * Adds the drift compliance keys to all managed resources, before they are shared with the resource entities,
+     * so that existing resources keep them when their contents are refreshed. Resources already annotated are left unchanged.
+     */
+    public static void annotateManagedResources(Map<String, Map<String,Object>> resources, Entity entity) {
+        getManagedResources(resources).forEach(resource -> annotateManagedResource(resource, entity));
+    }
+
+    private static void annotateManagedResource(Map<String, Object> resource, Entity entity) {
+        // TODO rename? this means whether drift is _enabled_ not whether it has drifted
+        resource.putIfAbsent("drift-compliance", ((TerraformConfiguration) entity).isApplyDriftComplianceToResources());
+    }
+
+    /**
+     * Hash of the resource as terraform reported it, for detecting whether it has changed between refreshes;
+     * the keys added by {@link #annotateManagedResources(Map, Entity)}, and by earlier versions, are left out.
+     */
+    public static String contentHash(Map<String, ?> resource) {
+        return ResourceRecord.contentHash(resource, ANNOTATION_KEYS);
     }
 
     public static Optional<BasicGroup> getDataResourcesGroup(Entity entity) {
@@ -92,17 +137,27 @@ public  final class EntityParser {
     }
 
     public static EntitySpec<? extends Entity> basicSpec(Class<? extends TerraformResource> clazz, Map<String, Object> contentsMap, final String prefix) {
-        EntitySpec<? extends Entity> spec = EntitySpec.create(clazz)
+        return resourceSpec(prototype(MutableMap.of(), clazz, contentsMap), contentsMap, prefix);
+    }
+
+    /** the spec with the configuration common to resources of the same type and drift settings, cached in the given map */
+    private static EntitySpec<? extends Entity> prototype(Map<Object, EntitySpec<? extends Entity>> prototypes, Class<? extends TerraformResource> clazz, Map<String, Object> contentsMap) {
+        Object driftCompliance = contentsMap.get("drift-compliance");
+        return prototypes.computeIfAbsent(Arrays.asList(clazz, driftCompliance), k -> {
+            EntityInitializer labels = !Objects.isNull(driftCompliance) ?
+                    new DriftCheck((Boolean) driftCompliance) :
+                    new DriftCheck();
+            return EntitySpec.create(clazz).addInitializer(labels);
+        });
+    }
+
+    private static EntitySpec<? extends Entity> resourceSpec(EntitySpec<? extends Entity> prototype, Map<String, Object> contentsMap, final String prefix) {
+        return EntitySpec.create(prototype)
                 .configure(STATE_CONTENTS, contentsMap)
                 .configure(TYPE, contentsMap.get("resource.type").toString())
                 .configure(PROVIDER, contentsMap.get("resource.provider").toString())
                 .configure(ADDRESS, contentsMap.get("resource.address").toString())
                 .configure(NAME, contentsMap.get("resource.name").toString())
                 .configure(BrooklynCampConstants.PLAN_ID, prefix.concat(contentsMap.get("resource.address").toString()));
-        EntityInitializer labels = (!Objects.isNull(contentsMap.get("drift-compliance")) && !Objects.isNull(contentsMap.get("total-resource-number"))) ?
-                new DriftCheck((Boolean) contentsMap.get("drift-compliance"), (int) contentsMap.get("total-resource-number")) :
-                new DriftCheck();
-        spec.addInitializer(labels);
-        return spec;
     }
 }
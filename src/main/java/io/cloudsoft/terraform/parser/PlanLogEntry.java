@@ -35,7 +35,9 @@ public class PlanLogEntry {
         @JsonProperty("refresh_complete") REFRESH_COMPLETE,
         @JsonProperty("apply_start") APPLY_START,
         @JsonProperty("apply_restart") APPLY_RESTART,
+        @JsonProperty("apply_progress") APPLY_PROGRESS,
         @JsonProperty("apply_complete") APPLY_COMPLETE,
+        @JsonProperty("apply_errored") APPLY_ERRORED,
         @JsonProperty("change_summary") CHANGE_SUMMARY,
         @JsonProperty("planned_change") PLANNED_CHANGE, // interested in this - create /update
         @JsonProperty("resource_drift") RESOURCE_DRIFT, // interested in this
@@ -59,6 +61,9 @@ public class PlanLogEntry {
 
     public Map<String, Map<String,Object>> outputs;
 
+    // resource and action for the apply_* types
+    public Map<String, Object> hook;
+
     // interested in config error for type = DIAGNOSTIC
     public DiagnosticLogEntry diagnostic;
 
@@ -0,0 +1,340 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.collect.ImmutableMap;
+import io.cloudsoft.terraform.TerraformConfiguration;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.collections.MutableSet;
+import org.apache.brooklyn.util.text.Strings;
+import org.apache.brooklyn.util.text.WildcardGlobs;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static io.cloudsoft.terraform.TerraformDriver.*;
+import static io.cloudsoft.terraform.parser.PlanLogEntry.NO_CHANGES;
+
+/**
+ * Parses the json lines written by <code>terraform plan -json</code> in a single pass,
+ * reading one line at a time and folding each entry into an accumulator, so the plan output is not held in memory several times over.
+ * The result maps {@link io.cloudsoft.terraform.TerraformDriver#PLAN_STATUS}, {@link io.cloudsoft.terraform.TerraformDriver#PLAN_MESSAGE}
+ * and, where applicable, the resource changes and drift, output changes, and errors.
+ */
+public final class PlanLogParser {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PlanLogParser.class);
+
+    private static final ObjectReader PLAN_LOG_ENTRY_READER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+            // types not listed in PlanLogEntry.LType are read as null and ignored
+            .configure(DeserializationFeature.READ_UNKNOWN_ENUM_VALUES_AS_NULL, true)
+            .readerFor(PlanLogEntry.class);
+
+    private PlanLogParser() {}
+
+    public static Map<String, Object> parse(String planLogEntries, Collection<String> resourcesToIgnoreForDrift) {
+        return parse(new StringReader(planLogEntries), resourcesToIgnoreForDrift);
+    }
+
+    /**
+     * As {@link #parse(String, Collection)}, but leaving out drift at the given addresses entirely, as if the plan had not found it,
+     * eg because it has since been accepted into the state by <code>apply -refresh-only</code>, or is known to be phantom.
+     * Unlike drift at resources ignored for drift, changes planned for them are still reported.
+     */
+    public static Map<String, Object> parse(String planLogEntries, Collection<String> resourcesToIgnoreForDrift, Collection<String> driftToLeaveOut) {
+        return parse(new StringReader(planLogEntries), resourcesToIgnoreForDrift, driftToLeaveOut);
+    }
+
+    public static Map<String, Object> parse(InputStream planLogEntries, Collection<String> resourcesToIgnoreForDrift) {
+        return parse(new InputStreamReader(planLogEntries, StandardCharsets.UTF_8), resourcesToIgnoreForDrift);
+    }
+
+    public static Map<String, Object> parse(Reader planLogEntries, Collection<String> resourcesToIgnoreForDrift) {
+        return parse(planLogEntries, resourcesToIgnoreForDrift, null);
+    }
+
+    public static Map<String, Object> parse(Reader planLogEntries, Collection<String> resourcesToIgnoreForDrift, Collection<String> driftToLeaveOut) {
+        return read(planLogEntries, new Accumulator(resourcesToIgnoreForDrift, driftToLeaveOut)).result();
+    }
+
+    /**
+     * Parses the json lines written by <code>terraform apply -refresh-only -json</code> limited to the given targets,
+     * to tell whether it settled the state-only drift found by a plan.
+     * @return the addresses whose drift was accepted into the state, ie the targets,
+     * or null if the output is not conclusive: the apply reported an error or did not complete,
+     * or it found drift in dependencies outside the targets, which may change what the plan would do
+     */
+    public static Set<String> parseRefreshOnlyApply(String applyLogEntries, Collection<String> targets) {
+        Accumulator accumulator = read(new StringReader(applyLogEntries), new Accumulator(null, null));
+        if (accumulator.changeSummary==null) return null;
+        for (PlanLogEntry ple : accumulator.diagnostics) {
+            if (ple.diagnostic==null || !"warning".equals(ple.diagnostic.severity)) return null;
+        }
+        if (!accumulator.resourcesChangesPlanned.isEmpty() || !targets.containsAll(accumulator.resourcesDriftDetected.keySet())) return null;
+        return MutableSet.copyOf(targets);
+    }
+
+    private static Accumulator read(Reader planLogEntries, Accumulator accumulator) {
+        forEachEntry(planLogEntries, accumulator::accept);
+        return accumulator;
+    }
+
+    /** reads the json lines written by terraform with <code>-json</code> one at a time, passing each entry to the consumer */
+    static void forEachEntry(Reader planLogEntries, Consumer<PlanLogEntry> consumer) {
+        try (BufferedReader reader = planLogEntries instanceof BufferedReader ? (BufferedReader) planLogEntries : new BufferedReader(planLogEntries)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().startsWith("{")) {
+                    // in some cases, including with terraform cloud, non-json lines are included
+                    continue;
+                }
+                PlanLogEntry entry = parseEntry(line);
+                if (entry!=null) consumer.accept(entry);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read Terraform plan output!", e);
+        }
+    }
+
+    /** @return the entry written by terraform with <code>-json</code> on the given line, or null if it cannot be parsed */
+    static PlanLogEntry parseEntry(String line) {
+        try {
+            return PLAN_LOG_ENTRY_READER.readValue(line);
+        } catch (IOException e) {
+            LOG.warn("Unable to parse plan log entry: "+line, e);
+            return null;
+        }
+    }
+
+    /** Collects what is needed from each plan log entry as it is read; {@link #result()} then builds the same map as the previous multi-pass parse. */
+    static class Accumulator {
+        private final Collection<String> resourcesToIgnoreForDrift;
+        private final Collection<String> driftToLeaveOut;
+
+        private final Set<PlanLogEntry.Provider> providers = new HashSet<>();
+        private PlanLogEntry changeSummary;
+        private PlanLogEntry outputs;
+        private final List<Map<String,Object>> plannedChangeResources = MutableList.of();
+        private final List<Map<String,Object>> driftResources = MutableList.of();
+        private final Map<String,Object> resourcesChangesPlanned = MutableMap.of();
+        private final Map<String,Object> resourcesDriftDetected = MutableMap.of();
+        private boolean anyChangeOrDrift = false;
+        private final List<PlanLogEntry> diagnostics = MutableList.of();
+
+        Accumulator(Collection<String> resourcesToIgnoreForDrift, Collection<String> driftToLeaveOut) {
+            this.resourcesToIgnoreForDrift = resourcesToIgnoreForDrift;
+            this.driftToLeaveOut = driftToLeaveOut;
+        }
+
+        void accept(PlanLogEntry ple) {
+            if (ple.message!=null) {
+                PlanLogEntry.Provider provider = ple.getProvider();
+                if (provider != PlanLogEntry.Provider.NOT_SUPPORTED) providers.add(provider);
+            }
+            if (ple.type==null) return;
+            switch (ple.type) {
+                case CHANGE_SUMMARY:
+                    if (changeSummary==null) changeSummary = ple;
+                    break;
+                case OUTPUTS:
+                    if (outputs==null) outputs = ple;
+                    break;
+                case PLANNED_CHANGE:
+                    anyChangeOrDrift = true;
+                    if (!"noop".equals(ple.change.get("action"))) {
+                        resourcesChangesPlanned.put(addResourceChange(ple, plannedChangeResources), ple.change);
+                    }
+                    break;
+                case RESOURCE_DRIFT:
+                    if (driftToLeaveOut!=null && driftToLeaveOut.contains(address(ple))) break;
+                    anyChangeOrDrift = true;
+                    if (!"noop".equals(ple.change.get("action"))) {
+                        LOG.debug("Detected drift: "+ple);
+                        resourcesDriftDetected.put(addResourceChange(ple, driftResources), ple.change);
+                    }
+                    break;
+                case DIAGNOSTIC:
+                    diagnostics.add(ple);
+                    break;
+                default:
+                    // not interested
+            }
+        }
+
+        private static String address(PlanLogEntry ple) {
+            return ((Map<String, String>) ple.change.get("resource")).get("addr");
+        }
+
+        private static String addResourceChange(PlanLogEntry ple, List<Map<String,Object>> resources) {
+            String addr = address(ple);
+            resources.add(ImmutableMap.of(
+                    "resource.addr", addr,
+                    "resource.change_type", Strings.toString(ple.type),
+                    "resource.action", Strings.toString(ple.change.get("action"))
+            ));
+            return addr;
+        }
+
+        Map<String, Object> result() {
+            Map<String, Object> result = new HashMap<>();
+
+            if (!providers.isEmpty()) {
+                result.put(PLAN_PROVIDER, providers.iterator().next());
+                // currently only support some providers
+                result.put(PLAN_PROVIDERS, providers);
+            }
+
+            Optional<PlanLogEntry> changeSummaryLog = Optional.ofNullable(changeSummary); // it is not there when the config is broken
+            String planMessage = null;
+
+            if (outputs!=null) {
+                List<Map<String,Object>> outputChanges = new ArrayList<>();
+                outputs.outputs.forEach((oK, oV) -> {
+                    if (!"noop".equals(oV.get("action"))) {
+                        outputChanges.add(ImmutableMap.of(
+                                "output.addr", oK,
+                                "output.action", oV.get("action").toString()
+                        ));
+                    }
+                });
+                if(!outputChanges.isEmpty()) {
+                    result.put("tf.output.changes", outputChanges);
+                }
+            }
+
+            /*
+             * See comments at RefreshTerraformModelAndSensors.
+             * This needs to return the set of "resources_changed_state_only".
+             * It should also distinguish between "resources_changed_drifted" and "resources_changed_plan".
+             */
+            if (anyChangeOrDrift) {
+                List<Map<String,Object>> resources = MutableList.<Map<String,Object>>of().appendAll(plannedChangeResources).appendAll(driftResources);
+                Set<String> resourcesDriftDetectedStateOnly = MutableSet.of();
+                Set<String> resourcesDriftDetectedChangesNeeded = MutableSet.of();
+
+                if (resourcesToIgnoreForDrift!=null && !resourcesToIgnoreForDrift.isEmpty()) MutableSet.copyOf(resourcesDriftDetected.keySet()).forEach(addr -> {
+                    if (resourcesToIgnoreForDrift.stream().anyMatch(glob -> glob.equals(addr) || WildcardGlobs.isGlobMatched(glob, addr))) {
+                        LOG.debug("Ignoring drift detected at known phantom drifter: "+addr);
+                        resourcesDriftDetected.remove(addr);
+                        resourcesChangesPlanned.remove(addr);
+                    }
+                });
+
+                resourcesDriftDetected.forEach((addr,change) -> {
+                    if (resourcesChangesPlanned.containsKey(addr)) {
+                        resourcesDriftDetectedChangesNeeded.add(addr);
+                    } else {
+                        resourcesDriftDetectedStateOnly.add(addr);
+                    }
+                });
+
+                if (!resources.isEmpty()) {
+                    result.put(RESOURCE_CHANGES, resources);
+                    result.put(RESOURCES_CHANGES_PLANNED, resourcesChangesPlanned);
+                    result.put(RESOURCES_DRIFT_DETECTED, resourcesDriftDetected);
+                    result.put(RESOURCES_DRIFT_DETECTED_CHANGES_NEEDED, resourcesDriftDetectedChangesNeeded);
+                    result.put(RESOURCES_DRIFT_DETECTED_STATE_ONLY, resourcesDriftDetectedStateOnly);
+
+                    if (resourcesChangesPlanned.isEmpty()) {
+                        // all resources are state only
+                        planMessage = "Drift detected in state. No changes required to resources but local state needs an update.";
+                        result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.STATE_CHANGE);
+                    } else {
+                        result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DRIFT);
+                        if (!resourcesDriftDetectedChangesNeeded.isEmpty()) {
+                            planMessage = "Drift detected. Infrastructure state has changed in a way that does not match the configuration.";
+                        } else {
+                            // either the plan has changed, or drift was detected but local state has been fully refreshed since then
+                            planMessage = "Current plan does not match infrastructure.";
+                        }
+                        planMessage += " Run apply to align infrastructure and configuration. " +
+                                "Configurations made outside terraform will be lost if not added to the configuration. " + changeSummaryLog.get().message;
+                    }
+                }
+            }
+
+            if (!diagnostics.isEmpty()) {
+                List<Map<String,Object>> resources = new ArrayList<>();
+                result.put(PLAN_MESSAGE, "Something went wrong. Check your configuration.");
+                StringBuilder sb = new StringBuilder();
+                diagnostics.forEach(ple -> {
+                    if(StringUtils.isNotBlank(ple.diagnostic.address)) {
+                        resources.add(ImmutableMap.of(
+                                "resource.addr", ple.diagnostic.address,
+                                "resource.action", "No action. Unrecoverable state."
+                        ));
+                    }
+                    if(ple.diagnostic.detail != null) {
+                        sb.append(ple.message + ple.diagnostic.detail).append("\n");
+                    }
+                    sb.append(ple.message).append("\n");
+                });
+                result.put("tf.errors",  sb);
+                result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.ERROR);
+                if(!resources.isEmpty()) {
+                    result.put(RESOURCE_CHANGES, resources);
+                    result.put(PLAN_MESSAGE, "Terraform in UNRECOVERABLE error state.");
+                } else {
+                    result.put(PLAN_MESSAGE, "Terraform in RECOVERABLE error state. Check configuration syntax.");
+                }
+                return result;
+            }
+
+            if (result.containsKey("tf.output.changes")) {
+                // output vars added/removed, or value updated
+                if (planMessage==null) planMessage = "Outputs have changed. " + changeSummaryLog.get().message;
+                else planMessage = "Outputs have changed. Additionally: " + planMessage;
+                if (result.get(PLAN_STATUS)==null) result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.STATE_CHANGE);
+            }
+
+            if (planMessage!=null) {
+                // something above ran, and set the status
+                result.put(PLAN_MESSAGE, planMessage);
+
+            } else {
+                // no changes, or unknown format
+
+                if (changeSummaryLog.isPresent()) {
+                    boolean noChangesDetected = false;
+                    if (changeSummaryLog.get().changes != null &&
+                            changeSummaryLog.get().changes.get("add").equals(0) &&
+                            changeSummaryLog.get().changes.get("change").equals(0) &&
+                            changeSummaryLog.get().changes.get("remove").equals(0)) {
+                        noChangesDetected = true;
+                    } else if (NO_CHANGES.equals(changeSummaryLog.get().message)) {
+                        noChangesDetected = true;
+                    }
+
+                    if (noChangesDetected) {
+                        result.put(PLAN_MESSAGE, "No changes. Your infrastructure matches the configuration.");
+                        result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.SYNC);
+                    } else {
+                        // unexpected; we should have gotten drift or planned change objects and already have a planMessage, so not come here!
+                        result.put(PLAN_MESSAGE, "Configuration and infrastructure do not match. " + changeSummaryLog.get().message);
+                        result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DRIFT);
+                    }
+                } else {
+                    // also shouldn't come here
+                    result.put(PLAN_MESSAGE, "Unexpected information returned by plan.");
+                    result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.ERROR);
+                }
+            }
+
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+package io.cloudsoft.terraform.parser;
+
+import org.apache.brooklyn.util.collections.MutableMap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+
+/**
+ * Flattens a list of resource nodes into the address-keyed map of {@link StateParser#resourceBody resource bodies},
+ * splitting the list across a fork-join pool when it is larger than a threshold.
+ * <p>
+ * The parts are merged in list order, so the result is the same, in the same order, as parsing sequentially.
+ */
+final class ResourceParsingTask<T> extends RecursiveTask<Map<String, Map<String,Object>>> {
+
+    /** number of resources above which a state is parsed in parallel, when not configured */
+    static final int DEFAULT_PARALLEL_THRESHOLD = 1000;
+
+    private final List<T> resources;
+    private final int from;
+    private final int to;
+    private final int threshold;
+    private final BiConsumer<T, Map<String, Map<String,Object>>> parser;
+
+    private ResourceParsingTask(List<T> resources, int from, int to, int threshold, BiConsumer<T, Map<String, Map<String,Object>>> parser) {
+        this.resources = resources;
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+        this.parser = parser;
+    }
+
+    /**
+     * @param parser adds the entries for one resource node to the given map
+     * @param threshold parse in parallel if there are more resources than this; 0 or less to always parse sequentially
+     */
+    static <T> Map<String, Map<String,Object>> parse(List<T> resources, BiConsumer<T, Map<String, Map<String,Object>>> parser, int threshold) {
+        if (threshold <= 0 || resources.size() <= threshold) {
+            return parseRange(resources, 0, resources.size(), parser);
+        }
+        return ForkJoinPool.commonPool().invoke(new ResourceParsingTask<>(resources, 0, resources.size(), threshold, parser));
+    }
+
+    private static <T> Map<String, Map<String,Object>> parseRange(List<T> resources, int from, int to, BiConsumer<T, Map<String, Map<String,Object>>> parser) {
+        Map<String, Map<String,Object>> result = MutableMap.of();
+        for (int i = from; i < to; i++) {
+            parser.accept(resources.get(i), result);
+        }
+        return result;
+    }
+
+    @Override
+    protected Map<String, Map<String,Object>> compute() {
+        if (to - from <= threshold) {
+            return parseRange(resources, from, to, parser);
+        }
+        int mid = (from + to) >>> 1;
+        ResourceParsingTask<T> first = new ResourceParsingTask<>(resources, from, mid, threshold, parser);
+        first.fork();
+        Map<String, Map<String,Object>> second = new ResourceParsingTask<>(resources, mid, to, threshold, parser).compute();
+        Map<String, Map<String,Object>> result = first.join();
+        result.putAll(second);
+        return result;
+    }
+
+}
@@ -0,0 +1,256 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact map for the flattened attributes of one terraform resource, as produced by {@link StateParser} and {@link TfStateParser}.
+ * <p>
+ * Entries are held in two parallel arrays in insertion order rather than as hash map entries,
+ * and keys and short string values are interned, so the many resources of the same type share
+ * their key strings (<code>value.ami</code>, <code>sensitive.value.tags</code>, ...) and common values
+ * (<code>false</code>, <code>[]</code>, region names, ...). Lookups are linear, which is fine for the few dozen attributes of a resource.
+ * <p>
+ * It is an ordinary {@link Map}, so existing callers (and sensors typed as maps) are unaffected.
+ * Once {@link #freeze() frozen} it rejects changes, so one instance can be shared as a snapshot
+ * by the parent's <code>tf.state</code> sensor and the resource entity's <code>tf.state.contents</code> and <code>tf.*</code> sensors.
+ */
+public final class ResourceRecord extends AbstractMap<String,Object> {
+
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** longer values are rarely repeated, and hashing them to intern costs more than it saves */
+    static final int MAX_INTERNED_VALUE_LENGTH = 256;
+
+    private String[] keys;
+    private Object[] values;
+    private int size;
+    private boolean frozen;
+
+    public ResourceRecord() {
+        this(8);
+    }
+
+    public ResourceRecord(int expectedSize) {
+        keys = new String[Math.max(1, expectedSize)];
+        values = new Object[keys.length];
+    }
+
+    public static String intern(String s) {
+        return s==null ? null : INTERNER.intern(s);
+    }
+
+    private static Object internValue(Object v) {
+        if (v instanceof String && ((String) v).length() <= MAX_INTERNED_VALUE_LENGTH) return intern((String) v);
+        return v;
+    }
+
+    /** makes this record read-only; further changes throw {@link UnsupportedOperationException} */
+    public ResourceRecord freeze() {
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) throw new UnsupportedOperationException("Resource record for "+get("resource.address")+" is a shared snapshot and cannot be changed");
+    }
+
+    /** bytes of the value serialized as JSON, counted as it is written rather than kept */
+    public static long serializedSize(Object value) {
+        CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try {
+            MAPPER.writeValue(out, value);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot serialize "+value.getClass().getSimpleName()+" to measure its size", e);
+        }
+        return out.getCount();
+    }
+
+    /**
+     * bytes of the <code>tf.*</code> sensors a resource entity publishes for the record, serialized as JSON,
+     * each named for a key and holding the value as a string
+     */
+    public static long sensorsSerializedSize(Map<String,?> record) {
+        CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+        try (JsonGenerator generator = MAPPER.getFactory().createGenerator(out)) {
+            generator.writeStartObject();
+            for (Entry<String,?> entry : record.entrySet()) {
+                generator.writeStringField("tf." + entry.getKey(), String.valueOf(entry.getValue()));
+            }
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot serialize sensors of "+record.get("resource.address")+" to measure their size", e);
+        }
+        return out.getCount();
+    }
+
+    /**
+     * Hash of the keys and values of the map, in iteration order, for detecting whether a resource has changed between refreshes.
+     * Records parsed from the same state have the same order, and so the same hash.
+     */
+    public static String contentHash(Map<String,?> record) {
+        return contentHash(record, Collections.emptySet());
+    }
+
+    /** as {@link #contentHash(Map)}, leaving out the given keys */
+    public static String contentHash(Map<String,?> record, Set<String> excludedKeys) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (Entry<String,?> entry : record.entrySet()) {
+            if (excludedKeys.contains(entry.getKey())) continue;
+            hasher.putUnencodedChars(entry.getKey()).putChar('\0');
+            hasher.putUnencodedChars(String.valueOf(entry.getValue())).putChar('\0');
+        }
+        return hasher.hash().toString();
+    }
+
+    private int indexOf(Object key) {
+        for (int i=0; i<size; i++) {
+            if (keys[i]==key) return i;
+        }
+        if (key!=null) {
+            for (int i=0; i<size; i++) {
+                if (key.equals(keys[i])) return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = indexOf(key);
+        return i>=0 ? values[i] : null;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        checkNotFrozen();
+        int i = indexOf(key);
+        if (i>=0) {
+            Object old = values[i];
+            values[i] = internValue(value);
+            return old;
+        }
+        if (size==keys.length) {
+            int capacity = keys.length + (keys.length >> 1) + 1;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = intern(key);
+        values[size] = internValue(value);
+        size++;
+        return null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        int i = indexOf(key);
+        if (i<0) return null;
+        Object old = values[i];
+        removeAt(i);
+        return old;
+    }
+
+    private void removeAt(int i) {
+        checkNotFrozen();
+        System.arraycopy(keys, i+1, keys, i, size-i-1);
+        System.arraycopy(values, i+1, values, i, size-i-1);
+        size--;
+        keys[size] = null;
+        values[size] = null;
+    }
+
+    @Override
+    public void clear() {
+        checkNotFrozen();
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    /** releases unused capacity, once the record is fully populated */
+    public ResourceRecord trimToSize() {
+        if (keys.length > size) {
+            keys = Arrays.copyOf(keys, Math.max(1, size));
+            values = Arrays.copyOf(values, keys.length);
+        }
+        return this;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    int next = 0;
+                    int last = -1;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (next >= size) throw new NoSuchElementException();
+                        last = next++;
+                        final int index = last;
+                        return new SimpleEntry<String, Object>(keys[index], values[index]) {
+                            @Override
+                            public Object setValue(Object value) {
+                                Object old = ResourceRecord.this.put(getKey(), value);
+                                super.setValue(value);
+                                return old;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last<0) throw new IllegalStateException();
+                        removeAt(last);
+                        next = last;
+                        last = -1;
+                    }
+                };
+            }
+        };
+    }
+
+}
@@ -0,0 +1,154 @@
+package io.cloudsoft.terraform.parser;
+
+import org.apache.brooklyn.util.collections.MutableList;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.text.Strings;
+import org.apache.brooklyn.util.text.WildcardGlobs;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Read-only table of the flattened resources in a terraform state, for configurations with too many resources to model each as an entity.
+ * <p>
+ * Resources are stored by type, and for each type as columns: one array per attribute, with an entry per resource of that type.
+ * Resources of a type share their attribute names, so this holds each name once per type rather than once per resource,
+ * and only a few pointers per attribute value. An index by address gives the type and row of each resource.
+ */
+public final class ResourceTable {
+
+    public static final ResourceTable EMPTY = new ResourceTable(Collections.emptyMap(), Collections.emptyMap());
+
+    private static final class TypeTable {
+        final String[] addresses;
+        final String[] columnNames;
+        final Object[][] columns;
+
+        TypeTable(List<Map<String,Object>> rows) {
+            addresses = new String[rows.size()];
+            Map<String, Integer> columnIndex = MutableMap.of();
+            rows.forEach(row -> row.keySet().forEach(k -> columnIndex.putIfAbsent(k, columnIndex.size())));
+            columnNames = columnIndex.keySet().toArray(new String[0]);
+            columns = new Object[columnNames.length][rows.size()];
+            for (int r = 0; r < rows.size(); r++) {
+                Map<String,Object> row = rows.get(r);
+                addresses[r] = (String) row.get("resource.address");
+                for (Map.Entry<String,Object> e : row.entrySet()) {
+                    columns[columnIndex.get(e.getKey())][r] = e.getValue();
+                }
+            }
+        }
+
+        ResourceRecord row(int row) {
+            ResourceRecord result = new ResourceRecord(columnNames.length);
+            for (int c = 0; c < columnNames.length; c++) {
+                if (columns[c][row] != null) result.put(columnNames[c], columns[c][row]);
+            }
+            return result.trimToSize();
+        }
+    }
+
+    private static final class Row {
+        final TypeTable table;
+        final int row;
+
+        Row(TypeTable table, int row) {
+            this.table = table;
+            this.row = row;
+        }
+    }
+
+    private final Map<String, TypeTable> types;
+    private final Map<String, Row> index;
+
+    private ResourceTable(Map<String, TypeTable> types, Map<String, Row> index) {
+        this.types = types;
+        this.index = index;
+    }
+
+    /** builds a table from the map of resources returned by the state parsers */
+    public static ResourceTable of(Map<String, Map<String,Object>> resources) {
+        Map<String, List<Map<String,Object>>> byType = MutableMap.of();
+        resources.values().forEach(r -> byType.computeIfAbsent(String.valueOf(r.get("resource.type")), k -> MutableList.of()).add(r));
+        Map<String, TypeTable> types = MutableMap.of();
+        Map<String, Row> index = MutableMap.of();
+        byType.forEach((type, rows) -> {
+            TypeTable table = new TypeTable(rows);
+            types.put(type, table);
+            for (int r = 0; r < table.addresses.length; r++) {
+                index.put(table.addresses[r], new Row(table, r));
+            }
+        });
+        return new ResourceTable(types, index);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /** @return the number of resources of each type */
+    public Map<String, Integer> countByType() {
+        Map<String, Integer> result = MutableMap.of();
+        types.forEach((type, table) -> result.put(type, table.addresses.length));
+        return result;
+    }
+
+    /** @return the flattened attributes of the resource with the given address, or null */
+    public Map<String,Object> get(String address) {
+        Row entry = index.get(address);
+        return entry == null ? null : entry.table.row(entry.row);
+    }
+
+    /** @return the flattened attributes of the resources whose type satisfies the filter, by address */
+    public Map<String, Map<String,Object>> select(Predicate<String> typeFilter) {
+        Map<String, Map<String,Object>> result = MutableMap.of();
+        types.forEach((type, table) -> {
+            if (!typeFilter.test(type)) return;
+            for (int r = 0; r < table.addresses.length; r++) {
+                result.put(table.addresses[r], table.row(r));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Finds resources, with all criteria optional.
+     * @param addressGlob wildcard pattern the address must match, eg <code>module.web.*</code>
+     * @param typeGlob wildcard pattern the type must match, eg <code>aws_*</code>
+     * @param attribute flattened attribute the resource must have, eg <code>value.instance_type</code>
+     * @param value value the attribute must have, if an attribute is given; otherwise value which any attribute must have
+     * @param limit maximum number of resources to return, or 0 or less for no limit
+     */
+    public List<Map<String,Object>> query(String addressGlob, String typeGlob, String attribute, String value, int limit) {
+        List<Map<String,Object>> result = MutableList.of();
+        for (Map.Entry<String, TypeTable> t : types.entrySet()) {
+            if (Strings.isNonBlank(typeGlob) && !WildcardGlobs.isGlobMatched(typeGlob, t.getKey())) continue;
+            TypeTable table = t.getValue();
+            int column = Strings.isNonBlank(attribute) ? Arrays.asList(table.columnNames).indexOf(attribute) : -1;
+            if (Strings.isNonBlank(attribute) && column < 0) continue;
+            for (int r = 0; r < table.addresses.length; r++) {
+                if (Strings.isNonBlank(addressGlob) && !WildcardGlobs.isGlobMatched(addressGlob, table.addresses[r])) continue;
+                if (column >= 0) {
+                    Object v = table.columns[column][r];
+                    if (v == null || (value != null && !value.equals(v.toString()))) continue;
+                } else if (Strings.isNonBlank(value) && !hasValue(table, r, value)) {
+                    continue;
+                }
+                result.add(table.row(r));
+                if (limit > 0 && result.size() >= limit) return result;
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasValue(TypeTable table, int row, String value) {
+        for (Object[] column : table.columns) {
+            if (column[row] != null && value.equals(column[row].toString())) return true;
+        }
+        return false;
+    }
+
+}
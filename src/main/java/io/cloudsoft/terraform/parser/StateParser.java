@@ -1,30 +1,23 @@
 package io.cloudsoft.terraform.parser;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import io.cloudsoft.terraform.TerraformConfiguration;
 import io.cloudsoft.terraform.TerraformConfiguration.TerraformStatus;
 import org.apache.brooklyn.api.entity.Entity;
 import org.apache.brooklyn.util.collections.MutableList;
 import org.apache.brooklyn.util.collections.MutableMap;
-import org.apache.brooklyn.util.collections.MutableSet;
-import org.apache.brooklyn.util.text.Strings;
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 import static io.cloudsoft.terraform.TerraformDriver.*;
-import static io.cloudsoft.terraform.parser.PlanLogEntry.NO_CHANGES;
 import static io.cloudsoft.terraform.parser.PlanLogEntry.Provider.GOOGLE;
 
 /**
@@ -34,17 +27,19 @@ public final class StateParser {
     private static final Logger LOG = LoggerFactory.getLogger(StateParser.class);
     public static final ImmutableList BLANK_ITEMS = ImmutableList.of("[]", "", "null", "\"\"", "{}", "[{}]");
 
-    private static  Predicate<PlanLogEntry> providerPredicate = ple -> ple.getProvider() != PlanLogEntry.Provider.NOT_SUPPORTED;
-    private static  Predicate<PlanLogEntry> changeSummaryPredicate = ple -> ple.type == PlanLogEntry.LType.CHANGE_SUMMARY;
-    private static  Predicate<PlanLogEntry> outputsPredicate = ple -> ple.type == PlanLogEntry.LType.OUTPUTS;
-    private static  Predicate<PlanLogEntry> plannedChangedPredicate = ple -> ple.type == PlanLogEntry.LType.PLANNED_CHANGE;
-    private static  Predicate<PlanLogEntry> driftPredicate = ple -> ple.type == PlanLogEntry.LType.RESOURCE_DRIFT;
-    private static  Predicate<PlanLogEntry> errorPredicate = ple -> ple.type == PlanLogEntry.LType.DIAGNOSTIC;
     private static Predicate<JsonNode> isNotBlankPredicate = node -> node != null && !BLANK_ITEMS.contains((node instanceof TextNode) ? node.asText() : node.toString());
 
 
     public static Map<String, Map<String,Object>> parseResources(final String state){
-        Map<String, Map<String,Object>> result  = MutableMap.of();
+        return parseResources(state, ResourceParsingTask.DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Parses the resources in the root module and, recursively, in its <code>child_modules</code>;
+     * resources in a module have their module address as <code>resource.module</code>.
+     * @param parallelThreshold parse on a fork-join pool if there are more resources than this; 0 to always parse sequentially
+     */
+    public static Map<String, Map<String,Object>> parseResources(final String state, int parallelThreshold){
         ObjectMapper objectMapper = new ObjectMapper();
         try {
             JsonNode root = objectMapper.readTree(state);
@@ -54,7 +49,7 @@ public final class StateParser {
             }
             if (root.get("terraform_version") == null) {
                 // probably no data
-                return result;
+                return MutableMap.of();
             }
 
             if(!root.has("values")) {
@@ -64,50 +59,155 @@ public final class StateParser {
                 throw new  IllegalArgumentException ("A valid deployment state should have a root_module node!");
             }
 
-            JsonNode resourceNode = root.at("/values/root_module/resources");
-            resourceNode.forEach(resource ->  {
-                Map<String, Object>  resourceBody = new LinkedHashMap<>();
+            List<Map.Entry<String,JsonNode>> resources = MutableList.of();
+            collectModuleResources(root.at("/values/root_module"), null, resources);
+            return ResourceParsingTask.parse(resources, (moduleAndResource, result) -> {
+                JsonNode resource = moduleAndResource.getValue();
+                result.put(resource.get("address").asText(), resourceBody(resource.get("address").asText(), moduleAndResource.getKey(), resource.get("mode").asText(),
+                        resource.get("type").asText(), resource.get("name").asText(), resource.get("provider_name").asText(),
+                        resource.get("values"), resource.get("sensitive_values")));
+            }, parallelThreshold);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot parse Terraform state!", e);
+        }
+    }
 
-                //if (resource.has("mode") && "managed".equals(resource.get("mode").asText())) {
-                    result.put(resource.get("address").asText(), resourceBody);
+    /** adds the resources of the module and its child modules, depth first, paired with the module address (null for the root module) */
+    private static void collectModuleResources(JsonNode module, String moduleAddress, List<Map.Entry<String,JsonNode>> result) {
+        module.path("resources").forEach(resource -> result.add(new AbstractMap.SimpleImmutableEntry<>(moduleAddress, resource)));
+        module.path("child_modules").forEach(child -> collectModuleResources(child, child.path("address").asText(), result));
+    }
 
-                    resourceBody.put("resource.address", resource.get("address").asText());
-                    resourceBody.put("resource.mode", resource.get("mode").asText());
-                    resourceBody.put("resource.type", resource.get("type").asText());
-                    resourceBody.put("resource.name", resource.get("name").asText());
-                    resourceBody.put("resource.provider", resource.get("provider_name").asText());
-                    if(resource.has("values")) {
-                        Iterator<Map.Entry<String, JsonNode>>  it = resource.get("values").fields();
-                        while(it.hasNext()) {
-                            Map.Entry<String,JsonNode> value =  it.next();
-                            if(isNotBlankPredicate.test(value.getValue())) {
-                                if((resourceBody.get("resource.address").toString().startsWith(GOOGLE.getPrefix()) && value.getKey().equals("cluster_config"))){
-                                    parseClusterData(value.getValue(), "value.cluster_config", resourceBody);
-                                } else {
-                                    resourceBody.put("value." + value.getKey(), value.getValue() instanceof TextNode? value.getValue().asText() : value.getValue().toString());
-                                }
-                            }
-                        }
+    /**
+     * flattens a resource into the keys used for resource sensors, as a compact {@link ResourceRecord}; shared with {@link TfStateParser} so both produce the same keys
+     * @param module address of the module containing the resource, or null if in the root module
+     */
+    static Map<String, Object> resourceBody(String address, String module, String mode, String type, String name, String providerName,
+                                            JsonNode values, JsonNode sensitiveValues) {
+        ResourceRecord resourceBody = new ResourceRecord(6 + (values!=null ? values.size() : 0) + (sensitiveValues!=null ? sensitiveValues.size() : 0));
+        resourceBody.put("resource.address", address);
+        resourceBody.put("resource.mode", mode);
+        resourceBody.put("resource.type", type);
+        resourceBody.put("resource.name", name);
+        resourceBody.put("resource.provider", providerName);
+        if (module!=null) resourceBody.put("resource.module", module);
+        String addressInModule = module!=null ? address.substring(module.length()+1) : address;
+        if(values!=null) {
+            Iterator<Map.Entry<String, JsonNode>>  it = values.fields();
+            while(it.hasNext()) {
+                Map.Entry<String,JsonNode> value =  it.next();
+                if(isNotBlankPredicate.test(value.getValue())) {
+                    if((addressInModule.startsWith(GOOGLE.getPrefix()) && value.getKey().equals("cluster_config"))){
+                        parseClusterData(value.getValue(), "value.cluster_config", resourceBody);
+                    } else {
+                        resourceBody.put("value." + value.getKey(), value.getValue() instanceof TextNode? value.getValue().asText() : value.getValue().toString());
                     }
+                }
+            }
+        }
 
-                    if(resource.has("sensitive_values")) {
-                        Iterator<Map.Entry<String, JsonNode>>  it = resource.get("sensitive_values").fields();
-                        while(it.hasNext()) {
-                            Map.Entry<String,JsonNode> value =  it.next();
-                            if(isNotBlankPredicate.test(value.getValue())) {
-                                resourceBody.put("sensitive.value." + value.getKey(),  value.getValue() instanceof TextNode? value.getValue().asText() : value.getValue().toString());
-                            }
-                        }
-                    }
-                //}
+        if(sensitiveValues!=null) {
+            Iterator<Map.Entry<String, JsonNode>>  it = sensitiveValues.fields();
+            while(it.hasNext()) {
+                Map.Entry<String,JsonNode> value =  it.next();
+                if(isNotBlankPredicate.test(value.getValue())) {
+                    resourceBody.put("sensitive.value." + value.getKey(),  value.getValue() instanceof TextNode? value.getValue().asText() : value.getValue().toString());
+                }
+            }
+        }
+        return resourceBody.trimToSize();
+    }
 
-            });
+    /**
+     * @return the addresses of the modules enclosing a resource in the given module, outermost first and ending with the module itself,
+     * eg <code>[module.a, module.a.module.b["x"]]</code> for <code>module.a.module.b["x"]</code>; empty for the root module (null)
+     */
+    public static List<String> moduleAncestors(String module) {
+        List<String> result = MutableList.of();
+        if (module==null || module.isEmpty()) return result;
+        boolean inKey = false;
+        for (int i=0; i<module.length(); i++) {
+            char c = module.charAt(i);
+            if (c=='[') inKey = true;
+            else if (c==']') inKey = false;
+            else if (!inKey && module.startsWith(".module.", i)) result.add(module.substring(0, i));
+        }
+        result.add(module);
+        return result;
+    }
+
+    /** @return the address without its <code>count</code> or <code>for_each</code> index, or null if it is not indexed */
+    public static String unindexedAddress(String address) {
+        if (address==null || !address.endsWith("]")) return null;
+        int start = address.lastIndexOf('[');
+        return start>0 ? address.substring(0, start) : null;
+    }
+
+    /**
+     * Parses the json rendering of a saved plan (<code>terraform show -json plan-file</code>) into a map keyed by resource address,
+     * giving for each resource with a planned change or drift its <code>actions</code> and the top-level attributes which differ,
+     * as <code>changes</code> mapping attribute name to its <code>before</code> and <code>after</code> values.
+     * Sensitive values are masked, and values only known after apply are shown as such.
+     */
+    public static Map<String, Map<String,Object>> parsePlanResourceChanges(final String planJson) {
+        Map<String, Map<String,Object>> result = MutableMap.of();
+        try {
+            JsonNode root = new ObjectMapper().readTree(planJson);
+            if (root==null || !root.isContainerNode()) {
+                throw new IllegalArgumentException("This is not a valid TF plan!");
+            }
+            root.path("resource_changes").forEach(rc -> addPlanResourceChange(rc, false, result));
+            root.path("resource_drift").forEach(rc -> addPlanResourceChange(rc, true, result));
         } catch (JsonProcessingException e) {
-            throw new IllegalStateException("Cannot parse Terraform state!", e);
+            throw new IllegalStateException("Cannot parse Terraform plan!", e);
         }
         return result;
     }
 
+    private static void addPlanResourceChange(JsonNode resourceChange, boolean drift, Map<String, Map<String,Object>> result) {
+        String address = resourceChange.path("address").asText();
+        JsonNode change = resourceChange.path("change");
+        List<String> actions = MutableList.of();
+        change.path("actions").forEach(a -> actions.add(a.asText()));
+        if (actions.isEmpty() || actions.equals(Collections.singletonList("no-op")) || result.containsKey(address)) {
+            // nothing to report, or already reported as a planned change
+            return;
+        }
+
+        JsonNode before = change.path("before");
+        JsonNode after = change.path("after");
+        Set<String> attributes = new TreeSet<>();
+        before.fieldNames().forEachRemaining(attributes::add);
+        after.fieldNames().forEachRemaining(attributes::add);
+        change.path("after_unknown").fieldNames().forEachRemaining(attributes::add);
+
+        Map<String, Object> changes = MutableMap.of();
+        for (String attribute : attributes) {
+            boolean unknown = change.path("after_unknown").path(attribute).asBoolean(false);
+            JsonNode b = before.get(attribute);
+            JsonNode a = after.get(attribute);
+            if (!unknown && Objects.equals(b, a)) continue;
+            changes.put(attribute, MutableMap.of(
+                    "before", planValueToString(b, change.path("before_sensitive").path(attribute)),
+                    "after", unknown ? "(known after apply)" : planValueToString(a, change.path("after_sensitive").path(attribute))));
+        }
+
+        Map<String, Object> resourceBody = MutableMap.of();
+        resourceBody.put("actions", actions);
+        resourceBody.put("changes", changes);
+        if (drift) resourceBody.put("drift", true);
+        result.put(address, resourceBody);
+    }
+
+    private static String planValueToString(JsonNode value, JsonNode sensitive) {
+        if (value==null || value.isNull() || value.isMissingNode()) return null;
+        // sensitivity is true, or a structure mirroring the value with true at the sensitive parts; mask the whole value if any part is sensitive
+        if (sensitive!=null && sensitive.toString().contains("true")) {
+            return "(sensitive value)";
+        }
+        return value instanceof TextNode ? value.asText() : value.toString();
+    }
+
     /**
      * We need to process this node to extract useful cluster data.
      * Careful with this one, because it is a tad recursive!
@@ -158,203 +258,19 @@ public final class StateParser {
         return parsePlanLogEntries(planLogEntriesAsStr, entity.config().get(TerraformConfiguration.TERRAFORM_RESOURCES_IGNORED_FOR_DRIFT));
     }
 
+    /** As {@link #parsePlanLogEntries(Entity, String)}, leaving out drift at the given addresses; see {@link PlanLogParser#parse(String, Collection, Collection)}. */
+    public static Map<String, Object> parsePlanLogEntries(Entity entity, final String planLogEntriesAsStr, Collection<String> driftToLeaveOut) {
+        if (driftToLeaveOut==null || entity.config().get(TerraformConfiguration.TERRAFORM_CLOUD_MODE)) return parsePlanLogEntries(entity, planLogEntriesAsStr);
+        return PlanLogParser.parse(planLogEntriesAsStr, entity.config().get(TerraformConfiguration.TERRAFORM_RESOURCES_IGNORED_FOR_DRIFT), driftToLeaveOut);
+    }
+
     public static Map<String, Object> parsePlanLogEntriesForTest(final String planLogEntriesAsStr) {
         return parsePlanLogEntries(planLogEntriesAsStr, null);
     }
 
+    /** Parses the output of <code>terraform plan -json</code>; see {@link PlanLogParser}. */
     public static Map<String, Object> parsePlanLogEntries(final String planLogEntriesAsStr, Collection<String> resourcesToIgnoreForDrift) {
-        String[] planLogEntries = planLogEntriesAsStr.split(System.lineSeparator());
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-
-        List<PlanLogEntry> planLogs = Arrays.stream(planLogEntries).map(log -> {
-            try {
-                if (!log.trim().startsWith("{")) {
-                    // in some cases, including with terraform cloud, non-json lines are included
-                    return null;
-                } else {
-                    return objectMapper.readValue(log, PlanLogEntry.class);
-                }
-            } catch (JsonProcessingException e) {
-                LOG.warn("Unable to parse plan log entry: "+log, e);
-            }
-            return null;
-        }).filter(Objects::nonNull).collect(Collectors.toList());
-
-        Map<String, Object> result = new HashMap<>();
-
-        planLogs.stream().filter(providerPredicate).findFirst().ifPresent(p -> result.put(PLAN_PROVIDER, p.getProvider()));
-        Set<PlanLogEntry.Provider> providers = planLogs.stream().filter(providerPredicate).map(p -> p.getProvider()).collect(Collectors.toSet());
-        if (!providers.isEmpty()) {
-            result.put(PLAN_PROVIDER, providers.iterator().next());
-            // currently only support some providers
-            result.put(PLAN_PROVIDERS, providers);
-        }
-
-        Optional<PlanLogEntry> changeSummaryLog = planLogs.stream().filter(changeSummaryPredicate).findFirst(); // it is not there when the config is broken
-        String planMessage = null;
-
-        planLogs.stream().filter(outputsPredicate).findFirst().ifPresent(ple -> {
-            List<Map<String,Object>> outputs = new ArrayList<>();
-            ple.outputs.forEach((oK, oV) -> {
-                if (!"noop".equals(oV.get("action"))) {
-                    outputs.add(ImmutableMap.of(
-                            "output.addr", oK,
-                            "output.action", oV.get("action").toString()
-                    ));
-                }
-            });
-            if(!outputs.isEmpty()) {
-                result.put("tf.output.changes", outputs);
-            }
-        });
-
-        /*
-         * See comments at RefreshTerraformModelAndSensors.
-         * This needs to return the set of "resources_changed_state_only".
-         * It should also distinguish between "resources_changed_drifted" and "resources_changed_plan".
-         */
-        if (planLogs.stream().anyMatch(plannedChangedPredicate.or(driftPredicate))) {
-
-            List<Map<String,Object>> resources = MutableList.of();
-            Map<String,Object> resourcesChangesPlanned = MutableMap.of();
-            Map<String,Object> resourcesDriftDetected = MutableMap.of();
-            Set<String> resourcesDriftDetectedStateOnly = MutableSet.of();
-            Set<String> resourcesDriftDetectedChangesNeeded = MutableSet.of();
-
-            planLogs.stream().filter(plannedChangedPredicate).forEach(ple -> {
-                if (!"noop".equals(ple.change.get("action"))) {
-                    String addr = ((Map<String, String>) ple.change.get("resource")).get("addr");
-                    resources.add(ImmutableMap.of(
-                            "resource.addr", addr,
-                            "resource.change_type", Strings.toString(ple.type),
-                            "resource.action", Strings.toString(ple.change!=null ? ple.change.get("action") : null)
-                    ));
-                    resourcesChangesPlanned.put(addr, ple.change);
-                }
-            });
-            planLogs.stream().filter(driftPredicate).forEach(ple -> {
-                if (!"noop".equals(ple.change.get("action"))) {
-                    LOG.debug("Detected drift: "+ple);
-                    String addr = ((Map<String, String>) ple.change.get("resource")).get("addr");
-                    resources.add(ImmutableMap.of(
-                            "resource.addr", addr,
-                            "resource.change_type", Strings.toString(ple.type),
-                            "resource.action", Strings.toString(ple.change!=null ? ple.change.get("action") : null)
-                    ));
-                    resourcesDriftDetected.put(addr, ple.change);
-                }
-            });
-
-            if (resourcesToIgnoreForDrift!=null) resourcesToIgnoreForDrift.forEach(addr -> {
-                if (resourcesDriftDetected.containsKey(addr)) {
-                    LOG.debug("Ignoring drift detected at known phantom drifter: "+addr);
-                    resourcesDriftDetected.remove(addr);
-                    resourcesChangesPlanned.remove(addr);
-                }
-            });
-
-            resourcesDriftDetected.forEach((addr,change) -> {
-                if (resourcesChangesPlanned.containsKey(addr)) {
-                    resourcesDriftDetectedChangesNeeded.add(addr);
-                } else {
-                    resourcesDriftDetectedStateOnly.add(addr);
-                }
-            });
-
-            if (!resources.isEmpty()) {
-                result.put(RESOURCE_CHANGES, resources);
-                result.put(RESOURCES_CHANGES_PLANNED, resourcesChangesPlanned);
-                result.put(RESOURCES_DRIFT_DETECTED, resourcesDriftDetected);
-                result.put(RESOURCES_DRIFT_DETECTED_CHANGES_NEEDED, resourcesDriftDetectedChangesNeeded);
-                result.put(RESOURCES_DRIFT_DETECTED_STATE_ONLY, resourcesDriftDetectedStateOnly);
-
-                if (resourcesChangesPlanned.isEmpty()) {
-                    // all resources are state only
-                    planMessage = "Drift detected in state. No changes required to resources but local state needs an update.";
-                    result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.STATE_CHANGE);
-                } else {
-                    result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DRIFT);
-                    if (!resourcesDriftDetectedChangesNeeded.isEmpty()) {
-                        planMessage = "Drift detected. Infrastructure state has changed in a way that does not match the configuration.";
-                    } else {
-                        // either the plan has changed, or drift was detected but local state has been fully refreshed since then
-                        planMessage = "Current plan does not match infrastructure.";
-                    }
-                    planMessage += " Run apply to align infrastructure and configuration. " +
-                            "Configurations made outside terraform will be lost if not added to the configuration. " + changeSummaryLog.get().message;
-                }
-            }
-        }
-
-        if (planLogs.stream().anyMatch(errorPredicate)) {
-            List<Map<String,Object>> resources = new ArrayList<>();
-            result.put(PLAN_MESSAGE, "Something went wrong. Check your configuration.");
-            StringBuilder sb = new StringBuilder();
-            planLogs.stream().filter(ple -> ple.type == PlanLogEntry.LType.DIAGNOSTIC).forEach(ple -> {
-                if(StringUtils.isNotBlank(ple.diagnostic.address)) {
-                    resources.add(ImmutableMap.of(
-                            "resource.addr", ple.diagnostic.address,
-                            "resource.action", "No action. Unrecoverable state."
-                    ));
-                }
-                if(ple.diagnostic.detail != null) {
-                    sb.append(ple.message + ple.diagnostic.detail).append("\n");
-                }
-                sb.append(ple.message).append("\n");
-            });
-            result.put("tf.errors",  sb);
-            result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.ERROR);
-            if(!resources.isEmpty()) {
-                result.put(RESOURCE_CHANGES, resources);
-                result.put(PLAN_MESSAGE, "Terraform in UNRECOVERABLE error state.");
-            } else {
-                result.put(PLAN_MESSAGE, "Terraform in RECOVERABLE error state. Check configuration syntax.");
-            }
-            return result;
-        }
-
-        if (result.containsKey("tf.output.changes")) {
-            // output vars added/removed, or value updated
-            if (planMessage==null) planMessage = "Outputs have changed. " + changeSummaryLog.get().message;
-            else planMessage = "Outputs have changed. Additionally: " + planMessage;
-            if (result.get(PLAN_STATUS)==null) result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.STATE_CHANGE);
-        }
-
-        if (planMessage!=null) {
-            // something above ran, and set the status
-            result.put(PLAN_MESSAGE, planMessage);
-
-        } else {
-            // no changes, or unknown format
-
-            if (changeSummaryLog.isPresent()) {
-                boolean noChangesDetected = false;
-                if (changeSummaryLog.get().changes != null &&
-                        changeSummaryLog.get().changes.get("add").equals(0) &&
-                        changeSummaryLog.get().changes.get("change").equals(0) &&
-                        changeSummaryLog.get().changes.get("remove").equals(0)) {
-                    noChangesDetected = true;
-                } else if (NO_CHANGES.equals(changeSummaryLog.get().message)) {
-                    noChangesDetected = true;
-                }
-
-                if (noChangesDetected) {
-                    result.put(PLAN_MESSAGE, "No changes. Your infrastructure matches the configuration.");
-                    result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.SYNC);
-                } else {
-                    // unexpected; we should have gotten drift or planned change objects and already have a planMessage, so not come here!
-                    result.put(PLAN_MESSAGE, "Configuration and infrastructure do not match. " + changeSummaryLog.get().message);
-                    result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.DRIFT);
-                }
-            } else {
-                // also shouldn't come here
-                result.put(PLAN_MESSAGE, "Unexpected information returned by plan.");
-                result.put(PLAN_STATUS, TerraformConfiguration.TerraformStatus.ERROR);
-            }
-        }
-
-        return result;
+        return PlanLogParser.parse(planLogEntriesAsStr, resourcesToIgnoreForDrift);
     }
 
 }
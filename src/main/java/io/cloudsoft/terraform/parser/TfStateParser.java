@@ -0,0 +1,189 @@
+package io.cloudsoft.terraform.parser;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.apache.brooklyn.util.collections.MutableMap;
+import org.apache.brooklyn.util.text.Strings;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the document returned by <code>terraform state pull</code> (the tfstate format),
+ * so that resources and outputs can be read from a single command rather than also running <code>show -json</code> and <code>output -json</code>.
+ * <p>
+ * {@link #parseResources(String)} produces the same flattened keys as {@link StateParser#parseResources(String)},
+ * including resources in child modules.
+ */
+public final class TfStateParser {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private TfStateParser() {}
+
+    public static Map<String, Map<String,Object>> parseResources(final String tfState) {
+        return parseResources(tfState, ResourceParsingTask.DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param parallelThreshold parse on a fork-join pool if there are more resources than this; 0 to always parse sequentially
+     */
+    public static Map<String, Map<String,Object>> parseResources(final String tfState, int parallelThreshold) {
+        JsonNode root = readState(tfState);
+        if (root==null) return MutableMap.of();
+
+        List<JsonNode> resources = MutableList.copyOf(root.path("resources"));
+        return ResourceParsingTask.parse(resources, (resource, result) -> {
+            String module = Strings.isNonBlank(resource.path("module").asText()) ? resource.path("module").asText() : null;
+            String mode = resource.path("mode").asText();
+            String type = resource.path("type").asText();
+            String name = resource.path("name").asText();
+            String providerName = providerName(resource.path("provider").asText());
+            String baseAddress = (module!=null ? module + "." : "") + ("data".equals(mode) ? "data." : "") + type + "." + name;
+
+            resource.path("instances").forEach(instance -> {
+                String address = baseAddress + indexSuffix(instance.get("index_key"));
+                JsonNode attributes = instance.path("attributes");
+                result.put(address, StateParser.resourceBody(address, module, mode, type, name, providerName,
+                        attributes, sensitiveValues(attributes, sensitivePaths(instance.path("sensitive_attributes")))));
+            });
+        }, parallelThreshold);
+    }
+
+    /**
+     * @return the outputs from the state, in the format returned by <code>terraform output -json</code>
+     * (a map of output name to an object with <code>value</code>, <code>type</code> and <code>sensitive</code>)
+     */
+    public static String parseOutputsAsJson(final String tfState) {
+        JsonNode root = readState(tfState);
+        ObjectNode result = JsonNodeFactory.instance.objectNode();
+        if (root!=null) {
+            Iterator<Map.Entry<String, JsonNode>> it = root.path("outputs").fields();
+            while (it.hasNext()) {
+                Map.Entry<String, JsonNode> output = it.next();
+                ObjectNode o = result.putObject(output.getKey());
+                o.put("sensitive", output.getValue().path("sensitive").asBoolean(false));
+                o.set("type", output.getValue().get("type"));
+                o.set("value", output.getValue().get("value"));
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * Reads just the <code>lineage</code> and <code>serial</code> of the state, stopping once both are found (they are normally first).
+     * Terraform increments the serial whenever the state changes, so the same value means the same resources and outputs.
+     * @return <code>lineage:serial</code>, or null if the state is blank or does not have both
+     */
+    public static String parseStateVersion(final String tfState) {
+        if (Strings.isBlank(tfState)) return null;
+        String lineage = null;
+        String serial = null;
+        try (JsonParser parser = MAPPER.getFactory().createParser(tfState)) {
+            if (parser.nextToken()!=JsonToken.START_OBJECT) return null;
+            while (parser.nextToken()==JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("lineage".equals(field) && value.isScalarValue()) lineage = parser.getText();
+                else if ("serial".equals(field) && value.isScalarValue()) serial = parser.getText();
+                else parser.skipChildren();
+                if (lineage!=null && serial!=null) return lineage + ":" + serial;
+            }
+            return null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot parse Terraform state!", e);
+        }
+    }
+
+    private static JsonNode readState(String tfState) {
+        if (Strings.isBlank(tfState)) return null;
+        try {
+            JsonNode root = MAPPER.readTree(tfState);
+            if (root==null || !root.isObject()) {
+                throw new IllegalArgumentException("This is not a valid TF state!");
+            }
+            if (!root.has("resources") && !root.has("outputs")) {
+                // probably no data
+                return null;
+            }
+            return root;
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot parse Terraform state!", e);
+        }
+    }
+
+    /** eg <code>registry.terraform.io/hashicorp/aws</code> from <code>module.x.provider["registry.terraform.io/hashicorp/aws"].alias</code> */
+    static String providerName(String provider) {
+        int start = provider.indexOf("[\"");
+        int end = provider.indexOf("\"]", start+2);
+        if (start<0 || end<0) return provider;
+        return provider.substring(start+2, end);
+    }
+
+    private static String indexSuffix(JsonNode indexKey) {
+        if (indexKey==null || indexKey.isNull()) return "";
+        if (indexKey.isNumber()) return "[" + indexKey.asText() + "]";
+        return "[" + indexKey.toString() + "]";
+    }
+
+    /** tree of the steps in the sensitive paths; a node with {@link #MARKED} set is sensitive in its entirety */
+    private static final String MARKED = "";
+
+    private static Map<String, Object> sensitivePaths(JsonNode sensitiveAttributes) {
+        Map<String, Object> tree = MutableMap.of();
+        sensitiveAttributes.forEach(path -> {
+            Map<String, Object> node = tree;
+            for (JsonNode step : path) {
+                JsonNode value = step.path("value");
+                String key = value.isObject() ? value.path("value").asText() : value.asText();
+                node = (Map<String, Object>) node.computeIfAbsent(key, k -> MutableMap.of());
+            }
+            node.put(MARKED, true);
+        });
+        return tree;
+    }
+
+    /**
+     * Builds the <code>sensitive_values</code> structure that <code>show -json</code> reports:
+     * <code>true</code> where a value is sensitive, primitives as <code>false</code> (omitted from objects),
+     * lists as a list of the result for each element, objects and maps recursively, and nulls omitted.
+     */
+    private static JsonNode sensitiveValues(JsonNode value, Map<String, Object> sensitive) {
+        if (sensitive!=null && sensitive.containsKey(MARKED)) return BooleanNode.TRUE;
+        if (value.isObject()) {
+            ObjectNode result = JsonNodeFactory.instance.objectNode();
+            Iterator<Map.Entry<String, JsonNode>> it = value.fields();
+            while (it.hasNext()) {
+                Map.Entry<String, JsonNode> field = it.next();
+                if (field.getValue().isNull()) continue;
+                JsonNode v = sensitiveValues(field.getValue(), child(sensitive, field.getKey()));
+                if (v.isBoolean() && !v.asBoolean()) continue;
+                result.set(field.getKey(), v);
+            }
+            return result;
+        }
+        if (value.isArray()) {
+            ArrayNode result = JsonNodeFactory.instance.arrayNode();
+            for (int i=0; i<value.size(); i++) {
+                result.add(sensitiveValues(value.get(i), child(sensitive, ""+i)));
+            }
+            return result;
+        }
+        return BooleanNode.FALSE;
+    }
+
+    private static Map<String, Object> child(Map<String, Object> sensitive, String key) {
+        return sensitive==null ? null : (Map<String, Object>) sensitive.get(key);
+    }
+
+}
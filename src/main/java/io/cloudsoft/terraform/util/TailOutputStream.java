@@ -0,0 +1,59 @@
+package io.cloudsoft.terraform.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} which keeps only the last bytes written, so its memory is bounded however much is written:
+ * once more than twice the limit is held, all but the last <code>limit</code> bytes are dropped.
+ * {@link #toString()} notes how many bytes were dropped before the ones kept.
+ */
+public class TailOutputStream extends ByteArrayOutputStream {
+
+    private final int limit;
+    private long dropped = 0;
+
+    public TailOutputStream(int limit) {
+        super(Math.min(limit, 1024));
+        if (limit<1) throw new IllegalArgumentException("Limit must be positive: "+limit);
+        this.limit = limit;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        super.write(b);
+        trim();
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (len>limit) {
+            // none of the leading bytes would be kept
+            dropped += count + len - limit;
+            count = 0;
+            off += len - limit;
+            len = limit;
+        }
+        super.write(b, off, len);
+        trim();
+    }
+
+    private void trim() {
+        if (count > 2*limit) {
+            int drop = count - limit;
+            System.arraycopy(buf, drop, buf, 0, limit);
+            count = limit;
+            dropped += drop;
+        }
+    }
+
+    /** @return the number of bytes written which are no longer kept */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return dropped>0 ? "... ("+dropped+" bytes not kept)\n"+super.toString() : super.toString();
+    }
+
+}
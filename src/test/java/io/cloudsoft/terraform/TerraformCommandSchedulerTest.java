@@ -0,0 +1,134 @@
+package io.cloudsoft.terraform;
+
+import org.apache.brooklyn.api.entity.EntitySpec;
+import org.apache.brooklyn.core.config.ConfigKeys;
+import org.apache.brooklyn.core.test.BrooklynAppUnitTestSupport;
+import org.apache.brooklyn.core.test.entity.TestApplication;
+import org.apache.brooklyn.test.Asserts;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TerraformCommandSchedulerTest extends BrooklynAppUnitTestSupport {
+
+    private TestApplication newApp(double weight, String mode) {
+        TestApplication result = mgmt.getEntityManager().createEntity(EntitySpec.create(TestApplication.class));
+        result.config().set(TerraformCommons.SCHEDULER_WEIGHT, weight);
+        result.config().set(TerraformCommons.TF_EXECUTION_MODE, mode);
+        return result;
+    }
+
+    /** runs a command which blocks until the latch is released, in a new thread, returning once it holds a permit */
+    private Thread hold(TestApplication entity, CountDownLatch release) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        Thread result = new Thread(() -> TerraformCommandScheduler.get(entity).runWithPermit(entity, () -> {
+            started.countDown();
+            return release.await(30, TimeUnit.SECONDS);
+        }));
+        result.start();
+        assertTrue(started.await(30, TimeUnit.SECONDS), "holder did not get a permit");
+        return result;
+    }
+
+    /** queues a command which records its name when it runs, in a new thread, returning once it is waiting */
+    private Thread queue(TestApplication entity, String name, List<String> ran) {
+        TerraformCommandScheduler scheduler = TerraformCommandScheduler.get(entity);
+        int depth = scheduler.getQueueDepth();
+        Thread result = new Thread(() -> scheduler.runWithPermit(entity, () -> ran.add(name)));
+        result.start();
+        Asserts.succeedsEventually(() -> assertEquals(scheduler.getQueueDepth(), depth+1));
+        return result;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.join(30*1000);
+            assertTrue(!t.isAlive(), "thread "+t+" did not complete");
+        }
+    }
+
+    @Test
+    public void grantsPermitsFairlyByApplicationWeight() throws Exception {
+        mgmt.getBrooklynProperties().put(TerraformCommons.SCHEDULER_MAX_CONCURRENT, 1);
+        TestApplication x = newApp(2, "ssh");
+        TestApplication y = newApp(1, "ssh");
+        List<String> ran = Collections.synchronizedList(MutableList.of());
+
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> threads = MutableList.of(hold(app, release));
+        for (String name : Arrays.asList("x1", "x2", "x3")) threads.add(queue(x, name, ran));
+        for (String name : Arrays.asList("y1", "y2", "y3")) threads.add(queue(y, name, ran));
+        release.countDown();
+        join(threads);
+
+        // x runs two commands for each of y's while both are waiting; ties go to the earlier arrival
+        assertEquals(ran, Arrays.asList("x1", "y1", "x2", "x3", "y2", "y3"));
+    }
+
+    @Test
+    public void limitsConcurrencyPerMode() throws Exception {
+        mgmt.getBrooklynProperties().put(TerraformCommons.SCHEDULER_MAX_CONCURRENT, 5);
+        mgmt.getBrooklynProperties().put(ConfigKeys.newIntegerConfigKey(TerraformCommons.SCHEDULER_MAX_CONCURRENT.getName()+".ssh"), 1);
+        TestApplication ssh = newApp(1, "ssh");
+        TestApplication local = newApp(1, "local");
+        TerraformCommandScheduler scheduler = TerraformCommandScheduler.get(app);
+        List<String> ran = Collections.synchronizedList(MutableList.of());
+
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = hold(ssh, release);
+        Thread queued = queue(ssh, "ssh", ran);
+
+        // another mode is not held up by the ssh limit
+        scheduler.runWithPermit(local, () -> ran.add("local"));
+        assertEquals(ran, Collections.singletonList("local"));
+        assertEquals(scheduler.getQueueDepth(), 1);
+
+        release.countDown();
+        join(Arrays.asList(holder, queued));
+        assertEquals(ran, Arrays.asList("local", "ssh"));
+    }
+
+    @Test
+    public void permitIsReentrant() {
+        mgmt.getBrooklynProperties().put(TerraformCommons.SCHEDULER_MAX_CONCURRENT, 1);
+        TerraformCommandScheduler scheduler = TerraformCommandScheduler.get(app);
+
+        String result = scheduler.runWithPermit(app, () -> scheduler.runWithPermit(app, () -> {
+            assertEquals(scheduler.getRunning(), 1);
+            return "nested";
+        }));
+        assertEquals(result, "nested");
+        assertEquals(scheduler.getRunning(), 0);
+    }
+
+    @Test
+    public void publishesLoadWhenCommandsStartAndFinish() throws Exception {
+        mgmt.getBrooklynProperties().put(TerraformCommons.SCHEDULER_MAX_CONCURRENT, 1);
+        TestApplication other = newApp(1, "ssh");
+        List<String> ran = Collections.synchronizedList(MutableList.of());
+
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = hold(app, release);
+        assertEquals(app.sensors().get(TerraformConfiguration.SCHEDULER_RUNNING), (Integer) 1);
+        assertEquals(app.sensors().get(TerraformConfiguration.SCHEDULER_QUEUE_DEPTH), (Integer) 0);
+
+        Thread queued = queue(other, "other", ran);
+        release.countDown();
+        join(Arrays.asList(holder, queued));
+
+        // published on release too, so the sensors do not keep the load from when the commands started
+        assertEquals(app.sensors().get(TerraformConfiguration.SCHEDULER_QUEUE_DEPTH), (Integer) 0);
+        assertEquals(other.sensors().get(TerraformConfiguration.SCHEDULER_RUNNING), (Integer) 0);
+        assertEquals(other.sensors().get(TerraformConfiguration.SCHEDULER_QUEUE_DEPTH), (Integer) 0);
+        assertTrue(other.sensors().get(TerraformConfiguration.SCHEDULER_WAIT_LAST).toMilliseconds() >= 0);
+    }
+
+}
@@ -0,0 +1,126 @@
+package io.cloudsoft.terraform;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.brooklyn.core.test.BrooklynAppUnitTestSupport;
+import org.apache.brooklyn.util.time.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TerraformDriftHistoryTest extends BrooklynAppUnitTestSupport {
+
+    private static final Set<String> NONE = Collections.emptySet();
+
+    private TerraformDriftHistory history;
+
+    @BeforeMethod(alwaysRun = true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        app.config().set(TerraformConfiguration.PHANTOM_DRIFT_THRESHOLD, 3);
+        app.config().set(TerraformConfiguration.PHANTOM_DRIFT_REFRESH_INTERVAL, Duration.ONE_HOUR);
+        history = new TerraformDriftHistory(app);
+    }
+
+    /** records a plan as the configuration does, leaving out what the history says to, and returns what was left out */
+    private Set<String> plan(Set<String> stateOnly, Set<String> changesNeeded) {
+        Set<String> leftOut = history.getDriftToLeaveOut();
+        history.onPlan(stateOnly, changesNeeded, leftOut);
+        return leftOut;
+    }
+
+    private void learn(String address) {
+        for (int i=0; i<3; i++) plan(ImmutableSet.of(address), NONE);
+    }
+
+    @Test
+    public void learnsPhantomAfterThresholdConsecutivePlans() {
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        assertNull(app.sensors().get(TerraformConfiguration.PHANTOM_DRIFTERS));
+        assertEquals(history.getDriftToLeaveOut(), NONE);
+
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        assertEquals(app.sensors().get(TerraformConfiguration.PHANTOM_DRIFTERS), ImmutableSet.of("aws_instance.a"));
+        assertEquals(history.getDriftToLeaveOut(), ImmutableSet.of("aws_instance.a"));
+    }
+
+    @Test
+    public void countRestartsWhenAPlanShowsNoDrift() {
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        plan(NONE, NONE);
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        assertEquals(history.getDriftToLeaveOut(), NONE);
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        assertEquals(history.getDriftToLeaveOut(), ImmutableSet.of("aws_instance.a"));
+    }
+
+    @Test
+    public void realChangeResetsCountAndUnlearns() {
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        // drift alongside a planned change is actionable, so the count starts again
+        plan(NONE, ImmutableSet.of("aws_instance.a"));
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        assertEquals(history.getDriftToLeaveOut(), NONE);
+
+        plan(ImmutableSet.of("aws_instance.a"), NONE);
+        assertEquals(history.getDriftToLeaveOut(), ImmutableSet.of("aws_instance.a"));
+        plan(NONE, ImmutableSet.of("aws_instance.a"));
+        assertEquals(history.getDriftToLeaveOut(), NONE);
+        assertEquals(app.sensors().get(TerraformConfiguration.PHANTOM_DRIFTERS), NONE);
+    }
+
+    @Test
+    public void fullCheckForgetsResourcesWhichNoLongerDrift() {
+        learn("aws_instance.a");
+        learn("aws_instance.b");
+        assertEquals(plan(NONE, NONE), ImmutableSet.of("aws_instance.a", "aws_instance.b"));
+
+        // a zero interval makes every plan a full check, in which drift at learned resources is included
+        app.config().set(TerraformConfiguration.PHANTOM_DRIFT_REFRESH_INTERVAL, Duration.ZERO);
+        assertEquals(plan(ImmutableSet.of("aws_instance.b"), NONE), NONE);
+        app.config().set(TerraformConfiguration.PHANTOM_DRIFT_REFRESH_INTERVAL, Duration.ONE_HOUR);
+        assertEquals(app.sensors().get(TerraformConfiguration.PHANTOM_DRIFTERS), ImmutableSet.of("aws_instance.b"));
+        assertEquals(history.getDriftToLeaveOut(), ImmutableSet.of("aws_instance.b"));
+    }
+
+    @Test
+    public void forgetsMatchingPhantomsAndTheirCounts() {
+        learn("aws_instance.a");
+        learn("aws_s3_bucket.b");
+        plan(ImmutableSet.of("aws_instance.c"), NONE);
+        plan(ImmutableSet.of("aws_instance.c"), NONE);
+
+        assertEquals(history.forget("aws_instance.*"), ImmutableSet.of("aws_instance.a"));
+        assertEquals(app.sensors().get(TerraformConfiguration.PHANTOM_DRIFTERS), ImmutableSet.of("aws_s3_bucket.b"));
+        // the count for the matching resource not yet learned is forgotten too
+        plan(ImmutableSet.of("aws_instance.c"), NONE);
+        assertEquals(history.getDriftToLeaveOut(), ImmutableSet.of("aws_s3_bucket.b"));
+
+        assertEquals(history.forget(null), ImmutableSet.of("aws_s3_bucket.b"));
+        assertEquals(history.getDriftToLeaveOut(), NONE);
+        assertEquals(history.forget(null), NONE);
+    }
+
+    @Test
+    public void restoresLearnedFromSensorAndClearsWhenDisabled() {
+        learn("aws_instance.a");
+        history = new TerraformDriftHistory(app);
+        assertEquals(history.getDriftToLeaveOut(), ImmutableSet.of("aws_instance.a"));
+
+        app.config().set(TerraformConfiguration.PHANTOM_DRIFT_THRESHOLD, 0);
+        assertEquals(plan(ImmutableSet.of("aws_instance.a"), NONE), NONE);
+        assertTrue(app.sensors().get(TerraformConfiguration.PHANTOM_DRIFTERS).isEmpty());
+    }
+
+}
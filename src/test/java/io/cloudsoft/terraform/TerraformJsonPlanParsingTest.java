@@ -1,21 +1,39 @@
 package io.cloudsoft.terraform;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import io.cloudsoft.terraform.parser.ApplyLogParser;
+import io.cloudsoft.terraform.parser.ApplyProgress;
 import io.cloudsoft.terraform.parser.PlanLogEntry;
+import io.cloudsoft.terraform.parser.PlanLogParser;
+import io.cloudsoft.terraform.parser.ResourceRecord;
+import io.cloudsoft.terraform.parser.ResourceTable;
 import io.cloudsoft.terraform.parser.StateParser;
+import io.cloudsoft.terraform.parser.TfStateParser;
 import org.apache.brooklyn.test.Asserts;
+import org.apache.brooklyn.util.collections.MutableMap;
 import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static io.cloudsoft.terraform.TerraformDriver.*;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class TerraformJsonPlanParsingTest {
     @Test
@@ -28,6 +46,23 @@ public class TerraformJsonPlanParsingTest {
         assertEquals(result.get(PLAN_PROVIDER), PlanLogEntry.Provider.AWS);
         assertEquals(result.get(PLAN_MESSAGE), "Drift detected in state. No changes required to resources but local state needs an update.");
     }
+
+    @Test
+    public void ignorePhantomDriftByGlobOrLeaveItOut() throws IOException {
+        final String logs = loadTestData("state/aws-phantom-drift.json");
+
+        Map<String, Object> result = StateParser.parsePlanLogEntries(logs, ImmutableSet.of("aws_emr_*"));
+        assertEquals(result.get(PLAN_STATUS), TerraformConfiguration.TerraformStatus.STATE_CHANGE);
+        assertEquals(result.get(RESOURCES_DRIFT_DETECTED_STATE_ONLY), ImmutableSet.of());
+
+        result = StateParser.parsePlanLogEntries(logs, ImmutableSet.of("aws_emr_*.other"));
+        assertEquals(result.get(RESOURCES_DRIFT_DETECTED_STATE_ONLY), ImmutableSet.of("aws_emr_cluster.spark_cluster"));
+
+        // a learned phantom drifter is left out entirely
+        result = PlanLogParser.parse(logs, null, ImmutableSet.of("aws_emr_cluster.spark_cluster"));
+        assertEquals(result.get(PLAN_STATUS), TerraformConfiguration.TerraformStatus.SYNC);
+    }
+
     @Test
     public void readGcpManagedResources() throws IOException {
         final String state = loadTestData("state/gcp-cluster-state.json");
@@ -325,6 +360,155 @@ public class TerraformJsonPlanParsingTest {
         assertTrue(result.containsKey("tf.errors"));
     }
 
+    @Test
+    public void parseSavedPlanResourceChanges() throws IOException {
+        final String plan = loadTestData("state/plan-show-drift-update.json");
+
+        Map<String, Map<String, Object>> changes = StateParser.parsePlanResourceChanges(plan);
+        assertEquals(changes.keySet(), ImmutableSet.of("aws_security_group.allow_all", "aws_instance.example1"));
+
+        Map<String, Object> sg = changes.get("aws_security_group.allow_all");
+        assertEquals(sg.get("actions"), ImmutableList.of("update"));
+        assertFalse(sg.containsKey("drift"));
+        Map<String, Map<String, Object>> sgChanges = (Map<String, Map<String, Object>>) sg.get("changes");
+        assertEquals(sgChanges.keySet(), ImmutableSet.of("arn", "tags", "user_data"));
+        assertEquals(sgChanges.get("tags").get("before"), "{\"Name\":\"allow_all_renamed\"}");
+        assertEquals(sgChanges.get("tags").get("after"), "{\"Name\":\"allow_all\"}");
+        assertEquals(sgChanges.get("user_data").get("after"), "(sensitive value)");
+        assertEquals(sgChanges.get("arn").get("after"), "(known after apply)");
+
+        Map<String, Object> instance = changes.get("aws_instance.example1");
+        assertEquals(instance.get("drift"), true);
+        assertEquals(((Map<String, Map<String, Object>>) instance.get("changes")).get("instance_state").get("after"), "stopped");
+    }
+
+    @Test
+    public void readTfStateResourcesSameAsShow() throws IOException {
+        assertEquals(TfStateParser.parseResources(loadTestData("state/vs-tfstate.json")),
+                StateParser.parseResources(loadTestData("state/vs-state.json")));
+        assertEquals(TfStateParser.parseResources(loadTestData("state/gcp-cluster-tfstate.json")),
+                StateParser.parseResources(loadTestData("state/gcp-cluster-state.json")));
+    }
+
+    @Test
+    public void readTfStateSensitiveIndexedAndModuleResources() throws IOException {
+        final String tfState = loadTestData("state/sensitive-tfstate.json");
+
+        Map<String, Map<String, Object>> resources = TfStateParser.parseResources(tfState);
+        assertEquals(resources.keySet(), ImmutableSet.of("aws_db_instance.db", "random_pet.names[0]", "random_pet.names[\"extra\"]", "data.aws_ami.ubuntu",
+                "module.network.aws_vpc.main"));
+        assertEquals(resources.get("module.network.aws_vpc.main").get("resource.module"), "module.network");
+        assertFalse(resources.get("aws_db_instance.db").containsKey("resource.module"));
+
+        Map<String, Object> db = resources.get("aws_db_instance.db");
+        assertEquals(db.get("resource.provider"), "registry.terraform.io/hashicorp/aws");
+        assertEquals(db.get("value.password"), "s3cr3t");
+        assertEquals(db.get("sensitive.value.password"), "true");
+        assertEquals(db.get("sensitive.value.parameter"), "[{\"value\":true}]");
+        assertFalse(db.containsKey("sensitive.value.tags"));
+        assertFalse(db.containsKey("value.timeouts"));
+
+        assertEquals(resources.get("data.aws_ami.ubuntu").get("resource.mode"), "data");
+        assertEquals(resources.get("random_pet.names[0]").get("resource.name"), "names");
+
+        Map<String, Map<String, Object>> outputs = new ObjectMapper().readValue(TfStateParser.parseOutputsAsJson(tfState), Map.class);
+        assertEquals(outputs.get("db_address").get("value"), "db.example.internal");
+        assertEquals(outputs.get("db_password").get("sensitive"), true);
+    }
+
+    @Test
+    public void resourceRecordsShareKeysAndValues() throws IOException {
+        Map<String, Map<String, Object>> resources = TfStateParser.parseResources(loadTestData("state/sensitive-tfstate.json"));
+        Map<String, Object> pet0 = resources.get("random_pet.names[0]");
+        Map<String, Object> petExtra = resources.get("random_pet.names[\"extra\"]");
+        assertTrue(pet0 instanceof ResourceRecord);
+        assertEquals(pet0.get("value.length"), "2");
+        assertSame(pet0.get("value.length"), petExtra.get("value.length"));
+        assertSame(pet0.keySet().iterator().next(), petExtra.keySet().iterator().next());
+
+        String hash = ResourceRecord.contentHash(pet0);
+        assertEquals(ResourceRecord.contentHash(MutableMap.copyOf(pet0)), hash);
+        assertEquals(ResourceRecord.contentHash(TfStateParser.parseResources(loadTestData("state/sensitive-tfstate.json")).get("random_pet.names[0]")), hash);
+
+        pet0.put("drift-compliance", true);
+        assertNotEquals(ResourceRecord.contentHash(pet0), hash);
+        assertEquals(ResourceRecord.contentHash(pet0, Collections.singleton("drift-compliance")), hash);
+        pet0.remove("value.id");
+        assertEquals(pet0.get("drift-compliance"), true);
+        assertFalse(pet0.containsKey("value.id"));
+        assertEquals(pet0.keySet().iterator().next(), "resource.address");
+
+        ((ResourceRecord) pet0).freeze();
+        try {
+            pet0.put("value.id", "changed");
+            fail("frozen record should not be changed");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertFalse(pet0.containsKey("value.id"));
+
+        assertEquals(ResourceRecord.serializedSize(MutableMap.of("a", MutableMap.of("k", "vv"))), "{\"a\":{\"k\":\"vv\"}}".length());
+        assertEquals(ResourceRecord.sensorsSerializedSize(MutableMap.of("k", "vv", "n", 1)), "{\"tf.k\":\"vv\",\"tf.n\":\"1\"}".length());
+    }
+
+    @Test
+    public void readChildModuleResources() throws IOException {
+        final String state = loadTestData("state/modules-state.json");
+        final String tfState = loadTestData("state/modules-tfstate.json");
+
+        Map<String, Map<String, Object>> resources = StateParser.parseResources(state);
+        assertEquals(ImmutableList.copyOf(resources.keySet()), ImmutableList.of("aws_s3_bucket.logs",
+                "module.network.aws_vpc.main", "module.network.data.aws_availability_zones.available",
+                "module.network.module.subnets.aws_subnet.private[0]", "module.network.module.subnets.aws_subnet.private[1]",
+                "module.app[\"web\"].aws_instance.server"));
+        assertEquals(resources.get("module.network.module.subnets.aws_subnet.private[1]").get("resource.module"), "module.network.module.subnets");
+        assertEquals(resources.get("module.network.data.aws_availability_zones.available").get("resource.mode"), "data");
+        assertEquals(resources.get("module.app[\"web\"].aws_instance.server").get("resource.module"), "module.app[\"web\"]");
+        assertEquals(TfStateParser.parseResources(tfState), resources);
+
+        // parallel parsing gives the same result in the same order
+        assertEquals(ImmutableList.copyOf(StateParser.parseResources(state, 1).entrySet()), ImmutableList.copyOf(resources.entrySet()));
+        assertEquals(ImmutableList.copyOf(TfStateParser.parseResources(tfState, 2).entrySet()), ImmutableList.copyOf(resources.entrySet()));
+    }
+
+    @Test
+    public void groupAddresses() {
+        assertEquals(StateParser.moduleAncestors(null), ImmutableList.of());
+        assertEquals(StateParser.moduleAncestors("module.network"), ImmutableList.of("module.network"));
+        assertEquals(StateParser.moduleAncestors("module.network.module.subnets[\"a.module.b\"]"),
+                ImmutableList.of("module.network", "module.network.module.subnets[\"a.module.b\"]"));
+        assertEquals(StateParser.unindexedAddress("module.app[\"web\"].aws_instance.server[2]"), "module.app[\"web\"].aws_instance.server");
+        assertEquals(StateParser.unindexedAddress("module.app[\"web\"].aws_instance.server"), null);
+    }
+
+    @Test
+    public void queryResourceTable() throws IOException {
+        Map<String, Map<String, Object>> resources = StateParser.parseResources(loadTestData("state/modules-state.json"));
+        ResourceTable table = ResourceTable.of(resources);
+
+        assertEquals(table.size(), 6);
+        assertEquals((int) table.countByType().get("aws_subnet"), 2);
+        assertEquals(table.get("module.network.module.subnets.aws_subnet.private[1]"), resources.get("module.network.module.subnets.aws_subnet.private[1]"));
+        assertEquals(table.get("aws_instance.missing"), null);
+
+        assertEquals(table.query(null, "aws_s*", null, null, 0).size(), 3);
+        assertEquals(table.query("module.network.*", null, "value.cidr_block", null, 0).size(), 3);
+        List<Map<String, Object>> subnet = table.query(null, null, "value.cidr_block", "10.0.2.0/24", 0);
+        assertEquals(subnet.size(), 1);
+        assertEquals(subnet.get(0).get("resource.address"), "module.network.module.subnets.aws_subnet.private[1]");
+        assertEquals(table.query(null, null, null, null, 2).size(), 2);
+        assertEquals(table.query(null, null, null, "10.0.2.0/24", 0), subnet);
+        assertEquals(table.query(null, null, null, "no-such-value", 0).size(), 0);
+
+        assertEquals(table.select(type -> type.endsWith("_instance")).keySet(), ImmutableSet.of("module.app[\"web\"].aws_instance.server"));
+    }
+
+    @Test
+    public void readTfStateVersion() throws IOException {
+        assertEquals(TfStateParser.parseStateVersion(loadTestData("state/sensitive-tfstate.json")), "0b7c4a4e-1f2d-4c1a-8e3a-2f5d6c7b8a90:4");
+        assertEquals(TfStateParser.parseStateVersion(""), null);
+    }
+
     private String loadTestData(final String filePathAsStr) throws IOException {
         ClassLoader classLoader = getClass().getClassLoader();
         File file = new File(classLoader.getResource(filePathAsStr).getFile());
@@ -370,4 +554,94 @@ public class TerraformJsonPlanParsingTest {
                 "Plan: 1 to add, 0 to change, 1 to destroy.");
     }
 
+    @Test
+    public void acceptStateOnlyDriftFromRefreshOnlyApply() throws IOException {
+        final String plan = loadTestData("state/plan-drift-shutdown.json");
+        final String apply = loadTestData("state/apply-refresh-only.json");
+
+        Set<String> accepted = PlanLogParser.parseRefreshOnlyApply(apply, ImmutableSet.of("aws_instance.example1"));
+        assertEquals(accepted, ImmutableSet.of("aws_instance.example1"));
+        // drift outside the targets, or an error, is not conclusive
+        assertNull(PlanLogParser.parseRefreshOnlyApply(apply, ImmutableSet.of("aws_instance.example2")));
+        assertNull(PlanLogParser.parseRefreshOnlyApply(loadTestData("state/plan-bad-config.json"), ImmutableSet.of("aws_instance.example1")));
+
+        Map<String, Object> result = PlanLogParser.parse(plan, null, accepted);
+        assertEquals(result.get(PLAN_STATUS), TerraformConfiguration.TerraformStatus.SYNC);
+        assertFalse(result.containsKey(RESOURCE_CHANGES));
+    }
+
+    @Test
+    public void parseApply() throws IOException {
+        final String logs = loadTestData("state/apply-create.json");
+
+        Map<String, Object> result = ApplyLogParser.parse(logs);
+        assertEquals(result.get(PLAN_STATUS), TerraformConfiguration.TerraformStatus.SYNC);
+        assertEquals(result.get(PLAN_MESSAGE), "Apply complete! Resources: 1 added, 0 changed, 0 destroyed.");
+        assertEquals(result.get(ApplyLogParser.APPLIED_RESOURCES), ImmutableList.of(
+                ImmutableMap.of("resource.addr", "aws_instance.example1", "resource.action", "create")));
+        Map<String, Map<String, Object>> outputs = new ObjectMapper().readValue((String) result.get(ApplyLogParser.OUTPUTS), Map.class);
+        assertEquals(outputs.get("address1").get("value"), "10.0.1.17");
+
+        // an apply which did not complete is not conclusive
+        result = ApplyLogParser.parse(logs.substring(0, logs.indexOf("Apply complete!")));
+        assertFalse(result.containsKey(PLAN_STATUS));
+        assertFalse(result.containsKey(ApplyLogParser.OUTPUTS));
+    }
+
+    @Test
+    public void detectStaleSavedPlan() throws IOException {
+        final String stale = "{\"@level\":\"info\",\"@message\":\"Terraform 1.5.7\",\"terraform\":\"1.5.7\",\"type\":\"version\",\"ui\":\"1.1\"}\n" +
+                "{\"@level\":\"error\",\"@message\":\"Error: Saved plan is stale\",\"diagnostic\":{\"severity\":\"error\",\"summary\":\"Saved plan is stale\"," +
+                "\"detail\":\"The given plan file can no longer be applied because the state was changed by another operation after the plan was created.\"},\"type\":\"diagnostic\"}\n";
+        assertTrue(ApplyLogParser.isStaleSavedPlan(stale));
+
+        // other failures, or a stale diagnostic once resources started changing, are not safe to apply afresh
+        assertFalse(ApplyLogParser.isStaleSavedPlan(stale.replace("Saved plan is stale", "Invalid provider configuration")));
+        final String logs = loadTestData("state/apply-create.json");
+        assertFalse(ApplyLogParser.isStaleSavedPlan(logs));
+        assertFalse(ApplyLogParser.isStaleSavedPlan(logs + stale));
+        assertFalse(ApplyLogParser.isStaleSavedPlan(""));
+    }
+
+    @Test
+    public void followApplyProgress() throws IOException {
+        final String logs = loadTestData("state/apply-create.json");
+        List<String> statuses = new ArrayList<>();
+        ApplyLogParser.Summary summary = new ApplyLogParser.Summary();
+        ApplyProgress progress = new ApplyProgress((address, status) -> statuses.add(address + " " + status), summary);
+
+        // output arrives in chunks which need not end at a line break
+        int split = logs.indexOf("Still creating");
+        progress.accept(logs.substring(0, split));
+        assertEquals(progress.getTotal(), Integer.valueOf(1));
+        assertEquals(progress.getDone(), 0);
+        assertEquals(progress.getInProgress(), ImmutableList.of("aws_instance.example1"));
+        assertNull(progress.getEtaMillis(System.currentTimeMillis()));
+
+        progress.accept(logs.substring(split));
+        progress.end();
+        assertEquals(progress.getDone(), 1);
+        assertEquals(progress.getFailed(), 0);
+        assertTrue(progress.getInProgress().isEmpty());
+        assertEquals(progress.getEtaMillis(System.currentTimeMillis()), Long.valueOf(0));
+        assertEquals(statuses, ImmutableList.of("aws_instance.example1 creating", "aws_instance.example1 created"));
+        // what the apply did is accumulated from the same entries, as parsing the whole output does
+        assertEquals(summary.getResult(), ApplyLogParser.parse(logs));
+        assertFalse(summary.isStaleSavedPlan());
+    }
+
+    @Test
+    public void followApplyProgressLineByLine() throws IOException {
+        final String logs = loadTestData("state/apply-create.json");
+        ApplyProgress progress = new ApplyProgress((address, status) -> {});
+        List<Boolean> changed = new ArrayList<>();
+        for (String line : logs.split("\n")) changed.add(progress.acceptLine(line));
+        assertEquals(progress.getDone(), 1);
+        assertEquals(progress.getTotal(), Integer.valueOf(1));
+        // only lines which change the progress need publishing
+        assertTrue(changed.contains(true));
+        assertTrue(changed.contains(false));
+        assertFalse(progress.acceptLine("not json"));
+    }
+
 }
\ No newline at end of file
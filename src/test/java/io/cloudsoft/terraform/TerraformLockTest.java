@@ -0,0 +1,215 @@
+package io.cloudsoft.terraform;
+
+import io.cloudsoft.terraform.TerraformDriver.LockMode;
+import org.apache.brooklyn.api.mgmt.Task;
+import org.apache.brooklyn.core.entity.Entities;
+import org.apache.brooklyn.core.test.BrooklynAppUnitTestSupport;
+import org.apache.brooklyn.test.Asserts;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.apache.brooklyn.util.core.task.Tasks;
+import org.apache.brooklyn.util.exceptions.Exceptions;
+import org.apache.brooklyn.util.time.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TerraformLockTest extends BrooklynAppUnitTestSupport {
+
+    private static final Duration FOREVER = Duration.seconds(-1);
+
+    private TerraformLock lock;
+    private List<String> ran;
+
+    @BeforeMethod(alwaysRun = true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        lock = new TerraformLock(app, task -> task.cancel(true));
+        ran = Collections.synchronizedList(MutableList.of());
+    }
+
+    /** takes the lock in a new thread, holding it until the latch is released, and returns once it is held */
+    private Thread hold(String summary, LockMode mode, CountDownLatch release) throws InterruptedException {
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread result = new Thread(() -> lock.callWithLock(summary, mode, () -> {
+            acquired.countDown();
+            return release.await(30, TimeUnit.SECONDS);
+        }, FOREVER));
+        result.start();
+        assertTrue(acquired.await(30, TimeUnit.SECONDS), summary+" did not get the lock");
+        return result;
+    }
+
+    /** queues for the lock in a new thread, recording the summary when granted, and returns once it is waiting */
+    private Thread queue(String summary, LockMode mode, boolean background) {
+        int depth = lock.getQueueDepth();
+        Callable<String> job = () -> lock.callWithLock(summary, mode, () -> {
+            ran.add(summary);
+            return summary;
+        }, FOREVER);
+        Thread result = new Thread(() -> {
+            try {
+                if (background) TerraformCommandScheduler.runAsBackground(job);
+                else job.call();
+            } catch (Exception e) {
+                throw Exceptions.propagate(e);
+            }
+        });
+        result.start();
+        Asserts.succeedsEventually(() -> assertEquals(lock.getQueueDepth(), depth+1));
+        return result;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.join(30*1000);
+            assertFalse(t.isAlive(), "thread "+t+" did not complete");
+        }
+    }
+
+    @Test
+    public void grantsEffectorsBeforeBackgroundThenInArrivalOrder() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> threads = MutableList.of(hold("holder", LockMode.EXCLUSIVE, release));
+        threads.add(queue("background-1", LockMode.EXCLUSIVE, true));
+        threads.add(queue("effector-1", LockMode.EXCLUSIVE, false));
+        threads.add(queue("background-2", LockMode.EXCLUSIVE, true));
+        threads.add(queue("effector-2", LockMode.EXCLUSIVE, false));
+        assertEquals(app.sensors().get(TerraformConfiguration.LOCK_QUEUE_DEPTH), (Integer) 4);
+
+        release.countDown();
+        join(threads);
+        assertEquals(ran, Arrays.asList("effector-1", "effector-2", "background-1", "background-2"));
+        assertEquals(lock.getQueueDepth(), 0);
+        assertNull(lock.getOwner());
+    }
+
+    @Test
+    public void sharedHoldersRunTogetherButDoNotOvertakeExclusive() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Thread reader = hold("reader", LockMode.SHARED, release);
+
+        // another reader is granted at once
+        assertEquals(lock.callWithLock("reader-2", LockMode.SHARED, () -> "read", Duration.ZERO), "read");
+
+        Thread writer = queue("writer", LockMode.EXCLUSIVE, false);
+        Thread reader3 = queue("reader-3", LockMode.SHARED, false);
+        Asserts.assertStringContains(lock.getOwner(), "reader", "shared");
+        assertEquals(lock.getExclusiveReleases(), 0);
+
+        release.countDown();
+        join(Arrays.asList(reader, writer, reader3));
+        assertEquals(ran, Arrays.asList("writer", "reader-3"));
+        assertEquals(lock.getExclusiveReleases(), 1);
+    }
+
+    @Test
+    public void sharedHolderCannotTakeItExclusively() {
+        assertEquals(lock.callWithLock("outer", LockMode.EXCLUSIVE,
+                () -> lock.callWithLock("inner", LockMode.SHARED, () -> "nested", Duration.ZERO), FOREVER), "nested");
+        try {
+            lock.callWithLock("outer", LockMode.SHARED,
+                    () -> lock.callWithLock("inner", LockMode.EXCLUSIVE, () -> "nested", Duration.ZERO), FOREVER);
+            fail("shared holder should not be able to take the lock exclusively");
+        } catch (IllegalStateException e) {
+            Asserts.assertStringContains(e.getMessage(), "inner", "held shared by outer");
+        }
+        assertNull(lock.getOwner());
+    }
+
+    @Test
+    public void reentrantThroughSubmittedTasks() {
+        // the inner task runs in another thread, but was submitted by the task holding the lock
+        Callable<String> inner = () -> lock.callWithLock("inner", LockMode.EXCLUSIVE, () -> "nested", Duration.seconds(5));
+        Callable<String> outer = () -> lock.callWithLock("outer", LockMode.EXCLUSIVE,
+                () -> Entities.submit(app, Tasks.<String>builder().displayName("inner").body(inner).build()).getUnchecked(), FOREVER);
+        String result = Entities.submit(app, Tasks.<String>builder().displayName("outer").body(outer).build()).getUnchecked();
+        assertEquals(result, "nested");
+        assertNull(lock.getOwner());
+    }
+
+    @Test
+    public void timeoutWhileQueuedLeavesNoWaiterOrGrant() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = hold("holder", LockMode.EXCLUSIVE, release);
+        try {
+            lock.callWithLock("impatient", LockMode.EXCLUSIVE, () -> "ran", Duration.millis(50));
+            fail("should have timed out waiting for the lock");
+        } catch (IllegalStateException e) {
+            Asserts.assertStringContains(e.getMessage(), "impatient", "timed out");
+        }
+        assertEquals(lock.getQueueDepth(), 0);
+        assertEquals(app.sensors().get(TerraformConfiguration.LOCK_QUEUE_DEPTH), (Integer) 0);
+        Asserts.assertStringContains(lock.getOwner(), "holder");
+
+        release.countDown();
+        join(Collections.singletonList(holder));
+        assertNull(lock.getOwner());
+        assertEquals(lock.callWithLock("next", LockMode.EXCLUSIVE, () -> "ran", Duration.ZERO), "ran");
+    }
+
+    @Test
+    public void effectorPreemptsBackgroundHolderAndCancelsItsCommand() throws Exception {
+        List<Object> cancelled = Collections.synchronizedList(MutableList.of());
+        lock = new TerraformLock(app, task -> {
+            cancelled.add(task);
+            task.cancel(true);
+        });
+        CountDownLatch running = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Callable<Boolean> sleep = () -> {
+            running.countDown();
+            return new CountDownLatch(1).await(30, TimeUnit.SECONDS);
+        };
+        Task<Boolean> command = Tasks.<Boolean>builder().displayName("terraform plan").body(sleep).build();
+        Thread refresh = new Thread(() -> {
+            try {
+                TerraformCommandScheduler.runAsBackground(() -> lock.callWithLock("refresh", LockMode.SHARED,
+                        () -> lock.runCommand(command, () -> Entities.submit(app, command).getUnchecked()), FOREVER, true));
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        refresh.start();
+        assertTrue(running.await(30, TimeUnit.SECONDS), "command did not start");
+
+        assertEquals(lock.callWithLock("effector", LockMode.EXCLUSIVE, () -> "ran", Duration.seconds(30)), "ran");
+        join(Collections.singletonList(refresh));
+        assertEquals(cancelled, Collections.singletonList(command));
+        assertTrue(failure.get() instanceof TerraformLock.PreemptedException, "expected preemption but got "+failure.get());
+        assertEquals(app.sensors().get(TerraformConfiguration.LOCK_PREEMPTIONS), (Long) 1L);
+    }
+
+    @Test
+    public void publishesOwnerAndHistograms() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = hold("holder", LockMode.EXCLUSIVE, release);
+        Asserts.assertStringContains(app.sensors().get(TerraformConfiguration.LOCK_OWNER), "holder");
+        release.countDown();
+        join(Collections.singletonList(holder));
+        assertNull(app.sensors().get(TerraformConfiguration.LOCK_OWNER));
+
+        String fastest = "<"+TerraformLock.HISTOGRAM_BOUNDS[0];
+        Map<String, Long> waits = app.sensors().get(TerraformConfiguration.LOCK_WAIT_HISTOGRAM);
+        Map<String, Long> holds = app.sensors().get(TerraformConfiguration.LOCK_HOLD_HISTOGRAM);
+        assertEquals(waits.size(), TerraformLock.HISTOGRAM_BOUNDS.length+1);
+        assertEquals(waits.get(fastest), (Long) 1L);
+        assertEquals(holds.get(fastest), (Long) 1L);
+        assertEquals(waits.values().stream().mapToLong(Long::longValue).sum(), 1L);
+    }
+
+}
@@ -0,0 +1,121 @@
+package io.cloudsoft.terraform;
+
+import io.cloudsoft.terraform.TerraformConfiguration.TerraformStatus;
+import org.apache.brooklyn.core.test.BrooklynAppUnitTestSupport;
+import org.apache.brooklyn.util.time.Duration;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class TerraformPollingScheduleTest extends BrooklynAppUnitTestSupport {
+
+    private TerraformPollingSchedule schedule;
+
+    @BeforeMethod(alwaysRun = true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        app.config().set(TerraformCommons.POLLING_PERIOD, Duration.seconds(10));
+        app.config().set(TerraformCommons.POLLING_PERIOD_MAX, Duration.seconds(60));
+        app.config().set(TerraformCommons.POLLING_BACKOFF_MULTIPLIER, 2d);
+        schedule = new TerraformPollingSchedule(app);
+    }
+
+    private void refresh(TerraformStatus status) {
+        refresh(status, Duration.ZERO);
+    }
+
+    private void refresh(TerraformStatus status, Duration took) {
+        schedule.onRefreshStarted();
+        schedule.onRefreshCompleted(status, took);
+    }
+
+    @Test
+    public void startsAtBasePeriodAndIsDue() {
+        assertEquals(schedule.getPeriod(), Duration.seconds(10));
+        assertTrue(schedule.isDue());
+    }
+
+    @Test
+    public void notDueWhileRefreshRunningOrUntilPeriodElapsed() {
+        schedule.onRefreshStarted();
+        assertFalse(schedule.isDue());
+        schedule.onRefreshCompleted(TerraformStatus.SYNC, Duration.ZERO);
+        assertFalse(schedule.isDue());
+    }
+
+    @Test
+    public void backsOffWhileInSyncUpToMax() {
+        refresh(TerraformStatus.SYNC);
+        assertEquals(schedule.getPeriod(), Duration.seconds(20));
+        refresh(TerraformStatus.SYNC);
+        assertEquals(schedule.getPeriod(), Duration.seconds(40));
+        refresh(TerraformStatus.SYNC);
+        assertEquals(schedule.getPeriod(), Duration.seconds(60));
+        refresh(TerraformStatus.SYNC);
+        assertEquals(schedule.getPeriod(), Duration.seconds(60));
+    }
+
+    @Test
+    public void resetsToBaseOnDriftOrFailure() {
+        refresh(TerraformStatus.SYNC);
+        refresh(TerraformStatus.SYNC);
+        assertEquals(schedule.getPeriod(), Duration.seconds(40));
+        refresh(TerraformStatus.DRIFT);
+        assertEquals(schedule.getPeriod(), Duration.seconds(10));
+
+        refresh(TerraformStatus.SYNC);
+        assertEquals(schedule.getPeriod(), Duration.seconds(20));
+        // a failed refresh reports no status
+        refresh(null);
+        assertEquals(schedule.getPeriod(), Duration.seconds(10));
+    }
+
+    @Test
+    public void activityResetsAndHoldsBasePeriodForNextRefreshes() {
+        refresh(TerraformStatus.SYNC);
+        refresh(TerraformStatus.SYNC);
+        refresh(TerraformStatus.SYNC);
+        assertFalse(schedule.isDue());
+
+        schedule.onActivity();
+        assertEquals(schedule.getPeriod(), Duration.seconds(10));
+        for (int i=0; i<TerraformPollingSchedule.FAST_REFRESHES_AFTER_ACTIVITY; i++) {
+            refresh(TerraformStatus.SYNC);
+            assertEquals(schedule.getPeriod(), Duration.seconds(10), "refresh "+i+" after activity");
+        }
+        refresh(TerraformStatus.SYNC);
+        assertEquals(schedule.getPeriod(), Duration.seconds(20));
+    }
+
+    @Test
+    public void maxBelowBaseKeepsBasePeriod() {
+        app.config().set(TerraformCommons.POLLING_PERIOD_MAX, Duration.seconds(5));
+        refresh(TerraformStatus.SYNC);
+        assertEquals(schedule.getPeriod(), Duration.seconds(10));
+    }
+
+    @Test
+    public void slowRefreshCountsOverrun() {
+        refresh(TerraformStatus.SYNC, Duration.seconds(90));
+        assertEquals(schedule.getOverruns(), 1);
+        assertEquals(schedule.getPeriod(), Duration.seconds(20));
+        refresh(TerraformStatus.SYNC, Duration.seconds(1));
+        assertEquals(schedule.getOverruns(), 1);
+    }
+
+    @Test
+    public void dueAgainAfterBasePeriodWhenPreempted() {
+        // a zero base period makes the retry due immediately
+        app.config().set(TerraformCommons.POLLING_PERIOD, Duration.ZERO);
+        schedule.onRefreshStarted();
+        assertFalse(schedule.isDue());
+        schedule.onRefreshPreempted();
+        assertTrue(schedule.isDue());
+        assertEquals(schedule.getPeriod(), Duration.seconds(10), "preemption does not change the backed off period");
+    }
+
+}
@@ -0,0 +1,180 @@
+package io.cloudsoft.terraform;
+
+import org.apache.brooklyn.core.test.BrooklynAppUnitTestSupport;
+import org.apache.brooklyn.test.Asserts;
+import org.apache.brooklyn.util.collections.MutableList;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class TerraformSingleFlightTest extends BrooklynAppUnitTestSupport {
+
+    private TerraformSingleFlight singleFlight;
+    private List<String> ran;
+
+    @BeforeMethod(alwaysRun = true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        singleFlight = new TerraformSingleFlight(app);
+        ran = Collections.synchronizedList(MutableList.of());
+    }
+
+    /**
+     * runs a flight in a new thread, whose job records its name, marks itself started if asked, then waits for the latch
+     * and returns its name (or throws if the name says so), returning once the job is running
+     */
+    private Thread fly(String key, boolean joinableWhileRunning, String name, boolean markStarted, CountDownLatch release,
+                       AtomicReference<Object> result) throws InterruptedException {
+        CountDownLatch running = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                result.set(singleFlight.run(key, joinableWhileRunning, TerraformConfiguration.APPLY_COALESCED_COUNT, started -> {
+                    ran.add(name);
+                    if (markStarted) started.run();
+                    running.countDown();
+                    try {
+                        release.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    if (name.startsWith("failing")) throw new IllegalStateException(name+" failed");
+                    return name;
+                }));
+            } catch (Exception e) {
+                result.set(e);
+            }
+        });
+        thread.start();
+        assertTrue(running.await(30, TimeUnit.SECONDS), name+" did not start");
+        return thread;
+    }
+
+    /** requests the flight in a new thread, recording its own job if it runs one, returning once it has joined or started */
+    private Thread request(String key, boolean joinableWhileRunning, String name, AtomicReference<Object> result) {
+        long joined = coalesced();
+        int before = ran.size();
+        Thread thread = new Thread(() -> {
+            try {
+                result.set(singleFlight.run(key, joinableWhileRunning, TerraformConfiguration.APPLY_COALESCED_COUNT, started -> {
+                    ran.add(name);
+                    return name;
+                }));
+            } catch (Exception e) {
+                result.set(e);
+            }
+        });
+        thread.start();
+        Asserts.succeedsEventually(() -> assertTrue(coalesced()>joined || ran.size()>before, name+" did not join or run"));
+        return thread;
+    }
+
+    private long coalesced() {
+        Long result = app.sensors().get(TerraformConfiguration.APPLY_COALESCED_COUNT);
+        return result==null ? 0 : result;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.join(30*1000);
+            assertFalse(t.isAlive(), "thread "+t+" did not complete");
+        }
+    }
+
+    @Test
+    public void coalescesRequestsUntilStarted() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Object> first = new AtomicReference<>(), second = new AtomicReference<>(), third = new AtomicReference<>();
+        Thread flight = fly("apply x", false, "first", false, release, first);
+        Thread joiner = request("apply x", false, "second", second);
+        assertEquals(coalesced(), 1);
+
+        release.countDown();
+        join(Arrays.asList(flight, joiner));
+        assertEquals(first.get(), "first");
+        assertEquals(second.get(), "first");
+        assertEquals(ran, Collections.singletonList("first"));
+
+        // nothing in flight now, so the next request runs
+        join(Collections.singletonList(request("apply x", false, "third", third)));
+        assertEquals(third.get(), "third");
+        assertEquals(ran, Arrays.asList("first", "third"));
+    }
+
+    @Test
+    public void joinsWhileRunningOnlyIfJoinable() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Object> plan = new AtomicReference<>(), planJoiner = new AtomicReference<>();
+        AtomicReference<Object> apply = new AtomicReference<>(), applyRequest = new AtomicReference<>();
+        Thread planFlight = fly("plan", true, "plan", true, release, plan);
+        Thread applyFlight = fly("apply x", false, "apply", true, release, apply);
+
+        Thread joiner = request("plan", true, "plan-2", planJoiner);
+        Thread separate = request("apply x", false, "apply-2", applyRequest);
+        join(Collections.singletonList(separate));
+        assertEquals(applyRequest.get(), "apply-2");
+        assertEquals(coalesced(), 1);
+
+        release.countDown();
+        join(Arrays.asList(planFlight, applyFlight, joiner));
+        assertEquals(planJoiner.get(), "plan");
+        assertFalse(ran.contains("plan-2"));
+    }
+
+    @Test
+    public void detachedFlightIsNotJoined() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Object> plan = new AtomicReference<>(), later = new AtomicReference<>();
+        Thread flight = fly("plan", true, "plan", true, release, plan);
+        singleFlight.detach("plan");
+
+        join(Collections.singletonList(request("plan", true, "plan-2", later)));
+        assertEquals(later.get(), "plan-2");
+        assertEquals(coalesced(), 0);
+        release.countDown();
+        join(Collections.singletonList(flight));
+    }
+
+    @Test
+    public void failurePropagatesToJoiners() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicReference<Object> first = new AtomicReference<>(), second = new AtomicReference<>();
+        Thread flight = fly("apply x", false, "failing", false, release, first);
+        Thread joiner = request("apply x", false, "second", second);
+
+        release.countDown();
+        join(Arrays.asList(flight, joiner));
+        for (Object result : Arrays.asList(first.get(), second.get())) {
+            assertTrue(result instanceof IllegalStateException, "expected failure but got "+result);
+            Asserts.assertStringContains(((Exception) result).getMessage(), "failing failed");
+        }
+        assertEquals(ran, Collections.singletonList("failing"));
+    }
+
+    @Test
+    public void nestedRequestIsNotJoinedToItsOwnFlight() {
+        String result = singleFlight.run("plan", true, TerraformConfiguration.PLAN_COALESCED_COUNT, started ->
+                singleFlight.run("plan", true, TerraformConfiguration.PLAN_COALESCED_COUNT, nested -> "nested"));
+        assertEquals(result, "nested");
+        try {
+            singleFlight.run("plan", true, TerraformConfiguration.PLAN_COALESCED_COUNT, started -> {
+                throw new IllegalStateException("boom");
+            });
+            fail("should have thrown");
+        } catch (IllegalStateException e) {
+            Asserts.assertStringContains(e.getMessage(), "boom");
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package io.cloudsoft.terraform.util;
+
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class TailOutputStreamTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void keepsEverythingUpToTwiceTheLimit() {
+        TailOutputStream out = new TailOutputStream(4);
+        out.write(bytes("abcd"), 0, 4);
+        out.write(bytes("efgh"), 0, 4);
+        assertEquals(out.toString(), "abcdefgh");
+        assertEquals(out.getDropped(), 0);
+    }
+
+    @Test
+    public void keepsOnlyTheTailOnceOverTwiceTheLimit() {
+        TailOutputStream out = new TailOutputStream(4);
+        for (byte b : bytes("abcdefghi")) out.write(b);
+        assertEquals(out.size(), 4);
+        assertEquals(out.getDropped(), 5);
+        assertEquals(out.toString(), "... (5 bytes not kept)\nfghi");
+    }
+
+    @Test
+    public void longWriteKeepsOnlyItsTail() {
+        TailOutputStream out = new TailOutputStream(4);
+        out.write(bytes("ab"), 0, 2);
+        out.write(bytes("xcdefghijk"), 1, 9);
+        assertEquals(out.size(), 4);
+        assertEquals(out.getDropped(), 7);
+        assertTrue(out.toString().endsWith("\nhijk"), out.toString());
+    }
+
+}